@@ -0,0 +1,158 @@
+package afp.file.combine;
+
+import afp.file.AsyncFileOutputStream;
+import org.afplib.ResourceKey;
+import org.afplib.io.AfpOutputStream;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Benchmarks the phases of {@link AfpCombine} one by one and end to end on a generated corpus.
+ * Each phase benchmark starts from a fresh {@link AfpCombine} on which the preceding phases
+ * have already been run.
+ * <p>
+ * Run with allocation profiling and machine-readable results, for comparison across versions:
+ * <pre>
+ * java -jar benchmarks/target/benchmarks.jar -prof gc -rf json -rff results.json
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Dlog4j2.configurationFile=log4j2-benchmark.xml")
+public class AfpCombineBenchmark {
+
+    @Param({"10", "100"})
+    public int inputCount;
+
+    @Param({"20"})
+    public int resourceCount;
+
+    @Param({"4096", "262144"})
+    public int resourceSize;
+
+    @Param({"0.0", "0.5"})
+    public double conflictRatio;
+
+    Path directory;
+    Path[] inputs;
+    Path output;
+
+    @Setup(Level.Trial)
+    public void generateCorpus() throws IOException {
+        directory = Files.createTempDirectory("afp-combine-benchmark");
+        inputs = new AfpCorpusGenerator()
+                .inputs(inputCount)
+                .resources(resourceCount)
+                .resourceSize(resourceSize)
+                .pages(resourceCount)
+                .conflictRatio(conflictRatio)
+                .seed(42)
+                .generate(directory);
+        output = directory.resolve("output.afp");
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteCorpus() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    AfpCombine newCombine() {
+        AfpCombine combine = new AfpCombine(output, inputs);
+        combine.setScanIndex(null);
+        return combine;
+    }
+
+    @State(Scope.Thread)
+    public static class New {
+        AfpCombine combine;
+
+        @Setup(Level.Invocation)
+        public void prepare(AfpCombineBenchmark corpus) {
+            combine = corpus.newCombine();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Scanned {
+        AfpCombine combine;
+
+        @Setup(Level.Invocation)
+        public void prepare(AfpCombineBenchmark corpus) throws IOException {
+            combine = corpus.newCombine();
+            combine.scanResources();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Renamed {
+        AfpCombine combine;
+
+        @Setup(Level.Invocation)
+        public void prepare(AfpCombineBenchmark corpus) throws IOException {
+            combine = corpus.newCombine();
+            combine.scanResources();
+            combine.buildRenamingTable();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Prepared {
+        AfpCombine combine;
+
+        @Setup(Level.Invocation)
+        public void prepare(AfpCombineBenchmark corpus) throws IOException {
+            combine = corpus.newCombine();
+            combine.scanResources();
+            combine.buildRenamingTable();
+            combine.buildFormdef();
+        }
+    }
+
+    @Benchmark
+    public void scanResources(New state) throws IOException {
+        state.combine.scanResources();
+    }
+
+    @Benchmark
+    public void buildRenamingTable(Scanned state) throws IOException {
+        state.combine.buildRenamingTable();
+    }
+
+    @Benchmark
+    public void buildFormdef(Renamed state) throws IOException {
+        state.combine.buildFormdef();
+    }
+
+    @Benchmark
+    public void writeResourceGroup(Prepared state) throws IOException {
+        try (AsyncFileOutputStream out = state.combine.newOutputStream();
+             AfpOutputStream aout = new AfpOutputStream(out)) {
+            state.combine.writeResourceGroup(aout, out, (Set<ResourceKey>) null);
+        }
+    }
+
+    @Benchmark
+    public void writeDocuments(Prepared state) throws IOException {
+        try (AsyncFileOutputStream out = state.combine.newOutputStream();
+             AfpOutputStream aout = new AfpOutputStream(out)) {
+            state.combine.writeDocuments(aout, out);
+        }
+    }
+
+    @Benchmark
+    public CombineStatistics endToEnd(New state) throws IOException {
+        return state.combine.run();
+    }
+}
@@ -4,15 +4,29 @@ import org.afplib.io.AfpInputStream;
 import org.afplib.io.AfpOutputStream;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.OpenOption;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 
 import static java.util.Objects.requireNonNull;
 
 public final class AfpFiles {
 
-    public static AfpInputStream newAfpBufferedInputStream(Path path) throws FileNotFoundException {
+    private static final int COMPARE_BUFFER_SIZE = 64 * 1024;
+    private static final int RECORD_BUFFER_SIZE = 64 * 1024;
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    public static final long DEFAULT_MAPPING_WINDOW = 256L * 1024 * 1024;
+
+    public static final String GZIP_SUFFIX = ".gz";
+
+    public static AfpInputStream newAfpBufferedInputStream(Path path) throws IOException {
+        if (isGzip(path)) return newGzipInputStream(path);
         return newAfpInputStreamFrom(new BufferedInputStream(newFileInputStream(path)));
     }
 
@@ -20,20 +34,237 @@ public final class AfpFiles {
         return new AfpInputStream(inputStream);
     }
 
-    public static AfpInputStream newAfpInputStream(Path path) throws FileNotFoundException {
+    public static AfpInputStream newAfpInputStream(Path path) throws IOException {
+        if (isGzip(path)) return newGzipInputStream(path);
         return newAfpInputStreamFrom(newFileInputStream(path));
     }
 
+    private static AfpInputStream newGzipInputStream(Path path) throws IOException {
+        GzipFileChannel channel = GzipFileChannel.open(path);
+        try {
+            return new GzipAfpInputStream(channel);
+        } catch (RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return whether {@code path} is read and written gzip compressed, by the suffix {@value #GZIP_SUFFIX}
+     */
+    public static boolean isGzip(Path path) {
+        requireNonNull(path, "Path is required");
+        Path name = path.getFileName();
+        return name != null && name.toString().endsWith(GZIP_SUFFIX);
+    }
+
+    /**
+     * Opens a channel for reading {@code path}: a {@link GzipFileChannel} on its uncompressed content if it is
+     * gzip compressed, else a plain file channel.
+     */
+    public static FileChannel openInput(Path path) throws IOException {
+        requireNonNull(path, "Path is required");
+        return isGzip(path) ? GzipFileChannel.open(path) : FileChannel.open(path, StandardOpenOption.READ);
+    }
+
     private static FileInputStream newFileInputStream(Path path) throws FileNotFoundException {
         requireNonNull(path, "Path is required");
         return new FileInputStream(path.toFile());
     }
 
+    /**
+     * Opens an {@link AfpInputStream} on a memory mapped view of {@code path}, mapped in windows of
+     * {@link #DEFAULT_MAPPING_WINDOW} bytes. Unlike the buffered variant it supports
+     * {@link AfpInputStream#position(long)}, and seeks need no system call. Gzip compressed files
+     * cannot be mapped and are read as by {@link #newAfpInputStream}.
+     */
+    public static AfpInputStream newAfpMappedInputStream(Path path) throws IOException {
+        return newAfpMappedInputStream(path, DEFAULT_MAPPING_WINDOW);
+    }
+
+    public static AfpInputStream newAfpMappedInputStream(Path path, long windowSize) throws IOException {
+        if (isGzip(path)) return newGzipInputStream(path);
+        return new MappedAfpInputStream(newMappedInputStream(path, windowSize));
+    }
+
+    public static MappedFileInputStream newMappedInputStream(Path path, long windowSize) throws IOException {
+        requireNonNull(path, "Path is required");
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            return new MappedFileInputStream(channel, windowSize);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens a reader for the raw structured fields of {@code path}, starting at {@code position}.
+     */
+    public static AfpRecordReader newAfpRecordReader(Path path, long position) throws IOException {
+        FileChannel channel = openInput(path);
+        try {
+            channel.position(position);
+            return new AfpRecordReader(new BufferedInputStream(Channels.newInputStream(channel), RECORD_BUFFER_SIZE), position);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens a reader for the raw structured fields of {@code path}, starting at {@code position},
+     * on a memory mapped view of the file. Gzip compressed files are read as by {@link #newAfpRecordReader}.
+     */
+    public static AfpRecordReader newAfpMappedRecordReader(Path path, long position) throws IOException {
+        return newAfpMappedRecordReader(path, position, DEFAULT_MAPPING_WINDOW);
+    }
+
+    public static AfpRecordReader newAfpMappedRecordReader(Path path, long position, long windowSize) throws IOException {
+        if (isGzip(path)) return newAfpRecordReader(path, position);
+        MappedFileInputStream in = newMappedInputStream(path, windowSize);
+        try {
+            in.seek(position);
+            return new AfpRecordReader(in, position);
+        } catch (IOException | RuntimeException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return true if there is a structured field introducer at {@code position}, without leading
+     * record length bytes
+     */
+    public static boolean isStructuredFieldAt(FileChannel channel, long position) throws IOException {
+        ByteBuffer cc = ByteBuffer.allocate(1);
+        return channel.read(cc, position) == 1 && cc.get(0) == AfpRecordReader.CARRIAGE_CONTROL;
+    }
+
+    /**
+     * Reads the raw structured field starting at {@code position}, including its carriage control byte.
+     */
+    public static byte[] readStructuredField(FileChannel channel, long position) throws IOException {
+        requireNonNull(channel, "Channel is required");
+        byte[] introducer = new byte[3];
+        readFully(channel, introducer, introducer.length, position);
+        if ((introducer[0] & 0xff) != AfpRecordReader.CARRIAGE_CONTROL)
+            throw new IOException(String.format("expected structured field at offset %d, found 0x%02X", position, introducer[0] & 0xff));
+
+        byte[] record = new byte[((introducer[1] & 0xff) << 8 | introducer[2] & 0xff) + 1];
+        readFully(channel, record, record.length, position);
+        return record;
+    }
+
     public static AfpOutputStream newAfpBufferedOutputStream(Path path, OpenOption... options) throws IOException {
         return new AfpOutputStream(
                 new BufferedOutputStream(Files.newOutputStream(path, options)));
     }
 
+    public static AfpOutputStream newAfpBufferedOutputStream(WritableByteChannel channel) {
+        requireNonNull(channel, "Channel is required");
+        return new AfpOutputStream(
+                new BufferedOutputStream(Channels.newOutputStream(channel)));
+    }
+
+    /**
+     * Creates or truncates {@code path} and opens an output stream on it that is written
+     * by a background thread through {@code buffers} buffers of {@code bufferSize} bytes. If {@code path}
+     * {@linkplain #isGzip is gzip compressed}, the bytes are compressed by the writer thread, in members that
+     * a {@link GzipFileChannel} can seek to when the file is read again.
+     */
+    public static AsyncFileOutputStream newAsyncOutputStream(Path path, int buffers, int bufferSize) throws IOException {
+        requireNonNull(path, "Path is required");
+        FileChannel file = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        WritableByteChannel channel = isGzip(path) ? new GzipOutputChannel(file) : file;
+        try {
+            return new AsyncFileOutputStream(channel, buffers, bufferSize);
+        } catch (RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Copies {@code count} bytes of {@code source} starting at {@code position} to the current
+     * position of {@code target}, using {@link FileChannel#transferTo} so the bytes need not pass
+     * through user space. Anything buffered on top of {@code target} must be flushed before.
+     *
+     * If a transfer copies nothing, which it does at the end of {@code source} but may also do for
+     * channels that do not support it, the rest is copied through a buffer.
+     *
+     * @return the number of bytes copied, less than {@code count} only at the end of {@code source}
+     */
+    public static long transfer(FileChannel source, long position, long count, WritableByteChannel target) throws IOException {
+        long done = 0;
+        while (done < count) {
+            long l = source.transferTo(position + done, count - done, target);
+            if (l <= 0) break;
+            done += l;
+        }
+        if (done < count)
+            done += copy(source, position + done, count - done, target);
+        return done;
+    }
+
+    private static long copy(FileChannel source, long position, long count, WritableByteChannel target) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(count, COPY_BUFFER_SIZE));
+        long done = 0;
+        while (done < count) {
+            buffer.clear().limit((int) Math.min(count - done, buffer.capacity()));
+            int l = source.read(buffer, position + done);
+            if (l < 0) break;
+            buffer.flip();
+            while (buffer.hasRemaining())
+                target.write(buffer);
+            done += l;
+        }
+        return done;
+    }
+
+    /**
+     * Compares {@code length} bytes of {@code path1} starting at {@code position1}
+     * with {@code length} bytes of {@code path2} starting at {@code position2}.
+     */
+    public static boolean contentEquals(Path path1, long position1, Path path2, long position2, long length) throws IOException {
+        requireNonNull(path1, "Path is required");
+        requireNonNull(path2, "Path is required");
+        try (FileChannel channel1 = openInput(path1);
+             FileChannel channel2 = openInput(path2)) {
+            byte[] buffer1 = new byte[(int) Math.min(length, COMPARE_BUFFER_SIZE)];
+            byte[] buffer2 = new byte[buffer1.length];
+            for (long done = 0; done < length; ) {
+                int l = (int) Math.min(length - done, buffer1.length);
+                readFully(channel1, buffer1, l, position1 + done);
+                readFully(channel2, buffer2, l, position2 + done);
+                for (int i = 0; i < l; i++)
+                    if (buffer1[i] != buffer2[i]) return false;
+                done += l;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Reads {@code length} bytes of {@code path} starting at {@code position}.
+     */
+    public static byte[] readBytes(Path path, long position, int length) throws IOException {
+        try (FileChannel channel = openInput(path)) {
+            byte[] bytes = new byte[length];
+            readFully(channel, bytes, length, position);
+            return bytes;
+        }
+    }
+
+    private static void readFully(FileChannel channel, byte[] buffer, int length, long position) throws IOException {
+        ByteBuffer dst = ByteBuffer.wrap(buffer, 0, length);
+        while (dst.hasRemaining()) {
+            if (channel.read(dst, position + dst.position()) < 0)
+                throw new EOFException("unexpected end of file at " + (position + dst.position()));
+        }
+    }
+
     private AfpFiles() {
     }
 }
@@ -0,0 +1,118 @@
+package afp.file;
+
+import org.afplib.base.SF;
+import org.afplib.io.AfpInputStream;
+
+import java.io.*;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Reads structured fields as raw records without decoding them. Only the identifier
+ * in the structured field introducer is looked at; a record is turned into an
+ * {@link SF} only on request with {@link #decode()}.
+ * <p>
+ * The buffer returned by {@link #getBuffer()} is reused for the next record.
+ */
+public class AfpRecordReader implements Closeable {
+
+    public static final int CARRIAGE_CONTROL = 0x5A;
+
+    private static final int INTRODUCER_LENGTH = 9;
+
+    private final InputStream in;
+    private byte[] buffer = new byte[8 * 1024];
+    private int length;
+    private long offset, recordOffset;
+
+    public AfpRecordReader(InputStream in, long offset) {
+        this.in = requireNonNull(in, "InputStream is required");
+        this.offset = offset;
+    }
+
+    /**
+     * Reads the next record.
+     *
+     * @return false at the end of the input
+     */
+    public boolean next() throws IOException {
+        int cc = in.read();
+        if (cc < 0) {
+            length = 0;
+            return false;
+        }
+        if (cc != CARRIAGE_CONTROL)
+            throw new IOException(String.format("expected structured field at offset %d, found 0x%02X", offset, cc));
+
+        int hi = in.read(), lo = in.read();
+        if (lo < 0) throw new EOFException("truncated structured field at offset " + offset);
+        int sfLength = hi << 8 | lo;
+        if (sfLength < INTRODUCER_LENGTH - 1)
+            throw new IOException("invalid structured field length " + sfLength + " at offset " + offset);
+
+        length = sfLength + 1;
+        if (buffer.length < length) buffer = new byte[Math.max(length, buffer.length * 2)];
+        buffer[0] = (byte) cc;
+        buffer[1] = (byte) hi;
+        buffer[2] = (byte) lo;
+        for (int done = 3; done < length; ) {
+            int l = in.read(buffer, done, length - done);
+            if (l < 0) throw new EOFException("truncated structured field at offset " + offset);
+            done += l;
+        }
+
+        recordOffset = offset;
+        offset += length;
+        return true;
+    }
+
+    /**
+     * @return the three byte structured field identifier of the current record, as in {@code SFName}
+     */
+    public int getId() {
+        return (buffer[3] & 0xff) << 16 | (buffer[4] & 0xff) << 8 | buffer[5] & 0xff;
+    }
+
+    public byte[] getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * @return the length of the current record including the carriage control byte
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * @return the offset of the current record in the input
+     */
+    public long getRecordOffset() {
+        return recordOffset;
+    }
+
+    /**
+     * @return the offset just after the current record
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    public SF decode() throws IOException {
+        return decode(buffer, length);
+    }
+
+    /**
+     * Decodes a raw structured field that starts with its carriage control byte.
+     */
+    public static SF decode(byte[] record, int length) throws IOException {
+        try (AfpInputStream ain = new AfpInputStream(new ByteArrayInputStream(record, 0, length))) {
+            return ain.readStructuredField();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
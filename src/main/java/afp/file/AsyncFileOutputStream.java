@@ -0,0 +1,271 @@
+package afp.file;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * An output stream on a channel, usually a file channel, that is written by a background thread.
+ * <p>
+ * Written bytes are collected in one of a fixed number of buffers. A full buffer is
+ * handed to the writer thread and the caller continues with the next free one, so
+ * producing data and writing it to disk overlap. Ranges of other files can be
+ * appended with {@link #transferFrom}, which keeps the order with the buffered data.
+ * An error of the writer thread, including unchecked exceptions and errors of the channel, is
+ * thrown as an {@link IOException} by the next call on the stream.
+ */
+public class AsyncFileOutputStream extends OutputStream {
+
+    private final WritableByteChannel channel;
+    private final BlockingQueue<Chunk> free;
+    private final BlockingQueue<Task> tasks = new LinkedBlockingQueue<>();
+    private final Thread writer;
+    private volatile IOException failure;
+    private Chunk current;
+    private long position;
+    private boolean closed;
+
+    public AsyncFileOutputStream(WritableByteChannel channel, int buffers, int bufferSize) {
+        this.channel = requireNonNull(channel, "Channel is required");
+        if (buffers < 1 || bufferSize < 1)
+            throw new IllegalArgumentException("at least one buffer of at least one byte is required");
+
+        free = new ArrayBlockingQueue<>(buffers);
+        for (int i = 0; i < buffers; i++)
+            free.add(new Chunk(new byte[bufferSize]));
+
+        writer = new Thread(this::drain, "afp-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    private abstract static class Task {
+        /** writes to the channel */
+        abstract void run(WritableByteChannel channel) throws IOException;
+
+        /** called instead of {@link #run} after the writer failed */
+        abstract void skip(IOException failure);
+    }
+
+    private final class Chunk extends Task {
+        final byte[] data;
+        int length;
+
+        Chunk(byte[] data) {
+            this.data = data;
+        }
+
+        @Override
+        void run(WritableByteChannel channel) throws IOException {
+            try {
+                ByteBuffer src = ByteBuffer.wrap(data, 0, length);
+                while (src.hasRemaining())
+                    channel.write(src);
+            } finally {
+                recycle();
+            }
+        }
+
+        @Override
+        void skip(IOException failure) {
+            recycle();
+        }
+
+        private void recycle() {
+            length = 0;
+            free.add(this);
+        }
+    }
+
+    private static final class Transfer extends Task {
+        final FileChannel source;
+        final long position, count;
+        long transferred = -1;
+        IOException failure;
+
+        Transfer(FileChannel source, long position, long count) {
+            this.source = source;
+            this.position = position;
+            this.count = count;
+        }
+
+        @Override
+        void run(WritableByteChannel channel) throws IOException {
+            try {
+                long l = AfpFiles.transfer(source, position, count, channel);
+                done(l, null);
+            } catch (Throwable e) {
+                done(0, asIOException(e));
+                throw e;
+            }
+        }
+
+        @Override
+        void skip(IOException failure) {
+            done(0, failure);
+        }
+
+        synchronized void done(long transferred, IOException failure) {
+            this.transferred = transferred;
+            this.failure = failure;
+            notifyAll();
+        }
+
+        synchronized long await() throws IOException {
+            try {
+                while (transferred < 0)
+                    wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while transferring to output");
+            }
+            if (failure != null) throw new IOException("unable to write output", failure);
+            return transferred;
+        }
+    }
+
+    private static final Task STOP = new Task() {
+        @Override
+        void run(WritableByteChannel channel) {
+        }
+
+        @Override
+        void skip(IOException failure) {
+        }
+    };
+
+    private void drain() {
+        while (true) {
+            Task task;
+            try {
+                task = tasks.take();
+            } catch (InterruptedException e) {
+                failure = new InterruptedIOException("writer thread interrupted");
+                continue;
+            }
+            if (task == STOP) return;
+            if (failure != null) {
+                task.skip(failure);
+                continue;
+            }
+            try {
+                task.run(channel);
+            } catch (Throwable e) {
+                // the thread keeps running, skipping the remaining tasks, so that no caller waits forever
+                failure = asIOException(e);
+            }
+        }
+    }
+
+    private static IOException asIOException(Throwable e) {
+        return e instanceof IOException ? (IOException) e : new IOException("writer thread failed", e);
+    }
+
+    private void checkFailure() throws IOException {
+        if (failure != null) throw new IOException("unable to write output", failure);
+    }
+
+    private Chunk current() throws IOException {
+        if (closed) throw new IOException("stream is closed");
+        if (current == null) {
+            checkFailure();
+            try {
+                current = free.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while waiting for a free buffer");
+            }
+        }
+        return current;
+    }
+
+    private void handOff() throws IOException {
+        if (current != null && current.length > 0) {
+            tasks.add(current);
+            current = null;
+        }
+        checkFailure();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        Chunk chunk = current();
+        chunk.data[chunk.length++] = (byte) b;
+        position++;
+        if (chunk.length == chunk.data.length) handOff();
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            Chunk chunk = current();
+            int l = Math.min(len, chunk.data.length - chunk.length);
+            System.arraycopy(b, off, chunk.data, chunk.length, l);
+            chunk.length += l;
+            position += l;
+            off += l;
+            len -= l;
+            if (chunk.length == chunk.data.length) handOff();
+        }
+    }
+
+    /**
+     * Appends {@code count} bytes of {@code source} starting at {@code position} after all data
+     * written so far, channel to channel. Returns when the bytes have been copied, so the caller
+     * may close {@code source} afterwards.
+     *
+     * @return the number of bytes copied, less than {@code count} only at the end of {@code source}
+     */
+    public long transferFrom(FileChannel source, long position, long count) throws IOException {
+        if (closed) throw new IOException("stream is closed");
+        handOff();
+        Transfer transfer = new Transfer(source, position, count);
+        tasks.add(transfer);
+        long transferred = transfer.await();
+        this.position += transferred;
+        return transferred;
+    }
+
+    /**
+     * @return the number of bytes written to this stream so far, whether or not they are on disk yet
+     */
+    public long position() {
+        return position;
+    }
+
+    /**
+     * Hands the current buffer to the writer thread, without waiting for it to be written.
+     */
+    @Override
+    public void flush() throws IOException {
+        if (!closed) handOff();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        try {
+            handOff();
+        } finally {
+            closed = true;
+            tasks.add(STOP);
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while closing output");
+            } finally {
+                channel.close();
+            }
+        }
+        checkFailure();
+    }
+}
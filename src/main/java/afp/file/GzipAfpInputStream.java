@@ -0,0 +1,34 @@
+package afp.file;
+
+import org.afplib.io.AfpInputStream;
+
+import java.io.IOException;
+
+/**
+ * An {@link AfpInputStream} on the uncompressed content of a gzip file. Offsets are those of the
+ * uncompressed content, taken from the {@link GzipFileChannel}, whose window buffers the reads, so
+ * {@link #position(long)} works as on an uncompressed file.
+ */
+final class GzipAfpInputStream extends AfpInputStream {
+
+    private final GzipFileChannel channel;
+
+    GzipAfpInputStream(GzipFileChannel channel) {
+        super(channel.newInputStream());
+        this.channel = channel;
+    }
+
+    @Override
+    public long getCurrentOffset() {
+        try {
+            return channel.position();
+        } catch (IOException e) {
+            throw new IllegalStateException("gzip input is closed", e);
+        }
+    }
+
+    @Override
+    public void position(long position) throws IOException {
+        channel.position(position);
+    }
+}
@@ -0,0 +1,447 @@
+package afp.file;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * A read-only file channel on the uncompressed content of a gzip file, so that compressed input files can be
+ * read at any offset without decompressing them to disk.
+ * <p>
+ * The content is inflated on the fly into a window, from which reads and seeks close behind the current position
+ * are served. A seek further back starts inflating again at the beginning of the gzip member that contains the
+ * offset. Where the members begin is recorded in a seek index while the file is read, which is kept for the
+ * recently read files of the JVM and shared by all channels on the same file, together with the uncompressed
+ * size once it is known. A file of one member can only be inflated from its start, so files written in blocks of
+ * several members, as by {@link AfpFiles#newAsyncOutputStream} or by bgzip, seek much faster.
+ */
+public final class GzipFileChannel extends FileChannel {
+
+    private static final int WINDOW_SIZE = 256 * 1024;
+    private static final int INPUT_SIZE = 64 * 1024;
+    private static final int HEADER_SIZE = 10, TRAILER_SIZE = 8;
+    private static final int FHCRC = 2, FEXTRA = 4, FNAME = 8, FCOMMENT = 16;
+    private static final int SEEK_INDEXES = 256;
+
+    /**
+     * Where the gzip members of a file begin, in the compressed and the uncompressed file.
+     */
+    private static final class SeekIndex {
+        long[] compressed = {0}, uncompressed = {0};
+        int members = 1;
+        long size = -1;
+
+        synchronized void add(long compressedStart, long uncompressedStart) {
+            if (uncompressedStart <= uncompressed[members - 1]) return;
+            if (members == compressed.length) {
+                compressed = Arrays.copyOf(compressed, 2 * members);
+                uncompressed = Arrays.copyOf(uncompressed, 2 * members);
+            }
+            compressed[members] = compressedStart;
+            uncompressed[members] = uncompressedStart;
+            members++;
+        }
+
+        /**
+         * @return the last member that begins at or before {@code position}, as far as known
+         */
+        synchronized int memberAt(long position) {
+            int i = Arrays.binarySearch(uncompressed, 0, members, position);
+            return i >= 0 ? i : -i - 2;
+        }
+    }
+
+    private static final class Key {
+        final Path path;
+        final long size, lastModified;
+        final Object fileKey;
+
+        Key(Path path, BasicFileAttributes attributes) {
+            this.path = path;
+            this.size = attributes.size();
+            this.lastModified = attributes.lastModifiedTime().toMillis();
+            this.fileKey = attributes.fileKey();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key other = (Key) o;
+            return path.equals(other.path) && size == other.size && lastModified == other.lastModified
+                    && Objects.equals(fileKey, other.fileKey);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(path, size, lastModified);
+        }
+    }
+
+    private static final Map<Key, SeekIndex> SEEK_INDEXES_BY_FILE = new LinkedHashMap<Key, SeekIndex>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, SeekIndex> eldest) {
+            return size() > SEEK_INDEXES;
+        }
+    };
+
+    private final Path path;
+    private final FileChannel file;
+    private final SeekIndex seekIndex;
+    private final Inflater inflater = new Inflater(true);
+    private final CRC32 crc = new CRC32();
+    private final byte[] input = new byte[INPUT_SIZE];
+    private final byte[] window = new byte[WINDOW_SIZE];
+    private long windowStart;
+    private int windowLength;
+    private long compressedPosition, memberSize;
+    private boolean end;
+    private long position;
+
+    private GzipFileChannel(Path path, FileChannel file, SeekIndex seekIndex) throws IOException {
+        this.path = path;
+        this.file = file;
+        this.seekIndex = seekIndex;
+        restart(0);
+    }
+
+    /**
+     * Opens a gzip file for reading its uncompressed content.
+     */
+    public static GzipFileChannel open(Path path) throws IOException {
+        requireNonNull(path, "Path is required");
+        Path absolute = path.toAbsolutePath().normalize();
+        FileChannel file = FileChannel.open(absolute, StandardOpenOption.READ);
+        try {
+            Key key = new Key(absolute, Files.readAttributes(absolute, BasicFileAttributes.class));
+            SeekIndex seekIndex;
+            synchronized (SEEK_INDEXES_BY_FILE) {
+                seekIndex = SEEK_INDEXES_BY_FILE.computeIfAbsent(key, k -> new SeekIndex());
+            }
+            return new GzipFileChannel(absolute, file, seekIndex);
+        } catch (IOException | RuntimeException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Starts inflating at the beginning of a member.
+     */
+    private void restart(int member) throws IOException {
+        long compressedStart, uncompressedStart;
+        synchronized (seekIndex) {
+            compressedStart = seekIndex.compressed[member];
+            uncompressedStart = seekIndex.uncompressed[member];
+        }
+        windowStart = uncompressedStart;
+        windowLength = 0;
+        end = false;
+        if (!beginMember(compressedStart, uncompressedStart) && member == 0)
+            throw new ZipException(path + " is not in gzip format");
+    }
+
+    /**
+     * Reads the header of the member at {@code compressedStart}.
+     *
+     * @return false if there is no further member
+     */
+    private boolean beginMember(long compressedStart, long uncompressedStart) throws IOException {
+        ByteBuffer header = ByteBuffer.wrap(input);
+        int length = readFully(header, compressedStart);
+        if (length < HEADER_SIZE || (input[0] & 0xff) != 0x1f || (input[1] & 0xff) != 0x8b) {
+            // trailing bytes after the last member are ignored, like GZIPInputStream does
+            end = true;
+            return false;
+        }
+        if (input[2] != 8) throw new ZipException(path + ": unsupported compression method " + input[2]);
+        int flags = input[3] & 0xff;
+        int offset = HEADER_SIZE;
+        if ((flags & FEXTRA) != 0) offset += 2 + ((input[offset] & 0xff) | (input[offset + 1] & 0xff) << 8);
+        if ((flags & FNAME) != 0) offset = skipString(offset, length);
+        if ((flags & FCOMMENT) != 0) offset = skipString(offset, length);
+        if ((flags & FHCRC) != 0) offset += 2;
+        if (offset > length) throw new ZipException(path + ": gzip header at " + compressedStart + " is too long");
+
+        seekIndex.add(compressedStart, uncompressedStart);
+        inflater.reset();
+        crc.reset();
+        memberSize = 0;
+        compressedPosition = compressedStart + offset;
+        return true;
+    }
+
+    private int skipString(int offset, int length) throws ZipException {
+        while (offset < length && input[offset] != 0) offset++;
+        if (offset == length) throw new ZipException(path + ": gzip header is too long");
+        return offset + 1;
+    }
+
+    private int readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (file.read(buffer, position + buffer.position()) < 0) break;
+        }
+        return buffer.position();
+    }
+
+    /**
+     * Inflates the next part of the content into the window.
+     *
+     * @return false at the end of the content
+     */
+    private boolean advance() throws IOException {
+        windowStart += windowLength;
+        windowLength = 0;
+        try {
+            while (!end && windowLength == 0) {
+                if (inflater.finished()) {
+                    endMember();
+                } else if (inflater.needsInput()) {
+                    int l = file.read(ByteBuffer.wrap(input), compressedPosition);
+                    if (l < 0) throw new EOFException(path + ": unexpected end of gzip file");
+                    compressedPosition += l;
+                    inflater.setInput(input, 0, l);
+                } else {
+                    windowLength = inflater.inflate(window);
+                    if (windowLength == 0 && inflater.needsDictionary())
+                        throw new ZipException(path + ": gzip member needs a dictionary");
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new ZipException(path + ": " + e.getMessage());
+        }
+        crc.update(window, 0, windowLength);
+        memberSize += windowLength;
+        return windowLength > 0;
+    }
+
+    private void endMember() throws IOException {
+        long trailer = compressedPosition - inflater.getRemaining();
+        ByteBuffer bytes = ByteBuffer.allocate(TRAILER_SIZE);
+        if (readFully(bytes, trailer) < TRAILER_SIZE) throw new EOFException(path + ": unexpected end of gzip file");
+        long expectedCrc = (bytes.get(0) & 0xffL) | (bytes.get(1) & 0xffL) << 8 | (bytes.get(2) & 0xffL) << 16 | (bytes.get(3) & 0xffL) << 24;
+        long expectedSize = (bytes.get(4) & 0xffL) | (bytes.get(5) & 0xffL) << 8 | (bytes.get(6) & 0xffL) << 16 | (bytes.get(7) & 0xffL) << 24;
+        if (expectedCrc != crc.getValue() || expectedSize != (memberSize & 0xffffffffL))
+            throw new ZipException(path + ": corrupt gzip member ending at " + trailer);
+
+        if (!beginMember(trailer + TRAILER_SIZE, windowStart)) {
+            synchronized (seekIndex) {
+                seekIndex.size = windowStart;
+            }
+        }
+    }
+
+    /**
+     * Makes the window contain {@code position}, inflating from the member that contains it if it is behind.
+     *
+     * @return false if {@code position} is at or after the end of the content
+     */
+    private boolean seek(long position) throws IOException {
+        if (position < windowStart) {
+            int member = seekIndex.memberAt(position);
+            restart(member);
+        }
+        while (position >= windowStart + windowLength) {
+            if (!advance()) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized int read(ByteBuffer dst, long position) throws IOException {
+        ensureOpen();
+        if (!dst.hasRemaining()) return 0;
+        int done = 0;
+        while (dst.hasRemaining() && seek(position + done)) {
+            int offset = (int) (position + done - windowStart);
+            int l = Math.min(dst.remaining(), windowLength - offset);
+            dst.put(window, offset, l);
+            done += l;
+        }
+        return done == 0 ? -1 : done;
+    }
+
+    @Override
+    public synchronized int read(ByteBuffer dst) throws IOException {
+        int l = read(dst, position);
+        if (l > 0) position += l;
+        return l;
+    }
+
+    @Override
+    public synchronized long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+        long done = 0;
+        for (int i = offset; i < offset + length; i++) {
+            if (!dsts[i].hasRemaining()) continue;
+            int l = read(dsts[i]);
+            if (l < 0) return done == 0 ? -1 : done;
+            done += l;
+            if (dsts[i].hasRemaining()) break;
+        }
+        return done;
+    }
+
+    @Override
+    public synchronized long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        ensureOpen();
+        long done = 0;
+        while (done < count && seek(position + done)) {
+            int offset = (int) (position + done - windowStart);
+            int l = (int) Math.min(count - done, windowLength - offset);
+            ByteBuffer src = ByteBuffer.wrap(window, offset, l);
+            while (src.hasRemaining())
+                target.write(src);
+            done += l;
+        }
+        return done;
+    }
+
+    @Override
+    public synchronized long position() throws IOException {
+        ensureOpen();
+        return position;
+    }
+
+    @Override
+    public synchronized FileChannel position(long newPosition) throws IOException {
+        ensureOpen();
+        if (newPosition < 0) throw new IllegalArgumentException("negative position " + newPosition);
+        position = newPosition;
+        return this;
+    }
+
+    /**
+     * @return the uncompressed size, which takes inflating the rest of the file once if it was not read to the end
+     * before
+     */
+    @Override
+    public long size() throws IOException {
+        ensureOpen();
+        synchronized (seekIndex) {
+            if (seekIndex.size >= 0) return seekIndex.size;
+        }
+        // another channel keeps the position of this one
+        try (GzipFileChannel channel = open(path)) {
+            channel.seek(seekIndex.uncompressed[seekIndex.memberAt(Long.MAX_VALUE)]);
+            while (channel.advance()) {
+                // inflating to the end records the size
+            }
+        }
+        synchronized (seekIndex) {
+            return seekIndex.size;
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (!isOpen()) throw new ClosedChannelException();
+    }
+
+    /**
+     * An input stream on the content of the channel, starting at its current position, which it keeps.
+     */
+    InputStream newInputStream() {
+        return new InputStream() {
+            @Override
+            public int read() throws IOException {
+                synchronized (GzipFileChannel.this) {
+                    if (!seek(position)) return -1;
+                    return window[(int) (position++ - windowStart)] & 0xff;
+                }
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int l = GzipFileChannel.this.read(ByteBuffer.wrap(b, off, len));
+                return len == 0 ? 0 : l;
+            }
+
+            @Override
+            public long skip(long n) {
+                synchronized (GzipFileChannel.this) {
+                    long l = Math.max(0, n);
+                    position += l;
+                    return l;
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                GzipFileChannel.this.close();
+            }
+        };
+    }
+
+    @Override
+    public int write(ByteBuffer src) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public int write(ByteBuffer src, long position) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public FileChannel truncate(long size) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public long transferFrom(ReadableByteChannel src, long position, long count) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public void force(boolean metaData) {
+    }
+
+    @Override
+    public MappedByteBuffer map(MapMode mode, long position, long size) {
+        throw new UnsupportedOperationException("compressed files cannot be mapped");
+    }
+
+    @Override
+    public FileLock lock(long position, long size, boolean shared) throws IOException {
+        return file.lock(position, size, shared);
+    }
+
+    @Override
+    public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+        return file.tryLock(position, size, shared);
+    }
+
+    @Override
+    protected void implCloseChannel() throws IOException {
+        try {
+            file.close();
+        } finally {
+            inflater.end();
+        }
+    }
+}
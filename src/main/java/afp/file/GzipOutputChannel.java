@@ -0,0 +1,105 @@
+package afp.file;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * A channel that writes gzip compressed bytes to another channel. The bytes are compressed in members of
+ * {@link #MEMBER_SIZE} uncompressed bytes each, so a {@link GzipFileChannel} reading the file later can seek to
+ * the member an offset is in, instead of inflating the file from its start.
+ */
+final class GzipOutputChannel implements WritableByteChannel {
+
+    static final int MEMBER_SIZE = 8 * 1024 * 1024;
+
+    private static final byte[] HEADER = {0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+    private final WritableByteChannel out;
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    private final CRC32 crc = new CRC32();
+    private final byte[] input = new byte[64 * 1024];
+    private final byte[] output = new byte[64 * 1024];
+    private int memberSize;
+    private boolean inMember, open = true;
+
+    GzipOutputChannel(WritableByteChannel out) {
+        this.out = requireNonNull(out, "Channel is required");
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        if (!open) throw new ClosedChannelException();
+        int written = src.remaining();
+        while (src.hasRemaining()) {
+            if (!inMember) beginMember();
+            int l = Math.min(Math.min(src.remaining(), input.length), MEMBER_SIZE - memberSize);
+            src.get(input, 0, l);
+            crc.update(input, 0, l);
+            deflater.setInput(input, 0, l);
+            while (!deflater.needsInput())
+                writeOutput(deflater.deflate(output));
+            memberSize += l;
+            if (memberSize == MEMBER_SIZE) endMember();
+        }
+        return written;
+    }
+
+    private void beginMember() throws IOException {
+        writeFully(ByteBuffer.wrap(HEADER));
+        deflater.reset();
+        crc.reset();
+        memberSize = 0;
+        inMember = true;
+    }
+
+    private void endMember() throws IOException {
+        deflater.finish();
+        while (!deflater.finished())
+            writeOutput(deflater.deflate(output));
+        ByteBuffer trailer = ByteBuffer.allocate(8);
+        int value = (int) crc.getValue();
+        for (int i = 0; i < 8; i++, value >>>= 8) {
+            if (i == 4) value = memberSize;
+            trailer.put((byte) value);
+        }
+        trailer.flip();
+        writeFully(trailer);
+        inMember = false;
+    }
+
+    private void writeOutput(int length) throws IOException {
+        if (length > 0) writeFully(ByteBuffer.wrap(output, 0, length));
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining())
+            out.write(buffer);
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * Ends the last member, or writes an empty one if nothing was written, and closes the underlying channel.
+     */
+    @Override
+    public void close() throws IOException {
+        if (!open) return;
+        open = false;
+        try {
+            if (!inMember) beginMember();
+            endMember();
+        } finally {
+            deflater.end();
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package afp.file;
+
+import org.afplib.io.AfpInputStream;
+
+import java.io.IOException;
+
+/**
+ * An {@link AfpInputStream} on a {@link MappedFileInputStream}. Offsets are taken from the
+ * mapped stream, so {@link #position(long)} works without a file channel and without a
+ * system call.
+ */
+final class MappedAfpInputStream extends AfpInputStream {
+
+    private final MappedFileInputStream in;
+
+    MappedAfpInputStream(MappedFileInputStream in) {
+        super(in);
+        this.in = in;
+    }
+
+    @Override
+    public long getCurrentOffset() {
+        return in.position();
+    }
+
+    @Override
+    public void position(long position) throws IOException {
+        in.seek(position);
+    }
+}
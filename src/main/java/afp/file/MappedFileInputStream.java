@@ -0,0 +1,102 @@
+package afp.file;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.Buffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * An input stream on a memory mapped file. The file is mapped in windows of a fixed
+ * size, so files larger than 2 GB can be read; the window slides along when the
+ * position leaves it. Reads and seeks within a window need no system call.
+ */
+public class MappedFileInputStream extends InputStream {
+
+    private final FileChannel channel;
+    private final long size;
+    private final long windowSize;
+    private MappedByteBuffer window;
+    private long windowStart;
+    private long position;
+
+    public MappedFileInputStream(FileChannel channel, long windowSize) throws IOException {
+        this.channel = requireNonNull(channel, "Channel is required");
+        if (windowSize < 1 || windowSize > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("invalid window size " + windowSize);
+        this.windowSize = windowSize;
+        this.size = channel.size();
+    }
+
+    public long position() {
+        return position;
+    }
+
+    public void seek(long position) throws IOException {
+        if (position < 0 || position > size)
+            throw new EOFException("position " + position + " is outside of the file (" + size + " bytes)");
+        this.position = position;
+    }
+
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Makes sure the window contains the current position and that the buffer position matches it.
+     *
+     * @return the number of bytes left in the window from the current position
+     */
+    private int window() throws IOException {
+        if (window == null || position < windowStart || position >= windowStart + window.capacity()) {
+            windowStart = position - position % windowSize;
+            window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, Math.min(windowSize, size - windowStart));
+        }
+        // the cast keeps the Java 8 signature of Buffer.position(int)
+        ((Buffer) window).position((int) (position - windowStart));
+        return window.remaining();
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (position >= size) return -1;
+        window();
+        position++;
+        return window.get() & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        if (position >= size) return -1;
+        int done = 0;
+        while (done < len && position < size) {
+            int l = Math.min(len - done, window());
+            window.get(b, off + done, l);
+            position += l;
+            done += l;
+        }
+        return done;
+    }
+
+    @Override
+    public long skip(long n) {
+        long l = Math.max(0, Math.min(n, size - position));
+        position += l;
+        return l;
+    }
+
+    @Override
+    public int available() {
+        return (int) Math.min(size - position, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public void close() throws IOException {
+        window = null;
+        channel.close();
+    }
+}
@@ -1,6 +1,11 @@
 package afp.file.combine;
 
 import afp.file.AfpFiles;
+import afp.file.AfpRecordReader;
+import afp.file.AsyncFileOutputStream;
+import afp.file.combine.CombineStatistics.Phase;
+import afp.file.combine.CombineStatistics.PhaseStatistics;
+import afp.file.combine.CombineStatistics.PhaseTimer;
 import org.afplib.ResourceKey;
 import org.afplib.afplib.*;
 import org.afplib.base.SF;
@@ -15,41 +20,54 @@ import org.eclipse.emf.ecore.EObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.nio.charset.Charset;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 public class AfpCombine {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(AfpCombine.class);
 
-    static class Resource {
-        long start, end, ersPos;
-        byte[] content;
-        String hash;
+    static class Region {
+        long start, end;
+        Fingerprint hash;
     }
 
-    static class MediumMap {
-        long start, end;
-        byte[] content;
-        LinkedList<SF> sfs = new LinkedList<>();
-        String hash;
+    static class Resource extends Region {
+        long ersPos;
+    }
+
+    static class MediumMap extends Region {
     }
 
     static class InputFile {
-        private final Path path;
+        final Path path;
         List<ResourceKey> resources = new LinkedList<>();
         Map<ResourceKey, Resource> filePos = new HashMap<>();
         Map<ResourceKey, String> renamings = new HashMap<>();
         Map<String, String> renameIMM = new HashMap<>();
         long documentStart;
-        LinkedList<SF> formdef = new LinkedList<>();
+        // the inline formdef, from its BFM to its EFM; the bytes are only kept within the memory budget
+        long formdefStart, formdefEnd;
+        byte[] formdef;
         LinkedList<String> mmNames = new LinkedList<>();
         Map<String, MediumMap> mediumMaps = new HashMap<>();
 
@@ -60,240 +78,1252 @@ public class AfpCombine {
         String getName() {
             return path.getFileName().toString();
         }
+
+        void clearScan() {
+            resources.clear();
+            filePos.clear();
+            documentStart = 0;
+            formdefStart = formdefEnd = 0;
+            formdef = null;
+            mmNames.clear();
+            mediumMaps.clear();
+        }
     }
 
     private final Path outFile;
-    private final InputFile[] inputFiles;
-    private final MessageDigest algorithm;
-    private final LinkedList<String> resourceNames = new LinkedList<>();
-    private final LinkedList<String> mmNames = new LinkedList<>();
+    private final List<InputFile> inputFiles;
+    private Supplier<Fingerprinter> fingerprinters;
+    private String fingerprintAlgorithm;
+    private int parallelism = Integer.getInteger("afp.combine.parallelism",
+            Runtime.getRuntime().availableProcessors());
+    private ScanIndex scanIndex;
+    private ScanCache scanCache;
+    private boolean memoryMapped = Boolean.parseBoolean(System.getProperty("afp.combine.mmap", "true"));
+    private boolean patchNames = Boolean.parseBoolean(System.getProperty("afp.combine.patchNames", "true"));
+    private int outputBuffers = Integer.getInteger("afp.combine.output.buffers", 2);
+    private int outputBufferSize = Integer.getInteger("afp.combine.output.bufferSize", 1024 * 1024);
+    private final Map<Integer, NameAllocator> resourceNames = new HashMap<>();
+    private final NameAllocator mmNames = new NameAllocator("medium maps");
     private SF[] formdef;
     private final boolean checkResourceEquality = true;
-
+    private final CombineStatistics statistics = new CombineStatistics();
+    private long memoryBudget = Long.getLong("afp.combine.memoryBudget", Runtime.getRuntime().maxMemory() / 4);
+    private AtomicLong memoryUsed = new AtomicLong();
+    private int fanIn = Integer.getInteger("afp.combine.fanIn", 0);
+    private long splitBytes = Long.getLong("afp.combine.split.maxBytes", 0);
+    private int splitPages = Integer.getInteger("afp.combine.split.maxPages", 0);
+    private boolean prune = Boolean.parseBoolean(System.getProperty("afp.combine.prune", "false"));
+    private boolean pageIndex = Boolean.parseBoolean(System.getProperty("afp.combine.pageIndex", "false"));
+    // with a fan-in and pruning: the resources the documents of all input files need, written by every group
+    private Set<ResourceKey> groupReachable;
+    // with a fan-in: the number of the first input file of a group, the input files of the output file, the index
+    // entries of intermediate input files, and those of an intermediate output file
+    private int firstInput;
+    private List<Path> indexInputs;
+    private List<List<PageIndex.Entries>> inheritedIndex;
+    private List<PageIndex.Entries> intermediateIndex;
+    private PageIndex.Writer indexWriter;
+    private final List<Path> outputFiles = new ArrayList<>();
+
+    /**
+     * Combines {@code inFiles} into {@code outFile}. Files whose name ends with {@value AfpFiles#GZIP_SUFFIX} are
+     * read and written gzip compressed.
+     */
     public AfpCombine(Path outFile, Path[] inFiles) {
-        this.outFile = outFile;
-        inputFiles = Stream.of(inFiles) //
+        this(outFile, Stream.of(inFiles) //
                 .map(InputFile::new) //
-                .toArray(InputFile[]::new);
-        try {
-            algorithm = MessageDigest.getInstance(System.getProperty("security.digest", "MD5"));
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException(e);
+                .collect(Collectors.toCollection(ArrayList::new)));
+    }
+
+    private AfpCombine(Path outFile, List<InputFile> inputFiles) {
+        this.outFile = outFile;
+        this.inputFiles = inputFiles;
+        setFingerprinter(Fingerprinter.forName(System.getProperty("afp.combine.fingerprint",
+                "digest:" + System.getProperty("security.digest", "MD5"))));
+        String indexDirectory = System.getProperty("afp.combine.index.dir");
+        if (indexDirectory != null) {
+            try {
+                scanIndex = ScanIndex.inDirectory(Paths.get(indexDirectory));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
         }
     }
 
-    public void run() throws IOException {
+    /**
+     * Starts a combine without input files, which are added one by one by a {@link CombineSession}.
+     */
+    AfpCombine(Path outFile) {
+        this(outFile, new Path[0]);
+    }
+
+    /**
+     * Sets the number of input files that are scanned concurrently.
+     * Defaults to the system property {@code afp.combine.parallelism}
+     * or the number of available processors.
+     */
+    public void setParallelism(int parallelism) {
+        if (parallelism < 1)
+            throw new IllegalArgumentException("parallelism must be at least 1: " + parallelism);
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Sets whether input files are read through memory mapped windows instead of file streams, so that
+     * seeks and the repeated passes over each input file are served from the page cache without system
+     * calls. Defaults to the system property {@code afp.combine.mmap} (true).
+     */
+    public void setMemoryMapped(boolean memoryMapped) {
+        this.memoryMapped = memoryMapped;
+    }
+
+    /**
+     * Sets whether references are renamed directly in the bytes of the structured fields where possible,
+     * instead of decoding and encoding them. Both give the same output. Defaults to the system property
+     * {@code afp.combine.patchNames} (true).
+     */
+    public void setPatchNames(boolean patchNames) {
+        this.patchNames = patchNames;
+    }
+
+    /**
+     * Sets the number and size of the buffers between the combine and the thread writing the output file.
+     * Defaults to the system properties {@code afp.combine.output.buffers} (2)
+     * and {@code afp.combine.output.bufferSize} (1 MiB).
+     */
+    public void setOutputBuffers(int buffers, int bufferSize) {
+        if (buffers < 1 || bufferSize < 1)
+            throw new IllegalArgumentException("at least one buffer of at least one byte is required");
+        this.outputBuffers = buffers;
+        this.outputBufferSize = bufferSize;
+    }
+
+    /**
+     * Sets how many bytes of inline formdefs are kept in memory between the scan and the merge of the
+     * medium maps. Formdefs beyond the budget are read from their input files again when they are merged,
+     * which gives the same result. Defaults to the system property {@code afp.combine.memoryBudget}
+     * or a quarter of the maximum heap size.
+     */
+    public void setMemoryBudget(long bytes) {
+        if (bytes < 0)
+            throw new IllegalArgumentException("memory budget must not be negative: " + bytes);
+        this.memoryBudget = bytes;
+    }
+
+    /**
+     * Sets the number of input files combined at once. With more input files, they are combined in groups
+     * of {@code fanIn} files into intermediate files next to the output file, in parallel, which are then
+     * combined the same way until one output file is left. All input files are still scanned and renamed
+     * together first, so the output is the same as that of a combine of all input files at once.
+     * Defaults to the system property {@code afp.combine.fanIn}, or 0 to combine all input files at once.
+     */
+    public void setFanIn(int fanIn) {
+        if (fanIn != 0 && fanIn < 2)
+            throw new IllegalArgumentException("fan-in must be 0 or at least 2: " + fanIn);
+        this.fanIn = fanIn;
+    }
+
+    /**
+     * Splits the output into several files of at most {@code maxBytes} bytes and {@code maxPages} pages, 0 meaning
+     * no limit. A file is cut before the top level page group, or the page outside of page groups, that would
+     * take it over a limit, counting its resource group; only a file of a single such group or page can be larger.
+     * Each file gets a resource group with only the resources and medium maps its pages refer to, directly or
+     * through other resources, and its documents are ended and begun again where they are cut. The documents
+     * are read twice, once to plan the files and once to write them. The files are named after the output file
+     * with a four digit part number before the extension, see {@link #getOutputFiles()}.
+     * Defaults to the system properties {@code afp.combine.split.maxBytes} and {@code afp.combine.split.maxPages}.
+     */
+    public void setSplit(long maxBytes, int maxPages) {
+        if (maxBytes < 0 || maxPages < 0)
+            throw new IllegalArgumentException("split limits must not be negative");
+        this.splitBytes = maxBytes;
+        this.splitPages = maxPages;
+    }
+
+    /**
+     * Sets whether only the resources the documents need are written: those that their pages or the medium
+     * maps of the formdef refer to, directly or through overlays, page segments and coded fonts, and all
+     * resources of types whose references are not followed, such as graphics. This takes another pass over
+     * the documents before the resource group is written. A split output is always pruned per file.
+     * Defaults to the system property {@code afp.combine.prune} (false).
+     */
+    public void setPrune(boolean prune) {
+        this.prune = prune;
+    }
+
+    /**
+     * Sets whether a {@link PageIndex} of where each document, named page group and page begins is written next
+     * to each output file, while the documents are written. Defaults to the system property
+     * {@code afp.combine.pageIndex} (false).
+     */
+    public void setPageIndex(boolean pageIndex) {
+        this.pageIndex = pageIndex;
+    }
+
+    /**
+     * @return the files written by {@link #run()}, which is more than the output file if it is split
+     */
+    public List<Path> getOutputFiles() {
+        return Collections.unmodifiableList(outputFiles);
+    }
+
+    /**
+     * Sets the index used to skip the scan of unchanged input files, or null to scan all input files.
+     * Defaults to a {@link ScanIndex#inDirectory(Path) cache directory} given by the system property
+     * {@code afp.combine.index.dir}.
+     */
+    public void setScanIndex(ScanIndex scanIndex) {
+        this.scanIndex = scanIndex;
+    }
+
+    /**
+     * Shares the scan results of input files with the other jobs of a {@link CombineService}.
+     */
+    void setScanCache(ScanCache scanCache) {
+        this.scanCache = scanCache;
+    }
+
+    private AfpInputStream newSeekableInputStream(Path path) throws IOException {
+        return memoryMapped ? AfpFiles.newAfpMappedInputStream(path) : AfpFiles.newAfpInputStream(path);
+    }
+
+    /**
+     * Sets how the contents of resources and medium maps are fingerprinted. Only resources with equal
+     * fingerprints are compared byte by byte, and new names are derived from the fingerprint. Defaults to
+     * the {@link Fingerprinter#forName(String) algorithm} given by the system property
+     * {@code afp.combine.fingerprint}, or else the message digest given by {@code security.digest} (MD5).
+     */
+    public void setFingerprinter(Supplier<Fingerprinter> fingerprinters) {
+        this.fingerprintAlgorithm = fingerprinters.get().getAlgorithm();
+        this.fingerprinters = fingerprinters;
+    }
+
+    /**
+     * Combines the input files into the output file.
+     *
+     * @return counters and timings of the phases of this run
+     */
+    public CombineStatistics run() throws IOException {
 
         scanResources();
 
         buildRenamingTable();
 
+        if (fanIn > 1 && inputFiles.size() > fanIn) {
+            combineInGroups();
+        } else {
+            write();
+        }
+
+        LOGGER.info("combined {} input files into {}: {}", inputFiles.size(), outFile, statistics);
+        return statistics;
+    }
+
+    private void write() throws IOException {
+
         buildFormdef();
 
-        writeResourceGroup();
+        if (splitBytes > 0 || splitPages > 0) {
+            writeParts();
+            return;
+        }
+
+        Set<ResourceKey> reachable = prune ? reachableResources(formdef) : groupReachable;
+
+        try (PageIndex.Writer index = pageIndex && intermediateIndex == null ? new PageIndex.Writer(outFile) : null;
+             AsyncFileOutputStream out = newOutputStream();
+             AfpOutputStream aout = new AfpOutputStream(out)) {
+            indexWriter = index;
+
+            writeResourceGroup(aout, out, reachable);
 
-        writeDocuments();
+            writeDocuments(aout, out);
+
+            if (index != null) index.finish(indexInputs());
+        } finally {
+            indexWriter = null;
+        }
+        outputFiles.add(outFile);
     }
 
-    private void scanResources() throws IOException {
-        for (final InputFile inputFile : inputFiles) {
-            try (final AfpInputStream ain = AfpFiles.newAfpBufferedInputStream(inputFile.path)) {
-                SF sf;
-                long filepos, prevFilePos = 0;
-                ByteArrayOutputStream buffer = null;
-                ResourceKey key = null;
-                Resource resource = null;
-                String mmName = null;
-                MediumMap mediumMap = null;
-                boolean processingFormdef = false, isFirstFormdef = true;
-
-                while ((sf = ain.readStructuredField()) != null) {
-                    filepos = ain.getCurrentOffset();
-                    if (sf instanceof ERG) {
-                        inputFile.documentStart = filepos;
-                        break;
-                    }
-                    if (sf instanceof BRS) {
-                        key = ResourceKey.toResourceKey((BRS) sf);
-                        if (key.getType() == ResourceObjectTypeObjType.CONST_FORM_MAP_VALUE) {
-                            key = null; // do not save formdef resources
-                        } else {
-                            buffer = new ByteArrayOutputStream();
-                            inputFile.resources.add(key);
-                            inputFile.filePos.put(key, resource = new Resource());
-                            resource.start = prevFilePos;
-                        }
-                    }
+    /**
+     * @return the input files the entries of the page index refer to
+     */
+    private List<Path> indexInputs() {
+        if (indexInputs != null) return indexInputs;
+        return inputFiles.stream().map(inputFile -> inputFile.path).collect(Collectors.toList());
+    }
 
-                    if (sf instanceof BFM && isFirstFormdef) {
-                        LOGGER.debug("processing formdef");
-                        processingFormdef = true;
-                    }
+    /**
+     * @return the numbering of the indexed structured fields of input file {@code i}
+     */
+    private PageIndex.Numbering numbering(int i) {
+        return inheritedIndex != null ? new PageIndex.Numbering(inheritedIndex.get(i)) : new PageIndex.Numbering(firstInput + i);
+    }
 
-                    if (processingFormdef)
-                        inputFile.formdef.add(sf);
-
-                    if (sf instanceof BMM && isFirstFormdef) {
-                        BMM bmm = (BMM) sf;
-                        mmName = bmm.getMMName();
-                        LOGGER.debug("{}: found medium map {}", inputFile.getName(), mmName);
-                        inputFile.mmNames.add(mmName);
-                        inputFile.mediumMaps.put(mmName, mediumMap = new MediumMap());
-                        mediumMap.start = prevFilePos;
-                        buffer = new ByteArrayOutputStream();
-                    }
+    /**
+     * Adds the index entries of the documents of an input file, once they are written to the output file.
+     */
+    private void index(PageIndex.Entries entries) throws IOException {
+        if (entries == null) return;
+        if (indexWriter != null)
+            indexWriter.write(entries);
+        else
+            intermediateIndex.add(entries);
+    }
 
-                    if (processingFormdef && mediumMap != null) {
-                        mediumMap.sfs.add(sf);
-                    }
+    /**
+     * Writes the documents to several output files, each with the resources it refers to. The documents are
+     * read twice: once to plan the files, once to write them.
+     */
+    private void writeParts() throws IOException {
+        try (OutputSplitter splitter = new OutputSplitter(this, splitBytes, splitPages, outputResources(), formdef,
+                pageIndex ? indexInputs() : null)) {
+            for (InputFile inputFile : inputFiles) {
+                PhaseTimer timer = statistics.start(Phase.DOCUMENTS, outFile);
+                try {
+                    writeDocuments(inputFile, splitter, true);
+                } finally {
+                    timer.close();
+                }
+            }
+            splitter.endPlan();
+            for (int i = 0; i < inputFiles.size(); i++) {
+                PhaseTimer timer = statistics.start(Phase.DOCUMENTS, outFile);
+                try {
+                    if (pageIndex) splitter.setNumbering(numbering(i));
+                    writeDocuments(inputFiles.get(i), splitter, false);
+                } finally {
+                    timer.close();
+                }
+            }
+            PhaseTimer timer = statistics.start(Phase.DOCUMENTS, outFile);
+            try {
+                outputFiles.addAll(splitter.finish());
+            } finally {
+                timer.close();
+            }
+        }
+    }
 
-                    if (buffer != null)
-                        buffer.write(ain.getLastReadBuffer());
+    /**
+     * @return the name of a part of a split output file, which is gzip compressed like the output file
+     */
+    Path partFile(int number) {
+        String name = outFile.getFileName().toString();
+        int end = AfpFiles.isGzip(outFile) ? name.length() - AfpFiles.GZIP_SUFFIX.length() : name.length();
+        int dot = name.lastIndexOf('.', end - 1);
+        if (dot <= 0) dot = end;
+        return outFile.resolveSibling(name.substring(0, dot) + String.format(".%04d", number) + name.substring(dot));
+    }
 
-                    if (sf instanceof EMM && isFirstFormdef) {
-                        if (mediumMap != null) {
-                            mediumMap.end = filepos;
-                            if (buffer != null) {
-                                byte[] byteArray = buffer.toByteArray();
-                                mediumMap.hash = getHash(byteArray);
-                                if (checkResourceEquality) mediumMap.content = byteArray;
-                                if (!mmNames.contains(mmName))
-                                    mmNames.add(mmName);
+    /**
+     * @return the resources of the resource group, in the order they are written, by their name in the output
+     */
+    private LinkedHashMap<ResourceKey, OutputSplitter.OutputResource> outputResources() {
+        LinkedHashMap<ResourceKey, OutputSplitter.OutputResource> resources = new LinkedHashMap<>();
+        for (InputFile inputFile : inputFiles) {
+            for (ResourceKey key : inputFile.resources) {
+                if (key.getType() == ResourceObjectTypeObjType.CONST_FORM_MAP_VALUE) continue;
+                String newName = inputFile.renamings.get(key);
+                ResourceKey outputKey = outputKey(inputFile, key);
+                if (!resources.containsKey(outputKey))
+                    resources.put(outputKey, new OutputSplitter.OutputResource(
+                            inputFile, key, inputFile.filePos.get(key), newName, resources.size()));
+            }
+        }
+        return resources;
+    }
 
-                                LOGGER.debug("{}@{}-{}: found {}, hash {}", inputFile.getName(), mediumMap.start, mediumMap.end, mmName, mediumMap.hash);
-                            }
-                        }
+    /**
+     * @return the name of a resource of an input file in the output
+     */
+    private static ResourceKey outputKey(InputFile inputFile, ResourceKey key) {
+        String newName = inputFile.renamings.get(key);
+        return newName == null ? key : new ResourceKey(key.getType(), newName, key.getObjId());
+    }
+
+    /**
+     * Finds the resources of the resource group that the documents and the medium maps refer to, directly or
+     * through other resources, with one pass over the documents of each input file.
+     *
+     * @param formdef the merged formdef of all input files
+     * @return the names in the output of the resources to write, or null to write all of them because the
+     * documents of an input file cannot be read record by record
+     */
+    private Set<ResourceKey> reachableResources(SF[] formdef) throws IOException {
+        PhaseTimer timer = statistics.start(Phase.RESOURCE_GROUP, outFile);
+        try {
+            ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(parallelism, inputFiles.size())));
+            List<Future<Set<ResourceKey>>> references = new ArrayList<>(inputFiles.size());
+            try {
+                for (final InputFile inputFile : inputFiles)
+                    references.add(executor.submit(() -> documentReferences(inputFile)));
+                for (Future<Set<ResourceKey>> future : references) {
+                    if (await(future) == null) return null;
+                }
+            } finally {
+                executor.shutdownNow();
+            }
+
+            Set<ResourceKey> referenced = new HashSet<>();
+            for (Future<Set<ResourceKey>> future : references)
+                referenced.addAll(await(future));
+            for (SF sf : formdef)
+                References.collect(sf, referenced, new HashSet<>());
+
+            Map<ResourceKey, OutputSplitter.OutputResource> resources = outputResources();
+            ResourceClosure closure = new ResourceClosure(resources);
+            Set<ResourceKey> reachable = new HashSet<>();
+            for (ResourceKey key : closure.getUnreferencedTypes())
+                closure.add(key, reachable);
+            for (ResourceKey key : referenced)
+                closure.add(key, reachable);
+            LOGGER.info("documents need {} of {} resources", reachable.size(), resources.size());
+            return reachable;
+        } finally {
+            timer.close();
+        }
+    }
+
+    /**
+     * @return the names in the output of the resources the documents of an input file refer to, or null if
+     * the documents do not start with a structured field
+     */
+    private Set<ResourceKey> documentReferences(InputFile inputFile) throws IOException {
+        try (final FileChannel in = AfpFiles.openInput(inputFile.path)) {
+            if (in.size() > inputFile.documentStart && !AfpFiles.isStructuredFieldAt(in, inputFile.documentStart)) {
+                LOGGER.info("{}: documents do not start with a structured field, writing all resources", inputFile.getName());
+                return null;
+            }
+        }
+
+        PhaseStatistics phase = statistics.get(Phase.RESOURCE_GROUP);
+        Set<ResourceKey> referenced = new HashSet<>();
+        Set<String> invoked = new HashSet<>();
+        long decoded = 0;
+        try (final AfpRecordReader reader = memoryMapped
+                ? AfpFiles.newAfpMappedRecordReader(inputFile.path, inputFile.documentStart)
+                : AfpFiles.newAfpRecordReader(inputFile.path, inputFile.documentStart)) {
+            while (reader.next()) {
+                if (References.mayRefer(reader.getId())) {
+                    References.collect(reader.getBuffer(), reader.getLength(), referenced, invoked);
+                    decoded++;
+                }
+            }
+            phase.bytesRead.add(reader.getOffset() - inputFile.documentStart);
+        }
+        phase.fieldsDecoded.add(decoded);
 
-                        mmName = null;
-                        mediumMap = null;
-                        buffer = null;
+        Set<ResourceKey> result = new HashSet<>();
+        for (ResourceKey key : referenced)
+            result.add(outputKey(inputFile, key));
+        return result;
+    }
+
+    /**
+     * Writes the scanned and renamed input files in groups of {@link #fanIn} into intermediate files, and
+     * combines those in groups until at most {@link #fanIn} are left for the output file. As the names are
+     * unique across all input files after the renaming, the intermediate combines only drop resources and
+     * medium maps that were written before under the same name, like a combine of all input files would.
+     * When pruning, the resources to write are found once for all input files and written by every group,
+     * as the documents of one group may need resources that only the input files of another group carry.
+     */
+    private void combineInGroups() throws IOException {
+        Set<ResourceKey> reachable = null;
+        if (prune) {
+            SF[] merged;
+            PhaseTimer timer = statistics.start(Phase.FORMDEF, outFile);
+            try {
+                merged = mergeMediumMaps();
+            } finally {
+                timer.close();
+            }
+            reachable = reachableResources(merged);
+        }
+
+        List<Path> intermediates = new ArrayList<>();
+        try {
+            List<AfpCombine> groups = new ArrayList<>();
+            for (int i = 0; i < inputFiles.size(); i += fanIn) {
+                Path intermediate = newSpoolFile(".part");
+                intermediates.add(intermediate);
+                AfpCombine group = newGroup(intermediate, inputFiles.subList(i, Math.min(i + fanIn, inputFiles.size())));
+                group.firstInput = i;
+                group.groupReachable = reachable;
+                groups.add(group);
+            }
+            LOGGER.info("combining {} input files in {} groups", inputFiles.size(), groups.size());
+            runGroups(groups, AfpCombine::write);
+            List<List<PageIndex.Entries>> index = intermediateIndex(groups);
+
+            while (intermediates.size() > fanIn) {
+                List<Path> level = intermediates;
+                intermediates = new ArrayList<>();
+                groups.clear();
+                try {
+                    for (int i = 0; i < level.size(); i += fanIn) {
+                        Path intermediate = newSpoolFile(".part");
+                        intermediates.add(intermediate);
+                        AfpCombine group = newGroup(intermediate, level.subList(i, Math.min(i + fanIn, level.size())).stream()
+                                .map(InputFile::new)
+                                .collect(Collectors.toList()));
+                        if (pageIndex) group.inheritedIndex = index.subList(i, Math.min(i + fanIn, level.size()));
+                        groups.add(group);
                     }
+                    LOGGER.info("combining {} intermediate files in {} groups", level.size(), groups.size());
+                    runGroups(groups, AfpCombine::combine);
+                    index = intermediateIndex(groups);
+                } finally {
+                    deleteAll(level);
+                }
+            }
 
-                    if (sf instanceof EFM) {
-                        processingFormdef = false;
+            AfpCombine last = newGroup(outFile, intermediates.stream()
+                    .map(InputFile::new)
+                    .collect(Collectors.toList()));
+            last.parallelism = parallelism;
+            last.inheritedIndex = index;
+            last.intermediateIndex = null;
+            last.splitBytes = splitBytes;
+            last.splitPages = splitPages;
+            last.combine();
+            outputFiles.addAll(last.outputFiles);
+            statistics.addGroup(last.statistics);
+            statistics.mediumMapsMerged.add(last.statistics.getMediumMapsMerged());
+        } finally {
+            deleteAll(intermediates);
+        }
+    }
+
+    /**
+     * @return the index entries of the intermediate files of the groups, or null without a page index
+     */
+    private List<List<PageIndex.Entries>> intermediateIndex(List<AfpCombine> groups) {
+        if (!pageIndex) return null;
+        return groups.stream().map(group -> group.intermediateIndex).collect(Collectors.toList());
+    }
+
+    private interface GroupAction {
+        void run(AfpCombine group) throws IOException;
+    }
+
+    private void runGroups(List<AfpCombine> groups, GroupAction action) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(parallelism, groups.size())));
+        try {
+            List<Future<?>> runs = new ArrayList<>(groups.size());
+            for (AfpCombine group : groups) {
+                runs.add(executor.submit(() -> {
+                    action.run(group);
+                    return null;
+                }));
+            }
+            for (Future<?> run : runs)
+                await(run);
+        } finally {
+            executor.shutdownNow();
+        }
+        for (AfpCombine group : groups)
+            statistics.addGroup(group.statistics);
+    }
+
+    /**
+     * Combines intermediate files, which have unique names already.
+     */
+    private void combine() throws IOException {
+        scanResources();
+        buildRenamingTable();
+        write();
+    }
+
+    /**
+     * Creates the combine of one group with the settings of this combine.
+     */
+    private AfpCombine newGroup(Path outFile, List<InputFile> inputFiles) {
+        AfpCombine group = new AfpCombine(outFile, inputFiles);
+        group.fingerprinters = fingerprinters;
+        group.fingerprintAlgorithm = fingerprintAlgorithm;
+        group.parallelism = 1;
+        group.scanIndex = null;
+        group.memoryMapped = memoryMapped;
+        group.patchNames = patchNames;
+        group.outputBuffers = outputBuffers;
+        group.outputBufferSize = outputBufferSize;
+        group.memoryBudget = memoryBudget;
+        group.memoryUsed = memoryUsed;
+        group.fanIn = 0;
+        group.prune = false;
+        group.pageIndex = pageIndex;
+        if (pageIndex) {
+            group.indexInputs = indexInputs();
+            group.intermediateIndex = new ArrayList<>();
+        }
+        group.splitBytes = 0;
+        group.splitPages = 0;
+        return group;
+    }
+
+    private static void deleteAll(List<Path> files) throws IOException {
+        for (Path file : files)
+            Files.deleteIfExists(file);
+    }
+
+    /**
+     * @return the counters of the phases run so far
+     */
+    public CombineStatistics getStatistics() {
+        return statistics;
+    }
+
+    AsyncFileOutputStream newOutputStream() throws IOException {
+        return newOutputStream(outFile);
+    }
+
+    AsyncFileOutputStream newOutputStream(Path file) throws IOException {
+        return AfpFiles.newAsyncOutputStream(file, outputBuffers, outputBufferSize);
+    }
+
+    Path getOutFile() {
+        return outFile;
+    }
+
+    /**
+     * Rejects the settings a {@link CombineSession} cannot follow: it writes all spooled resources to a single
+     * output file, so the output can be neither split nor pruned.
+     */
+    void checkSessionSettings() {
+        if (splitBytes > 0 || splitPages > 0)
+            throw new IllegalStateException("a combine session cannot split its output");
+        if (prune)
+            throw new IllegalStateException("a combine session cannot prune its resources");
+    }
+
+    /**
+     * Creates a temporary file next to the output file, so it can be transferred to the output
+     * within the same file system.
+     */
+    Path newSpoolFile(String suffix) throws IOException {
+        Path absolute = outFile.toAbsolutePath();
+        return Files.createTempFile(absolute.getParent(), absolute.getFileName() + ".", suffix);
+    }
+
+    void scanResources() throws IOException {
+        PhaseTimer timer = statistics.start(Phase.SCAN, outFile);
+        try {
+            scanInputFiles();
+        } finally {
+            timer.close();
+        }
+    }
+
+    private void scanInputFiles() throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(parallelism, inputFiles.size())));
+        try {
+            List<Future<?>> scans = new ArrayList<>(inputFiles.size());
+            for (final InputFile inputFile : inputFiles) {
+                scans.add(executor.submit(() -> {
+                    scan(inputFile, fingerprinters.get());
+                    return null;
+                }));
+            }
+            for (Future<?> scan : scans)
+                await(scan);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // merge in input order, so the name tables are the same as after a sequential scan
+        for (final InputFile inputFile : inputFiles) {
+            statistics.resourcesSeen.add(inputFile.resources.size());
+            statistics.mediumMapsSeen.add(inputFile.mmNames.size());
+            for (ResourceKey key : inputFile.resources) {
+                if (inputFile.filePos.get(key).hash != null)
+                    resourceNames(key).reserve(key.getName());
+            }
+            for (String mmName : inputFile.mmNames) {
+                if (inputFile.mediumMaps.get(mmName).hash != null)
+                    mmNames.reserve(mmName);
+            }
+        }
+    }
+
+    private static <T> T await(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for " + future);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new IOException(cause);
+        }
+    }
+
+    private void scan(InputFile inputFile, Fingerprinter fingerprinter) throws IOException {
+        CombineEvents.InputFileEvent event = new CombineEvents.InputFileEvent(Phase.SCAN, inputFile);
+        event.begin();
+        if (scanCache == null) {
+            event.bytesRead = scanFile(inputFile, fingerprinter);
+        } else {
+            event.bytesRead = scanCache.scan(inputFile, fingerprintAlgorithm, () -> scanFile(inputFile, fingerprinter));
+        }
+        keepFormdef(inputFile);
+        statistics.get(Phase.SCAN).bytesRead.add(event.bytesRead);
+        event.commit();
+    }
+
+    /**
+     * Scans an input file, or loads its scan results from the scan index.
+     *
+     * @return the number of bytes read
+     */
+    private long scanFile(InputFile inputFile, Fingerprinter fingerprinter) throws IOException {
+        if (scanIndex == null)
+            return parse(inputFile, fingerprinter);
+
+        ScanIndex.FileIdentity identity = scanIndex.identify(inputFile.path);
+        long bytesRead = identity.size;
+        if (!scanIndex.load(inputFile, identity, fingerprintAlgorithm)) {
+            bytesRead += parse(inputFile, fingerprinter);
+            scanIndex.store(inputFile, identity, fingerprintAlgorithm);
+        }
+        return bytesRead;
+    }
+
+    /**
+     * @return the number of bytes read
+     */
+    private long parse(InputFile inputFile, Fingerprinter fingerprinter) throws IOException {
+        try (final AfpInputStream ain = memoryMapped
+                ? AfpFiles.newAfpMappedInputStream(inputFile.path)
+                : AfpFiles.newAfpBufferedInputStream(inputFile.path)) {
+            SF sf;
+            long filepos, prevFilePos = 0, fields = 0;
+            Fingerprinter digest = null;
+            ResourceKey key = null;
+            Resource resource = null;
+            String mmName = null;
+            MediumMap mediumMap = null;
+            boolean processingFormdef = false, isFirstFormdef = true;
+
+            while ((sf = ain.readStructuredField()) != null) {
+                filepos = ain.getCurrentOffset();
+                fields++;
+                if (sf instanceof ERG) {
+                    inputFile.documentStart = filepos;
+                    prevFilePos = filepos;
+                    break;
+                }
+                if (sf instanceof BRS) {
+                    key = ResourceKey.toResourceKey((BRS) sf);
+                    if (key.getType() == ResourceObjectTypeObjType.CONST_FORM_MAP_VALUE) {
+                        key = null; // do not save formdef resources
+                    } else {
+                        digest = fingerprinter;
+                        digest.reset();
+                        inputFile.resources.add(key);
+                        inputFile.filePos.put(key, resource = new Resource());
+                        resource.start = prevFilePos;
                     }
+                }
 
-                    if (sf instanceof ERS) {
-                        if (buffer == null) {
-                            // this is the end of a formdef, which we don't save
-                            isFirstFormdef = false;
-                        } else {
-                            if (resource != null) {
-                                resource.ersPos = prevFilePos;
-                                resource.end = filepos;
-                                byte[] byteArray = buffer.toByteArray();
-                                resource.hash = getHash(byteArray);
-                                if (checkResourceEquality) resource.content = byteArray;
-                                if (!resourceNames.contains(key.getName()))
-                                    resourceNames.add(key.getName());
-                                LOGGER.debug("{}@{}-{}: found {}, hash {}", inputFile.getName(), resource.start, resource.end, key, resource.hash);
-                            }
+                if (sf instanceof BFM && isFirstFormdef) {
+                    LOGGER.debug("processing formdef");
+                    processingFormdef = true;
+                }
+
+                if (processingFormdef) {
+                    if (inputFile.formdefEnd == 0) inputFile.formdefStart = prevFilePos;
+                    inputFile.formdefEnd = filepos;
+                }
+
+                if (sf instanceof BMM && isFirstFormdef) {
+                    BMM bmm = (BMM) sf;
+                    mmName = bmm.getMMName();
+                    LOGGER.debug("{}: found medium map {}", inputFile.getName(), mmName);
+                    inputFile.mmNames.add(mmName);
+                    inputFile.mediumMaps.put(mmName, mediumMap = new MediumMap());
+                    mediumMap.start = prevFilePos;
+                    digest = fingerprinter;
+                    digest.reset();
+                }
+
+                if (digest != null) {
+                    byte[] buffer = ain.getLastReadBuffer();
+                    digest.update(buffer, 0, buffer.length);
+                }
 
-                            buffer = null;
-                            key = null;
-                            resource = null;
+                if (sf instanceof EMM && isFirstFormdef) {
+                    if (mediumMap != null) {
+                        mediumMap.end = filepos;
+                        if (digest != null) {
+                            mediumMap.hash = digest.finish();
+                            LOGGER.debug("{}@{}-{}: found {}, hash {}", inputFile.getName(), mediumMap.start, mediumMap.end, mmName, mediumMap.hash);
                         }
                     }
 
-                    prevFilePos = filepos;
+                    mmName = null;
+                    mediumMap = null;
+                    digest = null;
+                }
+
+                if (sf instanceof EFM) {
+                    processingFormdef = false;
+                }
+
+                if (sf instanceof ERS) {
+                    if (digest == null) {
+                        // this is the end of a formdef, which we don't save
+                        isFirstFormdef = false;
+                    } else {
+                        if (resource != null) {
+                            resource.ersPos = prevFilePos;
+                            resource.end = filepos;
+                            resource.hash = digest.finish();
+                            LOGGER.debug("{}@{}-{}: found {}, hash {}", inputFile.getName(), resource.start, resource.end, key, resource.hash);
+                        }
+
+                        digest = null;
+                        key = null;
+                        resource = null;
+                    }
                 }
+
+                prevFilePos = filepos;
             }
 
+            statistics.get(Phase.SCAN).fieldsDecoded.add(fields);
+            return prevFilePos;
         }
     }
 
-    private void buildRenamingTable() {
+    /**
+     * Keeps the bytes of the inline formdef of a scanned input file in memory, if the memory budget allows.
+     */
+    private void keepFormdef(InputFile inputFile) throws IOException {
+        long length = inputFile.formdefEnd - inputFile.formdefStart;
+        if (length == 0) return;
+        if (memoryUsed.addAndGet(length) > memoryBudget) {
+            memoryUsed.addAndGet(-length);
+            LOGGER.debug("{}: formdef of {} bytes exceeds the memory budget, reading it again when merged",
+                    inputFile.getName(), length);
+            return;
+        }
+        inputFile.formdef = readFormdef(inputFile);
+    }
 
-        for (int i = 0; i < inputFiles.length; i++) {
-            for (int j = i + 1; j < inputFiles.length; j++) {
-                InputFile f1 = inputFiles[i];
-                InputFile f2 = inputFiles[j];
+    private static byte[] readFormdef(InputFile inputFile) throws IOException {
+        return AfpFiles.readBytes(inputFile.path, inputFile.formdefStart,
+                (int) (inputFile.formdefEnd - inputFile.formdefStart));
+    }
 
-                LOGGER.debug("comparing resources in {} and {}", f1.getName(), f2.getName());
+    /**
+     * Scans one more input file of a {@link CombineSession}.
+     */
+    InputFile scanInput(Path path) throws IOException {
+        InputFile inputFile = new InputFile(path);
+        PhaseTimer timer = statistics.start(Phase.SCAN, outFile);
+        try {
+            scan(inputFile, fingerprinters.get());
+        } finally {
+            timer.close();
+        }
+        statistics.resourcesSeen.add(inputFile.resources.size());
+        statistics.mediumMapsSeen.add(inputFile.mmNames.size());
+        inputFiles.add(inputFile);
+        return inputFile;
+    }
 
-                for (ResourceKey k1 : f1.resources) {
-                    if (f2.resources.contains(k1)
-                            && !f2.renamings.containsKey(k1)) { // can this ever happen????
-                        String h1 = f1.filePos.get(k1).hash;
-                        String h2 = f2.filePos.get(k1).hash;
+    /**
+     * A content variant of a resource or medium map in the input files added to a session so far,
+     * and the name it is written under.
+     */
+    private static final class Variant {
+        final InputFile inputFile;
+        final Region region;
+        final String name;
+
+        Variant(InputFile inputFile, Region region, String name) {
+            this.inputFile = inputFile;
+            this.region = region;
+            this.name = name;
+        }
+    }
 
-                        if (h1.equals(h2) && equals(f1.filePos.get(k1).content, f2.filePos.get(k1).content)) {
-                            if (f1.renamings.containsKey(k1)) {
-                                String newName = f1.renamings.get(k1);
-                                LOGGER.debug("resource {} is same in {} and {}, but being renamed to {}", k1.getName(), f1.getName(), f2.getName(), newName);
-                                f2.renamings.put(k1, newName);
-                            } else {
-                                LOGGER.debug("resource {} is same in {} and {}", k1.getName(), f1.getName(), f2.getName());
-                            }
-                        } else {
-                            String newName = getNewResourceName(k1.getName(), h2);
-                            f2.renamings.put(k1, newName);
-                            resourceNames.add(newName);
-                            LOGGER.debug("{}: renaming resource {} to {}", f2.getName(), k1.getName(), newName);
-                        }
-                    }
-                }
+    private final Map<ResourceKey, List<Variant>> resourceVariants = new HashMap<>();
+    private final Map<String, List<Variant>> mmVariants = new HashMap<>();
 
-                for (String mmName : f1.mmNames) {
-                    if (f2.mmNames.contains(mmName)
-                            && !f2.renameIMM.containsKey(mmName)) {
+    /**
+     * @return the namespace of the names of resources of the type of {@code key}
+     */
+    private NameAllocator resourceNames(ResourceKey key) {
+        return resourceNames.computeIfAbsent(key.getType(),
+                type -> new NameAllocator(String.format("resources of type 0x%02X", type)));
+    }
 
-                        String h1 = f1.mediumMaps.get(mmName).hash;
-                        String h2 = f2.mediumMaps.get(mmName).hash;
+    /**
+     * @return the name of the variant with the same content as {@code region}, or null if there is none
+     */
+    private String findVariant(List<Variant> variants, InputFile inputFile, Region region) throws IOException {
+        for (Variant variant : variants) {
+            if (variant.region.hash.equals(region.hash) && equals(variant.inputFile, variant.region.start,
+                    variant.region.end, inputFile, region.start, region.end))
+                return variant.name;
+        }
+        return null;
+    }
 
-                        if (h1.equals(h2)
-                                && equals(f1.mediumMaps.get(mmName).content, f2.mediumMaps.get(mmName).content)) {
-                            if (f1.renameIMM.containsKey(mmName)) {
-                                String newName = f1.renameIMM.get(mmName);
-                                LOGGER.debug("medium map {} is same in {} and {}, but being renamed to {}", mmName, f1.getName(), f2.getName(), newName);
-                                f2.renameIMM.put(mmName, newName);
-                            } else {
-                                LOGGER.debug("medium map {} is same in {} and {}", mmName, f1.getName(), f2.getName());
-                            }
-                        } else {
-                            String newName = getNewFormdefName(mmName, h2);
-                            f2.renameIMM.put(mmName, newName);
-                            mmNames.add(newName);
-                            LOGGER.debug("{}: renaming medium map {} to {}", f2.getName(), mmName, newName);
-                        }
+    /**
+     * Renames the resources and medium maps of an input file of a {@link CombineSession} that
+     * differ from those of the same name in the input files added before. Unlike the batch
+     * renaming, names of input files added later are not known yet, so an original name that
+     * was already handed out as a new name is renamed as well.
+     */
+    void renameAgainstPrevious(InputFile inputFile) throws IOException {
+        PhaseTimer timer = statistics.start(Phase.RENAMING, outFile);
+        try {
+            renameAgainstPrevious(inputFile, inputFile.resources, inputFile.filePos, resourceVariants,
+                    ResourceKey::getName, this::resourceNames, inputFile.renamings);
+            renameAgainstPrevious(inputFile, inputFile.mmNames, inputFile.mediumMaps, mmVariants,
+                    Function.identity(), key -> mmNames, inputFile.renameIMM);
+        } finally {
+            timer.close();
+        }
+        statistics.resourcesRenamed.add(inputFile.renamings.size());
+        statistics.mediumMapsRenamed.add(inputFile.renameIMM.size());
+    }
+
+    private <K> void renameAgainstPrevious(InputFile inputFile, List<K> keys, Map<K, ? extends Region> regions,
+                                           Map<K, List<Variant>> registry, Function<K, String> nameOf,
+                                           Function<K, NameAllocator> namespace, Map<K, String> renamings) throws IOException {
+        Set<K> seen = new HashSet<>();
+        for (K key : keys) {
+            Region region = regions.get(key);
+            if (!seen.add(key) || region.hash == null) continue;
+
+            String originalName = nameOf.apply(key);
+            NameAllocator names = namespace.apply(key);
+            List<Variant> variants = registry.computeIfAbsent(key, k -> new ArrayList<>());
+            if (variants.isEmpty() && !names.isGenerated(originalName)) {
+                variants.add(new Variant(inputFile, region, originalName));
+                names.reserve(originalName);
+                continue;
+            }
+
+            String name = findVariant(variants, inputFile, region);
+            if (name == null) {
+                name = names.allocate(originalName, region.hash.toNameSource());
+                variants.add(new Variant(inputFile, region, name));
+            }
+            if (!name.equals(originalName)) {
+                renamings.put(key, name);
+                LOGGER.debug("{}: renaming {} to {}", inputFile.getName(), originalName, name);
+            }
+        }
+    }
+
+    /**
+     * Occurrences of one resource key or medium map name in the input files seen so far.
+     * The first file keeps the name, as long as all following files carry the same content.
+     * From the first file with different content on ({@code closingFile}), every further
+     * occurrence is renamed.
+     */
+    private static final class Variants {
+        final int firstFile, firstPos;
+        int closingFile = -1, closingPos;
+
+        Variants(int firstFile, int firstPos) {
+            this.firstFile = firstFile;
+            this.firstPos = firstPos;
+        }
+    }
+
+    /**
+     * A renaming found by {@link #findRenamings}. {@code decidingFile} and {@code decidingPos}
+     * identify the occurrence it was decided against, which determines the order in which new
+     * names are handed out.
+     */
+    private static final class Renaming<K> {
+        final int decidingFile, decidingPos, file, firstFile;
+        final K key;
+
+        Renaming(Variants variants, int decidingFile, int decidingPos, int file, K key) {
+            this.decidingFile = decidingFile;
+            this.decidingPos = decidingPos;
+            this.file = file;
+            this.firstFile = variants.firstFile;
+            this.key = key;
+        }
+    }
+
+    private static final Comparator<Renaming<?>> RENAMING_ORDER = Comparator
+            .<Renaming<?>>comparingInt(r -> r.decidingFile)
+            .thenComparingInt(r -> r.file)
+            .thenComparingInt(r -> r.decidingPos);
+
+    void buildRenamingTable() throws IOException {
+        PhaseTimer timer = statistics.start(Phase.RENAMING, outFile);
+        try {
+            renameConflicts();
+        } finally {
+            timer.close();
+        }
+    }
+
+    private void renameConflicts() throws IOException {
+        List<Renaming<ResourceKey>> resourceRenamings = findRenamings(f -> f.resources, f -> f.filePos);
+        statistics.resourcesRenamed.add(nameVariants(resourceRenamings, f -> f.filePos, ResourceKey::getName,
+                this::resourceNames, f -> f.renamings));
+
+        List<Renaming<String>> mmRenamings = findRenamings(f -> f.mmNames, f -> f.mediumMaps);
+        statistics.mediumMapsRenamed.add(nameVariants(mmRenamings, f -> f.mediumMaps, Function.identity(),
+                key -> mmNames, f -> f.renameIMM));
+    }
+
+    /**
+     * Hands out the names for the renamings in their order. Occurrences with the same content
+     * get the same name, which is the original name if they are the same as the first occurrence.
+     *
+     * @return the number of occurrences written under a new name
+     */
+    private <K> int nameVariants(List<Renaming<K>> renamings, Function<InputFile, Map<K, ? extends Region>> regions,
+                                 Function<K, String> nameOf, Function<K, NameAllocator> namespace,
+                                 Function<InputFile, Map<K, String>> renamed) throws IOException {
+        Map<K, List<Variant>> registry = new HashMap<>();
+        int count = 0;
+        for (Renaming<K> renaming : renamings) {
+            InputFile inputFile = inputFiles.get(renaming.file);
+            Region region = regions.apply(inputFile).get(renaming.key);
+            String originalName = nameOf.apply(renaming.key);
+
+            List<Variant> variants = registry.get(renaming.key);
+            if (variants == null) {
+                InputFile firstFile = inputFiles.get(renaming.firstFile);
+                variants = new ArrayList<>();
+                variants.add(new Variant(firstFile, regions.apply(firstFile).get(renaming.key), originalName));
+                registry.put(renaming.key, variants);
+            }
+
+            String newName = findVariant(variants, inputFile, region);
+            if (newName == null) {
+                newName = namespace.apply(renaming.key).allocate(originalName, region.hash.toNameSource());
+                variants.add(new Variant(inputFile, region, newName));
+            }
+            if (newName.equals(originalName)) {
+                LOGGER.debug("{}: {} is the same as in {}", inputFile.getName(), originalName,
+                        inputFiles.get(renaming.firstFile).getName());
+                continue;
+            }
+            renamed.apply(inputFile).put(renaming.key, newName);
+            count++;
+            LOGGER.debug("{}: renaming {} to {}", inputFile.getName(), originalName, newName);
+        }
+        return count;
+    }
 
+    /**
+     * Decides in one pass over all input files which occurrences of a resource or medium
+     * map need a new name. The result is sorted in the order the names were handed out by
+     * the former pairwise comparison of all input files, so the name tables stay the same.
+     */
+    private <K> List<Renaming<K>> findRenamings(Function<InputFile, List<K>> keys,
+                                                Function<InputFile, Map<K, ? extends Region>> regions) throws IOException {
+        Map<K, Variants> registry = new HashMap<>();
+        List<Renaming<K>> result = new ArrayList<>();
+
+        for (int file = 0; file < inputFiles.size(); file++) {
+            InputFile inputFile = inputFiles.get(file);
+            Set<K> seen = new HashSet<>();
+            int pos = 0;
+            for (K key : keys.apply(inputFile)) {
+                int keyPos = pos++;
+                if (!seen.add(key)) continue;
+
+                Variants variants = registry.get(key);
+                if (variants == null) {
+                    registry.put(key, new Variants(file, keyPos));
+                    continue;
+                }
+
+                InputFile firstFile = inputFiles.get(variants.firstFile);
+                Region first = regions.apply(firstFile).get(key);
+                Region region = regions.apply(inputFile).get(key);
+                boolean same = first.hash.equals(region.hash)
+                        && equals(firstFile, first.start, first.end, inputFile, region.start, region.end);
+
+                if (variants.closingFile < 0) {
+                    if (same) {
+                        LOGGER.debug("{} is same in {} and {}", key, firstFile.getName(), inputFile.getName());
+                        continue;
                     }
+                    variants.closingFile = file;
+                    variants.closingPos = keyPos;
+                    result.add(new Renaming<>(variants, variants.firstFile, variants.firstPos, file, key));
+                } else if (same) {
+                    result.add(new Renaming<>(variants, variants.closingFile, variants.closingPos, file, key));
+                } else {
+                    result.add(new Renaming<>(variants, variants.firstFile, variants.firstPos, file, key));
                 }
             }
         }
+
+        result.sort(RENAMING_ORDER);
+        return result;
     }
 
-    private boolean equals(byte[] b1, byte[] b2) {
+    /**
+     * Compares the bytes of two hash-equal resources straight from the input files,
+     * so that no resource content has to be kept in memory.
+     */
+    private boolean equals(InputFile f1, long start1, long end1, InputFile f2, long start2, long end2) throws IOException {
         if (!checkResourceEquality) return true;
+        if (end1 - start1 != end2 - start2) return false;
+
+        statistics.get(Phase.RENAMING).bytesRead.add(2 * (end1 - start1));
+        return AfpFiles.contentEquals(f1.path, start1, f2.path, start2, end1 - start1);
+    }
+
+    void buildFormdef() throws IOException {
+        PhaseTimer timer = statistics.start(Phase.FORMDEF, outFile);
+        try {
+            formdef = mergeMediumMaps();
+            for (SF sf : formdef) {
+                if (sf instanceof BMM) statistics.mediumMapsMerged.increment();
+            }
+        } finally {
+            timer.close();
+        }
+    }
 
-        return Arrays.equals(b1, b2);
+    /**
+     * Decodes the structured fields of the inline formdef of an input file.
+     */
+    private static List<SF> decodeFormdef(byte[] formdef) throws IOException {
+        List<SF> sfs = new ArrayList<>();
+        try (AfpInputStream ain = new AfpInputStream(new ByteArrayInputStream(formdef))) {
+            SF sf;
+            while ((sf = ain.readStructuredField()) != null)
+                sfs.add(sf);
+        }
+        return sfs;
     }
 
-    private void buildFormdef() {
-        LinkedList<SF> formdef = new LinkedList<>();
-        LinkedList<String> mmsWritten = new LinkedList<>();
+    /** the number of kinds of structured fields a merged medium map holds */
+    private static final int MEDIUM_MAP_KINDS = 13;
+
+    /**
+     * @return the position of the structured field among those a merged medium map holds, in the order they are
+     * written: FGD, MMO, MPO, MMT, MMD, MDR, PGP, MDD, MCC, MMC, PMC, MFC and PEC, or -1 if it is not taken over
+     */
+    private static int mediumMapKind(SF sf) {
+        switch (sf.getId()) {
+            case SFName.FGD_VALUE: return 0;
+            case SFName.MMO_VALUE: return 1;
+            case SFName.MPO_VALUE: return 2;
+            case SFName.MMT_VALUE: return 3;
+            case SFName.MMD_VALUE: return 4;
+            case SFName.MDR_VALUE: return 5;
+            case SFName.PGP_VALUE:
+            case SFName.PGP1_VALUE: return 6;
+            case SFName.MDD_VALUE: return 7;
+            case SFName.MCC_VALUE: return 8;
+            case SFName.MMC_VALUE: return 9;
+            case SFName.PMC_VALUE: return 10;
+            case SFName.MFC_VALUE: return 11;
+            case SFName.PEC_VALUE: return 12;
+        }
+        return -1;
+    }
+
+    /**
+     * The structured fields of a medium map or a document environment group by their kind, in their order.
+     */
+    private static final class MediumMapFields {
+        final BMM bmm;
+        final List<List<SF>> kinds = new ArrayList<>(Collections.nCopies(MEDIUM_MAP_KINDS, null));
 
+        MediumMapFields(BMM bmm) {
+            this.bmm = bmm;
+        }
+
+        void add(SF sf) {
+            int kind = mediumMapKind(sf);
+            if (kind < 0) return;
+            if (kinds.get(kind) == null) kinds.set(kind, new ArrayList<>(2));
+            kinds.get(kind).add(sf);
+        }
+
+        /**
+         * Takes over the kinds of structured fields the medium map does not have from the environment group.
+         */
+        void inherit(MediumMapFields bdg) {
+            for (int kind = 0; kind < MEDIUM_MAP_KINDS; kind++) {
+                if (kinds.get(kind) == null) kinds.set(kind, bdg.kinds.get(kind));
+            }
+        }
+
+        void addTo(List<SF> formdef) {
+            for (List<SF> sfs : kinds) {
+                if (sfs != null) formdef.addAll(sfs);
+            }
+        }
+    }
+
+    /**
+     * Sorts the structured fields of an inline formdef by medium map and kind in one pass. The medium maps
+     * inherit from the environment group, and a medium map defined twice is taken from its last definition.
+     */
+    private static Map<String, MediumMapFields> mediumMapFields(List<SF> fields) {
+        MediumMapFields bdg = new MediumMapFields(null);
+        Map<String, MediumMapFields> mediumMaps = new HashMap<>();
+        MediumMapFields mediumMap = null;
+        boolean isbdg = false;
+        for (SF sf : fields) {
+            if (sf instanceof BDG) {
+                isbdg = true;
+            } else if (sf instanceof EDG) {
+                isbdg = false;
+            } else if (sf instanceof BMM) {
+                mediumMap = new MediumMapFields((BMM) sf);
+                mediumMaps.put(mediumMap.bmm.getMMName(), mediumMap);
+            } else if (sf instanceof EMM) {
+                mediumMap = null;
+            } else if (mediumMap != null) {
+                mediumMap.add(sf);
+            } else if (isbdg) {
+                bdg.add(sf);
+            }
+        }
+        for (MediumMapFields map : mediumMaps.values())
+            map.inherit(bdg);
+        return mediumMaps;
+    }
+
+    private SF[] mergeMediumMaps() throws IOException {
+        List<SF> formdef = new ArrayList<>();
+        Set<String> mmsWritten = new HashSet<>();
 
         formdef.add(AfplibFactory.eINSTANCE.createBFM());
 
         for (InputFile inputFile : inputFiles) {
 
-            // build environment group
-            LinkedList<SF> bdg = new LinkedList<>();
-            boolean isbdg = false;
-            for (SF sf : inputFile.formdef) {
-                if (sf instanceof BDG) {
-                    isbdg = true;
-                    continue;
-                }
-                if (sf instanceof EDG) isbdg = false;
-                if (isbdg) bdg.add(sf);
+            byte[] bytes = inputFile.formdef;
+            if (bytes == null && inputFile.formdefEnd > 0) {
+                bytes = readFormdef(inputFile);
+            } else if (bytes != null) {
+                // the merged formdef does not need the scanned bytes any more
+                inputFile.formdef = null;
+                memoryUsed.addAndGet(-bytes.length);
             }
+            Map<String, MediumMapFields> mediumMaps = bytes == null ? Collections.emptyMap()
+                    : mediumMapFields(decodeFormdef(bytes));
 
             for (String mmName : inputFile.mmNames) {
-                MediumMap map = inputFile.mediumMaps.get(mmName);
-                Iterator<SF> it = map.sfs.iterator();
-                BMM bmm = (BMM) it.next();
+                MediumMapFields map = mediumMaps.get(mmName);
+                BMM bmm = map.bmm;
                 if (inputFile.renameIMM.containsKey(mmName)) {
                     String newName = inputFile.renameIMM.get(mmName);
 
@@ -313,21 +1343,8 @@ public class AfpCombine {
 
                 formdef.add(bmm);
 
-                // add allowed sfs from the map inherited
-                // by the environment group if needed
-                add(formdef, bdg, map.sfs, FGD.class);
-                add(formdef, bdg, map.sfs, MMO.class);
-                add(formdef, bdg, map.sfs, MPO.class);
-                add(formdef, bdg, map.sfs, MMT.class);
-                add(formdef, bdg, map.sfs, MMD.class);
-                add(formdef, bdg, map.sfs, MDR.class);
-                add(formdef, bdg, map.sfs, PGP.class);
-                add(formdef, bdg, map.sfs, MDD.class);
-                add(formdef, bdg, map.sfs, MCC.class);
-                add(formdef, bdg, map.sfs, MMC.class);
-                add(formdef, bdg, map.sfs, PMC.class);
-                add(formdef, bdg, map.sfs, MFC.class);
-                add(formdef, bdg, map.sfs, PEC.class);
+                // the allowed sfs of the map, inherited by the environment group if needed
+                map.addTo(formdef);
 
                 formdef.add(AfplibFactory.eINSTANCE.createEMM());
 
@@ -337,113 +1354,199 @@ public class AfpCombine {
 
         formdef.add(AfplibFactory.eINSTANCE.createEFM());
 
-        this.formdef = formdef.toArray(new SF[0]);
+        return formdef.toArray(new SF[0]);
     }
 
-    @SuppressWarnings("unchecked")
-    private <T extends SF> void add(LinkedList<SF> dest, LinkedList<SF> bdg,
-                                    LinkedList<SF> map, Class<T> clazz) {
+    /**
+     * @param reachable the names in the output of the resources to write, or null to write all of them
+     */
+    void writeResourceGroup(AfpOutputStream aout, AsyncFileOutputStream out, Set<ResourceKey> reachable) throws IOException {
+        PhaseTimer timer = statistics.start(Phase.RESOURCE_GROUP, outFile);
+        try {
+            PhaseStatistics phase = statistics.get(Phase.RESOURCE_GROUP);
+            long start = out.position();
+            writeResourceGroupStart(aout);
+            aout.flush();
+            phase.bytesWritten.add(out.position() - start);
 
-        LinkedList<T> result = new LinkedList<>();
+            LOGGER.info("writing resource group");
 
-        for (SF sf : map) {
-            if (clazz.isInstance(sf) || (clazz.equals(PGP.class) && sf instanceof PGP1)) {
-                result.add((T) sf);
-            }
+            LinkedList<ResourceKey> resourcesWritten = new LinkedList<>();
+            for (final InputFile inputFile : inputFiles)
+                writeResources(inputFile, aout, out, resourcesWritten, reachable);
+
+            start = out.position();
+            ERG erg = AfplibFactory.eINSTANCE.createERG();
+            aout.writeStructuredField(erg);
+            aout.flush();
+            phase.bytesWritten.add(out.position() - start);
+        } finally {
+            timer.close();
         }
-        if (result.isEmpty()) {
-            for (SF sf : bdg) {
-                if (clazz.isInstance(sf) || (clazz.equals(PGP.class) && sf instanceof PGP1)) {
-                    result.add((T) sf);
-                }
-            }
+    }
+
+    /**
+     * Writes the resource group of a {@link CombineSession}, with the resources spooled by
+     * {@link #appendResources} before.
+     */
+    void writeResourceGroup(AfpOutputStream aout, AsyncFileOutputStream out, FileChannel spooledResources) throws IOException {
+        PhaseTimer timer = statistics.start(Phase.RESOURCE_GROUP, outFile);
+        try {
+            writeResourceGroupStart(aout);
+            aout.flush();
+            long count = spooledResources.size();
+            if (out.transferFrom(spooledResources, 0, count) < count)
+                throw new IOException("couldn't copy spooled resources");
+            ERG erg = AfplibFactory.eINSTANCE.createERG();
+            aout.writeStructuredField(erg);
+        } finally {
+            timer.close();
         }
+    }
 
-        dest.addAll(result);
+    /**
+     * Writes the resources of one more input file of a {@link CombineSession} to a spool file.
+     */
+    void appendResources(InputFile inputFile, AfpOutputStream aout, AsyncFileOutputStream out,
+                         LinkedList<ResourceKey> resourcesWritten) throws IOException {
+        PhaseTimer timer = statistics.start(Phase.RESOURCE_GROUP, outFile);
+        try {
+            writeResources(inputFile, aout, out, resourcesWritten, null);
+        } finally {
+            timer.close();
+        }
     }
 
-    private void writeResourceGroup() throws IOException {
-        LinkedList<ResourceKey> resourcesWritten = new LinkedList<>();
+    private void writeResourceGroupStart(AfpOutputStream aout) throws IOException {
+        writeResourceGroupStart(aout, formdef);
+    }
 
-        try (AfpOutputStream aout = AfpFiles.newAfpBufferedOutputStream(outFile, StandardOpenOption.CREATE)) {
-            BRG brg = AfplibFactory.eINSTANCE.createBRG();
-            aout.writeStructuredField(brg);
+    /**
+     * Writes the begin of a resource group and an inline formdef of the given structured fields.
+     */
+    static void writeResourceGroupStart(AfpOutputStream aout, SF[] formdef) throws IOException {
+        BRG brg = AfplibFactory.eINSTANCE.createBRG();
+        aout.writeStructuredField(brg);
+
+        {
+            BRS brs = AfplibFactory.eINSTANCE.createBRS();
+            brs.setRSName("F1INLINE");
+            ResourceObjectType type = AfplibFactory.eINSTANCE.createResourceObjectType();
+            type.setConData(new byte[]{0, 0, 0, 0});
+            type.setObjType(ResourceObjectTypeObjType.CONST_FORM_MAP_VALUE);
+            brs.getTriplets().add(type);
+            aout.writeStructuredField(brs);
+
+            for (SF sf : formdef)
+                aout.writeStructuredField(sf);
+
+            ERS ers = AfplibFactory.eINSTANCE.createERS();
+            aout.writeStructuredField(ers);
+        }
+    }
 
-            {
-                BRS brs = AfplibFactory.eINSTANCE.createBRS();
-                brs.setRSName("F1INLINE");
-                ResourceObjectType type = AfplibFactory.eINSTANCE.createResourceObjectType();
-                type.setConData(new byte[]{0, 0, 0, 0});
-                type.setObjType(ResourceObjectTypeObjType.CONST_FORM_MAP_VALUE);
-                brs.getTriplets().add(type);
-                aout.writeStructuredField(brs);
+    private void writeResources(InputFile inputFile, AfpOutputStream aout, AsyncFileOutputStream out,
+                                LinkedList<ResourceKey> resourcesWritten, Set<ResourceKey> reachable) throws IOException {
+        PhaseStatistics phase = statistics.get(Phase.RESOURCE_GROUP);
+        CombineEvents.InputFileEvent event = new CombineEvents.InputFileEvent(Phase.RESOURCE_GROUP, inputFile);
+        event.begin();
+        aout.flush();
+        long written = out.position();
+        try (final FileChannel in = AfpFiles.openInput(inputFile.path)) {
+            for (ResourceKey key : inputFile.resources) {
+
+                if (key.getType() == ResourceObjectTypeObjType.CONST_FORM_MAP_VALUE) {
+                    LOGGER.debug("not writing formdef {}", key.getName());
+                    continue;
+                }
 
-                for (SF sf : formdef)
-                    aout.writeStructuredField(sf);
+                Resource resource = inputFile.filePos.get(key);
+                String newName = inputFile.renamings.get(key);
 
-                ERS ers = AfplibFactory.eINSTANCE.createERS();
-                aout.writeStructuredField(ers);
-            }
+                if (reachable != null && !reachable.contains(outputKey(inputFile, key))) {
+                    LOGGER.debug("not writing resource {} from {}, the documents do not need it", key.getName(), inputFile.getName());
+                    statistics.resourcesPruned.increment();
+                    continue;
+                }
 
-            LOGGER.info("writing resource group");
+                if (newName != null) {
+                    ResourceKey newkey = new ResourceKey(key.getType(), newName, key.getObjId());
+                    if (resourcesWritten.contains(newkey)) {
+                        LOGGER.debug("not writing resource {} as {} again", key.getName(), newName);
+                        statistics.resourcesDeduplicated.increment();
+                        continue;
+                    }
+                    resourcesWritten.add(newkey);
+                    LOGGER.debug("writing resource {} as {} from {}", key.getName(), newName, inputFile.getName());
+                } else if (resourcesWritten.contains(key)) {
+                    LOGGER.debug("not writing resource {} again", key.getName());
+                    statistics.resourcesDeduplicated.increment();
+                    continue;
+                } else {
+                    resourcesWritten.add(key);
+                    LOGGER.debug("writing resource {} from {}", key.getName(), inputFile.getName());
+                }
 
-            for (final InputFile inputFile : inputFiles) {
-                try (final AfpInputStream ain = AfpFiles.newAfpInputStream(inputFile.path)) {
-                    for (ResourceKey key : inputFile.resources) {
+                copyResource(inputFile, in, resource, newName, aout, out);
+                event.bytesRead += resource.end - resource.start;
+            }
+        }
+        aout.flush();
+        event.bytesWritten = out.position() - written;
+        phase.bytesRead.add(event.bytesRead);
+        phase.bytesWritten.add(event.bytesWritten);
+        event.commit();
+    }
 
-                        if (key.getType() == ResourceObjectTypeObjType.CONST_FORM_MAP_VALUE) {
-                            LOGGER.debug("not writing formdef {}", key.getName());
-                            continue;
-                        }
+    /**
+     * Copies a resource from its input file, renamed to {@code newName} unless that is null.
+     */
+    void copyResource(InputFile inputFile, FileChannel in, Resource resource, String newName,
+                      AfpOutputStream aout, AsyncFileOutputStream out) throws IOException {
+        aout.flush();
+        if (newName == null) {
+            transfer(in, resource.start, resource.end - resource.start, out, inputFile);
+            return;
+        }
 
-                        ain.position(inputFile.filePos.get(key).start);
-                        BRS brs = (BRS) ain.readStructuredField();
+        // only BRS and ERS need renaming, the body is copied channel to channel
+        PhaseStatistics phase = statistics.get(Phase.RESOURCE_GROUP);
+        byte[] brs = AfpFiles.readStructuredField(in, resource.start);
+        (writeRenamedResourceField(brs, newName, aout) ? phase.fieldsPatched : phase.fieldsDecoded).increment();
+        aout.flush();
 
-                        if (inputFile.renamings.containsKey(key)) {
-                            String newName = inputFile.renamings.get(key);
-                            ResourceKey newkey = new ResourceKey(key.getType(), newName, key.getObjId());
-                            if (resourcesWritten.contains(newkey)) {
-                                LOGGER.debug("not writing resource {} as {} again", key.getName(), newName);
-                                continue;
-                            }
-                            renameBRSERS(brs, newName);
-                            resourcesWritten.add(newkey);
-                            LOGGER.debug("writing resource {} as {} from {}", key.getName(), newName, inputFile.getName());
-                        } else if (resourcesWritten.contains(key)) {
-                            LOGGER.debug("not writing resource {} again", key.getName());
-                            continue;
-                        } else {
-                            resourcesWritten.add(key);
-                            LOGGER.debug("writing resource {} from {}", key.getName(), inputFile.getName());
-                        }
+        long bodyStart = resource.start + brs.length;
+        transfer(in, bodyStart, resource.ersPos - bodyStart, out, inputFile);
 
-                        aout.writeStructuredField(brs);
-                        byte[] buffer = new byte[8 * 1024];
-                        int l;
-                        long left = inputFile.filePos.get(key).ersPos - ain.getCurrentOffset();
-                        while ((l = ain.read(buffer, 0, left > buffer.length ? buffer.length : (int) left)) > 0) {
-                            aout.write(buffer, 0, l);
-                            left -= l;
-                        }
-                        if (left > 0) throw new IOException("couldn't copy resource from " + inputFile.getName());
+        byte[] ers = AfpFiles.readStructuredField(in, resource.ersPos);
+        (writeRenamedResourceField(ers, newName, aout) ? phase.fieldsPatched : phase.fieldsDecoded).increment();
+        aout.flush();
+    }
 
-                        ERS ers = (ERS) ain.readStructuredField();
-                        if (inputFile.renamings.containsKey(key)) {
-                            String newName = inputFile.renamings.get(key);
-                            renameBRSERS(ers, newName);
-                        }
-                        aout.writeStructuredField(ers);
-                    }
-                }
-            }
+    private static void transfer(FileChannel in, long position, long count, AsyncFileOutputStream out,
+                                 InputFile inputFile) throws IOException {
+        if (out.transferFrom(in, position, count) < count)
+            throw new IOException("couldn't copy resource from " + inputFile.getName());
+    }
 
-            ERG erg = AfplibFactory.eINSTANCE.createERG();
-            aout.writeStructuredField(erg);
+    /**
+     * Writes a Begin or End Resource under {@code newName}, patched in place if possible.
+     *
+     * @return whether the field was patched rather than decoded
+     */
+    private boolean writeRenamedResourceField(byte[] record, String newName, AfpOutputStream aout) throws IOException {
+        if (patchNames && NamePatcher.renameResource(record, record.length, newName.getBytes(NamePatcher.EBCDIC))
+                == NamePatcher.Result.PATCHED) {
+            aout.write(record, 0, record.length);
+            return true;
         }
-
+        SF sf = AfpRecordReader.decode(record, record.length);
+        renameBRSERS(sf, newName);
+        aout.writeStructuredField(sf);
+        return false;
     }
 
-    private void renameBRSERS(SF sf, String newName) {
+    void renameBRSERS(SF sf, String newName) {
         if (sf instanceof BRS) {
             ((BRS) sf).setRSName(newName);
             EList<Triplet> triplets = ((BRS) sf).getTriplets();
@@ -462,47 +1565,374 @@ public class AfpCombine {
         }
     }
 
-    private void writeDocuments() throws IOException {
-        for (final InputFile inputFile : inputFiles) {
-            LOGGER.info("writing documents from {}", inputFile.getName());
-            try (final AfpInputStream ain = AfpFiles.newAfpInputStream(inputFile.path);
-                 final AfpOutputStream aout = AfpFiles.newAfpBufferedOutputStream(outFile, StandardOpenOption.APPEND)) {
-
-                ain.position(inputFile.documentStart);
-
-                AfpFilter.filter(ain, aout, sf -> {
-                    LOGGER.trace("{}", sf);
-                    switch (sf.getId()) {
-                        case SFName.IMM_VALUE:
-                            return rename(inputFile, (IMM) sf);
-                        case SFName.IOB_VALUE:
-                            return rename(inputFile, (IOB) sf);
-                        case SFName.IPG_VALUE:
-                            return rename();
-                        case SFName.IPO_VALUE:
-                            return rename(inputFile, (IPO) sf);
-                        case SFName.IPS_VALUE:
-                            return rename(inputFile, (IPS) sf);
-                        case SFName.MCF_VALUE:
-                            return rename(inputFile, (MCF) sf);
-                        case SFName.MCF1_VALUE:
-                            return rename(inputFile, (MCF1) sf);
-                        case SFName.MDR_VALUE:
-                            return rename(inputFile, (MDR) sf);
-                        case SFName.MMO_VALUE:
-                            return rename(inputFile, (MMO) sf);
-                        case SFName.MPG_VALUE:
-                            return rename((MPG) sf);
-                        case SFName.MPO_VALUE:
-                            return rename(inputFile, (MPO) sf);
-                        case SFName.MPS_VALUE:
-                            return rename(inputFile, (MPS) sf);
+    void writeDocuments(AfpOutputStream aout, AsyncFileOutputStream out) throws IOException {
+        PhaseTimer timer = statistics.start(Phase.DOCUMENTS, outFile);
+        try {
+            long rewritten = inputFiles.stream().filter(AfpCombine::hasRenamings).count();
+            if (parallelism < 2 || rewritten < 2) {
+                for (int i = 0; i < inputFiles.size(); i++)
+                    index(writeInputDocuments(inputFiles.get(i), i, aout, out));
+            } else {
+                writeDocumentsConcurrently(aout, out);
+            }
+        } finally {
+            timer.close();
+        }
+    }
+
+    private static boolean hasRenamings(InputFile inputFile) {
+        return !inputFile.renamings.isEmpty() || !inputFile.renameIMM.isEmpty();
+    }
+
+    /**
+     * Rewrites the documents of input files with renamings concurrently into segment files, which
+     * are appended to the output in input order. Documents without renamings are copied straight
+     * from the input file when their turn comes. Segments are rewritten at most a few input files
+     * ahead of the one being appended, to bound the disk space they take.
+     */
+    private void writeDocumentsConcurrently(AfpOutputStream aout, AsyncFileOutputStream out) throws IOException {
+        int ahead = 2 * parallelism;
+        List<Future<Path>> segments = new ArrayList<>(inputFiles.size());
+        PageIndex.Entries[] segmentIndex = new PageIndex.Entries[inputFiles.size()];
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        int i = 0;
+        try {
+            for (; i < inputFiles.size(); i++) {
+                while (segments.size() < inputFiles.size() && segments.size() <= i + ahead) {
+                    final int input = segments.size();
+                    final InputFile inputFile = inputFiles.get(input);
+                    segments.add(hasRenamings(inputFile)
+                            ? executor.submit(() -> writeSegment(inputFile, input, segmentIndex)) : null);
+                }
+
+                InputFile inputFile = inputFiles.get(i);
+                Future<Path> segment = segments.get(i);
+                if (segment == null) {
+                    index(writeInputDocuments(inputFile, i, aout, out));
+                    continue;
+                }
+
+                Path file = await(segment);
+                try (final FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+                    aout.flush();
+                    long position = out.position(), count = in.size();
+                    if (out.transferFrom(in, 0, count) < count)
+                        throw new IOException("couldn't copy documents of " + inputFile.getName() + " from " + file);
+                    if (segmentIndex[i] != null) {
+                        segmentIndex[i].shift(position);
+                        index(segmentIndex[i]);
+                        segmentIndex[i] = null;
+                    }
+                } finally {
+                    Files.deleteIfExists(file);
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+            if (i < segments.size()) discardSegments(executor, segments.subList(i + 1, segments.size()));
+        }
+    }
+
+    /**
+     * @param index receives the index entries of the segment, at offsets in the segment file
+     */
+    private Path writeSegment(InputFile inputFile, int input, PageIndex.Entries[] index) throws IOException {
+        Path segment = newSpoolFile(".segment");
+        try {
+            try (AsyncFileOutputStream out = newOutputStream(segment);
+                 AfpOutputStream aout = new AfpOutputStream(out)) {
+                index[input] = writeInputDocuments(inputFile, input, aout, out);
+            }
+            return segment;
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(segment);
+            throw e;
+        }
+    }
+
+    private static void discardSegments(ExecutorService executor, List<Future<Path>> segments) {
+        try {
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Future<Path> segment : segments) {
+            if (segment == null || !segment.isDone() || segment.isCancelled()) continue;
+            try {
+                Files.deleteIfExists(segment.get());
+            } catch (ExecutionException | InterruptedException | IOException e) {
+                LOGGER.debug("not deleting segment", e);
+            }
+        }
+    }
+
+    /**
+     * Writes the documents of a {@link CombineSession}, spooled by {@link #appendDocuments} before.
+     */
+    void writeDocuments(AfpOutputStream aout, AsyncFileOutputStream out, FileChannel spooledDocuments) throws IOException {
+        PhaseTimer timer = statistics.start(Phase.DOCUMENTS, outFile);
+        try {
+            aout.flush();
+            long count = spooledDocuments.size();
+            if (out.transferFrom(spooledDocuments, 0, count) < count)
+                throw new IOException("couldn't copy spooled documents");
+        } finally {
+            timer.close();
+        }
+    }
+
+    /**
+     * Writes the documents of one more input file of a {@link CombineSession} to a spool file.
+     */
+    void appendDocuments(InputFile inputFile, AfpOutputStream aout, AsyncFileOutputStream out) throws IOException {
+        PhaseTimer timer = statistics.start(Phase.DOCUMENTS, outFile);
+        try {
+            writeInputDocuments(inputFile, -1, aout, out);
+        } finally {
+            timer.close();
+        }
+    }
+
+    /**
+     * @param input the number of the input file, or -1 if its documents are not indexed
+     * @return the page index entries of the documents at offsets in {@code out}, or null without a page index
+     */
+    private PageIndex.Entries writeInputDocuments(InputFile inputFile, int input, AfpOutputStream aout,
+                                                  AsyncFileOutputStream out) throws IOException {
+        LOGGER.info("writing documents from {}", inputFile.getName());
+        PhaseStatistics phase = statistics.get(Phase.DOCUMENTS);
+        CombineEvents.InputFileEvent event = new CombineEvents.InputFileEvent(Phase.DOCUMENTS, inputFile);
+        event.begin();
+        aout.flush();
+        long written = out.position();
+        PageIndex.Entries entries = pageIndex && input >= 0 ? new PageIndex.Entries() : null;
+        event.bytesRead = writeDocuments(inputFile, aout, out, entries, entries == null ? null : numbering(input));
+        aout.flush();
+        event.bytesWritten = out.position() - written;
+        phase.bytesRead.add(event.bytesRead);
+        phase.bytesWritten.add(event.bytesWritten);
+        event.commit();
+        return entries;
+    }
+
+    /**
+     * Copies the documents of one input file, renaming references where needed. Only structured
+     * fields that may carry a reference to a renamed resource or medium map are decoded, all others
+     * are copied as they are. Without any renamings the documents are copied in one transfer.
+     *
+     * @param entries receives the page index entries at offsets in {@code out}, unless null
+     * @return the number of bytes read
+     */
+    private long writeDocuments(InputFile inputFile, AfpOutputStream aout, AsyncFileOutputStream out,
+                                PageIndex.Entries entries, PageIndex.Numbering numbering) throws IOException {
+        try (final FileChannel in = AfpFiles.openInput(inputFile.path)) {
+            if (!AfpFiles.isStructuredFieldAt(in, inputFile.documentStart)) {
+                LOGGER.debug("{}: documents do not start with a structured field, decoding all of them", inputFile.getName());
+                if (entries != null)
+                    LOGGER.warn("{}: documents do not start with a structured field, not indexing them", inputFile.getName());
+                filterDocuments(inputFile, aout);
+                return in.size() - inputFile.documentStart;
+            }
+
+            if (inputFile.renamings.isEmpty() && inputFile.renameIMM.isEmpty()) {
+                LOGGER.debug("{}: nothing to rename, copying documents", inputFile.getName());
+                aout.flush();
+                long position = out.position(), count = in.size() - inputFile.documentStart;
+                if (out.transferFrom(in, inputFile.documentStart, count) < count)
+                    throw new IOException("couldn't copy documents from " + inputFile.getName());
+                if (entries != null) indexDocuments(inputFile, position, entries, numbering);
+                return count;
+            }
+        }
+
+        PhaseStatistics phase = statistics.get(Phase.DOCUMENTS);
+        long decoded = 0, patched = 0, passedThrough = 0;
+        NamePatcher patcher = patchNames ? new NamePatcher(inputFile.renamings, inputFile.renameIMM) : null;
+        aout.flush();
+        long position = out.position();
+
+        try (final AfpRecordReader reader = memoryMapped
+                ? AfpFiles.newAfpMappedRecordReader(inputFile.path, inputFile.documentStart)
+                : AfpFiles.newAfpRecordReader(inputFile.path, inputFile.documentStart)) {
+            while (reader.next()) {
+                if (mayNeedRenaming(reader.getId())) {
+                    NamePatcher.Result result = patcher == null
+                            ? NamePatcher.Result.DECODE : patcher.patch(reader.getBuffer(), reader.getLength());
+                    if (result == NamePatcher.Result.DECODE) {
+                        SF sf = reader.decode();
+                        decoded++;
+                        if (rename(inputFile, sf) == STATE.MODIFIED) {
+                            if (entries == null) {
+                                aout.writeStructuredField(sf);
+                            } else {
+                                // the length of the encoded field is needed for the offsets of the index
+                                byte[] record = encode(sf);
+                                aout.write(record);
+                                position += record.length;
+                            }
+                            continue;
+                        }
+                    } else if (result == NamePatcher.Result.PATCHED) {
+                        patched++;
+                    } else {
+                        passedThrough++;
                     }
-                    return STATE.UNTOUCHED;
-                });
+                } else {
+                    passedThrough++;
+                }
+                if (entries != null) {
+                    numbering.add(entries, reader.getId(), position, reader.getBuffer(), reader.getLength());
+                    position += reader.getLength();
+                }
+                aout.write(reader.getBuffer(), 0, reader.getLength());
+            }
+            phase.fieldsDecoded.add(decoded);
+            phase.fieldsPatched.add(patched);
+            phase.fieldsPassedThrough.add(passedThrough);
+            return reader.getOffset() - inputFile.documentStart;
+        }
+    }
+
+    /**
+     * Indexes documents that were copied unchanged to {@code position}.
+     */
+    private void indexDocuments(InputFile inputFile, long position, PageIndex.Entries entries,
+                                PageIndex.Numbering numbering) throws IOException {
+        try (final AfpRecordReader reader = memoryMapped
+                ? AfpFiles.newAfpMappedRecordReader(inputFile.path, inputFile.documentStart)
+                : AfpFiles.newAfpRecordReader(inputFile.path, inputFile.documentStart)) {
+            while (reader.next()) {
+                if (PageIndex.isIndexed(reader.getId()))
+                    numbering.add(entries, reader.getId(), position + reader.getRecordOffset() - inputFile.documentStart,
+                            reader.getBuffer(), reader.getLength());
+            }
+            statistics.get(Phase.DOCUMENTS).bytesRead.add(reader.getOffset() - inputFile.documentStart);
+        }
+    }
+
+    /**
+     * @return the bytes of a structured field as written to an output file
+     */
+    static byte[] encode(SF sf) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (AfpOutputStream out = new AfpOutputStream(bytes)) {
+            out.writeStructuredField(sf);
+        }
+        return bytes.toByteArray();
+    }
+
+    private void filterDocuments(InputFile inputFile, AfpOutputStream aout) throws IOException {
+        try (final AfpInputStream ain = newSeekableInputStream(inputFile.path)) {
+            ain.position(inputFile.documentStart);
+            PhaseStatistics phase = statistics.get(Phase.DOCUMENTS);
+            AfpFilter.filter(ain, aout, sf -> {
+                phase.fieldsDecoded.increment();
+                return rename(inputFile, sf);
+            });
+        }
+    }
+
+    /**
+     * Renames the references in the documents of one input file like {@link #writeDocuments(InputFile,
+     * AfpOutputStream, AsyncFileOutputStream)} and hands them to the splitter, to plan the parts or to write
+     * them. Both passes count the bytes read, only the writing pass counts the structured fields.
+     */
+    private void writeDocuments(InputFile inputFile, OutputSplitter splitter, boolean plan) throws IOException {
+        LOGGER.info(plan ? "planning parts of documents from {}" : "writing documents from {}", inputFile.getName());
+        PhaseStatistics phase = statistics.get(Phase.DOCUMENTS);
+        CombineEvents.InputFileEvent event = new CombineEvents.InputFileEvent(Phase.DOCUMENTS, inputFile);
+        event.begin();
+        long decoded = 0, patched = 0, passedThrough = 0;
+        NamePatcher patcher = patchNames ? new NamePatcher(inputFile.renamings, inputFile.renameIMM) : null;
+
+        try (final FileChannel in = AfpFiles.openInput(inputFile.path)) {
+            if (in.size() > inputFile.documentStart && !AfpFiles.isStructuredFieldAt(in, inputFile.documentStart))
+                throw new IOException(inputFile.getName() + ": cannot split documents that do not start with a structured field");
+        }
 
+        try (final AfpRecordReader reader = memoryMapped
+                ? AfpFiles.newAfpMappedRecordReader(inputFile.path, inputFile.documentStart)
+                : AfpFiles.newAfpRecordReader(inputFile.path, inputFile.documentStart)) {
+            while (reader.next()) {
+                SF sf = null;
+                if (mayNeedRenaming(reader.getId())) {
+                    NamePatcher.Result result = patcher == null
+                            ? NamePatcher.Result.DECODE : patcher.patch(reader.getBuffer(), reader.getLength());
+                    if (result == NamePatcher.Result.DECODE) {
+                        sf = reader.decode();
+                        decoded++;
+                        if (rename(inputFile, sf) != STATE.MODIFIED) sf = null;
+                    } else if (result == NamePatcher.Result.PATCHED) {
+                        patched++;
+                    } else {
+                        passedThrough++;
+                    }
+                } else {
+                    passedThrough++;
+                }
+                if (plan)
+                    splitter.plan(reader.getId(), reader.getBuffer(), reader.getLength(), sf);
+                else
+                    splitter.write(reader.getId(), reader.getBuffer(), reader.getLength(), sf);
             }
+            event.bytesRead = reader.getOffset() - inputFile.documentStart;
+        }
+        phase.bytesRead.add(event.bytesRead);
+        if (!plan) {
+            phase.fieldsDecoded.add(decoded);
+            phase.fieldsPatched.add(patched);
+            phase.fieldsPassedThrough.add(passedThrough);
+        }
+        event.commit();
+    }
+
+    private static boolean mayNeedRenaming(int id) {
+        switch (id) {
+            case SFName.IMM_VALUE:
+            case SFName.IOB_VALUE:
+            case SFName.IPO_VALUE:
+            case SFName.IPS_VALUE:
+            case SFName.MCF_VALUE:
+            case SFName.MCF1_VALUE:
+            case SFName.MDR_VALUE:
+            case SFName.MMO_VALUE:
+            case SFName.MPG_VALUE:
+            case SFName.MPO_VALUE:
+            case SFName.MPS_VALUE:
+                return true;
+        }
+        return false;
+    }
+
+    Filter.STATE rename(InputFile inputFile, SF sf) {
+        LOGGER.trace("{}", sf);
+        switch (sf.getId()) {
+            case SFName.IMM_VALUE:
+                return rename(inputFile, (IMM) sf);
+            case SFName.IOB_VALUE:
+                return rename(inputFile, (IOB) sf);
+            case SFName.IPG_VALUE:
+                return rename();
+            case SFName.IPO_VALUE:
+                return rename(inputFile, (IPO) sf);
+            case SFName.IPS_VALUE:
+                return rename(inputFile, (IPS) sf);
+            case SFName.MCF_VALUE:
+                return rename(inputFile, (MCF) sf);
+            case SFName.MCF1_VALUE:
+                return rename(inputFile, (MCF1) sf);
+            case SFName.MDR_VALUE:
+                return rename(inputFile, (MDR) sf);
+            case SFName.MMO_VALUE:
+                return rename(inputFile, (MMO) sf);
+            case SFName.MPG_VALUE:
+                return rename((MPG) sf);
+            case SFName.MPO_VALUE:
+                return rename(inputFile, (MPO) sf);
+            case SFName.MPS_VALUE:
+                return rename(inputFile, (MPS) sf);
         }
+        return STATE.UNTOUCHED;
     }
 
     private void overrideGid(EList<Triplet> triplets, String newName) {
@@ -614,7 +2044,7 @@ public class AfpCombine {
         for (MCF1RG rg : sf.getRG()) {
             LOGGER.trace("{}", rg);
 
-            byte[] fcsname = rg.getFCSName().getBytes(Charset.forName("IBM500"));
+            byte[] fcsname = rg.getFCSName().getBytes(NamePatcher.EBCDIC);
             if (fcsname[0] != (byte) 0xff && fcsname[1] != (byte) 0xff) {
                 ResourceKey key = new ResourceKey(ResourceObjectTypeObjType.CONST_FONT_CHARACTER_SET, rg.getFCSName());
                 if (inputFile.renamings.containsKey(key)) {
@@ -625,7 +2055,7 @@ public class AfpCombine {
                 }
             }
 
-            byte[] cfname = rg.getCFName().getBytes(Charset.forName("IBM500"));
+            byte[] cfname = rg.getCFName().getBytes(NamePatcher.EBCDIC);
             if (cfname[0] != (byte) 0xff && cfname[1] != (byte) 0xff) {
                 ResourceKey key = new ResourceKey(ResourceObjectTypeObjType.CONST_CODED_FONT, rg.getCFName());
                 if (inputFile.renamings.containsKey(key)) {
@@ -636,7 +2066,7 @@ public class AfpCombine {
                 }
             }
 
-            byte[] cpname = rg.getCPName().getBytes(Charset.forName("IBM500"));
+            byte[] cpname = rg.getCPName().getBytes(NamePatcher.EBCDIC);
             if (cpname[0] != (byte) 0xff && cpname[1] != (byte) 0xff) {
                 ResourceKey key = new ResourceKey(ResourceObjectTypeObjType.CONST_CODE_PAGE, rg.getCPName());
                 if (inputFile.renamings.containsKey(key)) {
@@ -751,50 +2181,5 @@ public class AfpCombine {
         return result;
     }
 
-
-    private String getNewResourceName(String oldName, String hash) {
-        for (int i = 0; i < hash.length() - 5; i++) {
-            String res = oldName.substring(0, 2) + hash.substring(i, i + 6);
-            if (!resourceNames.contains(res))
-                return res.toUpperCase();
-        }
-        for (int i = 0; i < 999999; i++) {
-            String res = oldName.substring(0, 2) + String.format("%06d", i);
-            if (!resourceNames.contains(res))
-                return res.toUpperCase();
-        }
-        LOGGER.error("unable to find a resource name for hash " + hash);
-        throw new IllegalStateException(
-                "unable to find a resource name for hash " + hash);
-    }
-
-    private String getNewFormdefName(String oldName, String hash) {
-        for (int i = 0; i < hash.length() - 5; i++) {
-            String res = oldName.substring(0, 2) + hash.substring(i, i + 6);
-            if (!mmNames.contains(res))
-                return res.toUpperCase();
-        }
-        for (int i = 0; i < 999999; i++) {
-            String res = oldName.substring(0, 2) + String.format("%06d", i);
-            if (!mmNames.contains(res))
-                return res.toUpperCase();
-        }
-        LOGGER.error("unable to find a resource name for hash " + hash);
-        throw new IllegalStateException(
-                "unable to find a resource name for hash " + hash);
-    }
-
-    private String getHash(byte[] bytes) {
-        algorithm.reset();
-        algorithm.update(bytes);
-        byte[] messageDigest = algorithm.digest();
-
-        StringBuilder hexString = new StringBuilder();
-        for (byte b : messageDigest) {
-            hexString.append(Integer.toHexString(0xFF & b));
-        }
-        return hexString.toString();
-    }
-
 }
 
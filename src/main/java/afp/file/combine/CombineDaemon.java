@@ -0,0 +1,422 @@
+package afp.file.combine;
+
+import afp.file.combine.CombineStatistics.Phase;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Runs combine jobs sent over a local TCP port in one resident JVM, so that jobs need not pay for the start of a
+ * JVM, the loading of the AFP model and a cold JIT each. The jobs run on a {@link CombineService}, and share its
+ * scan results. The port is bound to the loopback address only.
+ * <p>
+ * As any local user can connect to the port, the daemon writes a random token to a file only its own user can
+ * read, and every request must start with it. A connection that sends another token is answered with an error
+ * and closed. The token changes with every start of the daemon, and its file is deleted when the daemon stops.
+ * Files are read and written with the permissions of the daemon's user, so the token must only be given to
+ * those who may do that.
+ * <p>
+ * A connection that sends a token longer than the one expected, a request longer than
+ * {@value #MAX_REQUEST_LENGTH} characters or nothing for the {@link #setTimeout(int) timeout} is closed, and
+ * connections beyond the {@link #setMaxConnections(int) maximum} are answered with an error and closed at once,
+ * so that clients cannot hold more memory or threads of the daemon than those.
+ * <p>
+ * Requests and replies are lines of UTF-8 text whose fields are separated by tabs. A connection handles one
+ * request at a time and may send any number of them; clients run jobs concurrently over several connections.
+ * Each request is preceded by the token, which is not repeated below. Paths must be absolute, since the working
+ * directory of the daemon is not that of its clients.
+ * <pre>
+ * combine  &lt;output&gt;  &lt;input&gt; ...   ok  &lt;job&gt;  elapsed=&lt;ms&gt;  SCAN=&lt;ms&gt; ...  output=&lt;path&gt; ...
+ *                                     failed  &lt;job&gt;  &lt;message&gt;
+ * status                              status  running=&lt;n&gt;  completed=&lt;n&gt;  failed=&lt;n&gt;  cached=&lt;n&gt;
+ * shutdown                            ok  shutdown
+ * </pre>
+ * The reply to a combine is sent when the job is done, with the time from the request to the reply, the wall
+ * times of the phases of the job in milliseconds and the files written. Requests that are not understood are
+ * answered with {@code error} and a message, as are relative paths. After a shutdown, the jobs that are running are finished and
+ * answered before the daemon ends.
+ */
+public final class CombineDaemon implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CombineDaemon.class);
+
+    /** the port used if none is given, by the system property {@code afp.combine.daemon.port} */
+    public static final int DEFAULT_PORT = 7423;
+
+    private static final String SEPARATOR = "\t";
+    private static final int TOKEN_BYTES = 32;
+    /** the maximum number of characters of a request after the token */
+    static final int MAX_REQUEST_LENGTH = 1024 * 1024;
+    /** returned by {@link #readField} for a field longer than allowed */
+    private static final int TOO_LONG = -2;
+
+    private final CombineService service;
+    private final ServerSocket server;
+    private final Path tokenFile;
+    private final byte[] token;
+    private int maxConnections = Integer.getInteger("afp.combine.daemon.maxConnections", 64);
+    private int timeout = Integer.getInteger("afp.combine.daemon.timeout", 10 * 60 * 1000);
+    private final Set<Socket> clients = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger jobs = new AtomicInteger();
+    private final LongAdder running = new LongAdder(), completed = new LongAdder(), failed = new LongAdder();
+    private volatile boolean closed;
+
+    /**
+     * Writes a new token to {@code tokenFile} and binds the port on the loopback address.
+     *
+     * @param port      the port, or 0 for any free port, see {@link #getPort()}
+     * @param tokenFile the file the token is written to, readable by the user of the daemon only
+     */
+    public CombineDaemon(CombineService service, int port, Path tokenFile) throws IOException {
+        this.service = requireNonNull(service, "CombineService is required");
+        this.tokenFile = requireNonNull(tokenFile, "Path is required");
+        String token = newToken();
+        this.token = token.getBytes(StandardCharsets.UTF_8);
+        writeToken(tokenFile, token);
+        try {
+            this.server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(tokenFile);
+            throw e;
+        }
+    }
+
+    private static String newToken() {
+        byte[] bytes = new byte[TOKEN_BYTES];
+        new SecureRandom().nextBytes(bytes);
+        StringBuilder token = new StringBuilder(2 * TOKEN_BYTES);
+        for (byte b : bytes)
+            token.append(String.format("%02x", b & 0xff));
+        return token.toString();
+    }
+
+    /**
+     * Writes the token to a new file that only the owner may read and write, and moves it in place, so that it is
+     * never readable by others.
+     */
+    private static void writeToken(Path tokenFile, String token) throws IOException {
+        Path absolute = tokenFile.toAbsolutePath();
+        Files.createDirectories(absolute.getParent());
+        Path temporary;
+        if (absolute.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+            temporary = Files.createTempFile(absolute.getParent(), absolute.getFileName() + ".", ".tmp",
+                    PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        } else {
+            // without POSIX permissions, the file gets those of the directory, by default the user's home
+            temporary = Files.createTempFile(absolute.getParent(), absolute.getFileName() + ".", ".tmp");
+        }
+        try {
+            Files.write(temporary, token.getBytes(StandardCharsets.UTF_8));
+            Files.move(temporary, absolute, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    /**
+     * @return the file clients read the token from
+     */
+    public Path getTokenFile() {
+        return tokenFile;
+    }
+
+    public int getPort() {
+        return server.getLocalPort();
+    }
+
+    /**
+     * Sets how many connections are handled at a time. Connections beyond those are answered with an error and
+     * closed. Defaults to the system property {@code afp.combine.daemon.maxConnections} (64).
+     */
+    public void setMaxConnections(int maxConnections) {
+        if (maxConnections < 1)
+            throw new IllegalArgumentException("maxConnections must be at least 1: " + maxConnections);
+        this.maxConnections = maxConnections;
+    }
+
+    /**
+     * Sets how many milliseconds a connection may send nothing while the daemon waits for a request, after which
+     * it is closed. A job that runs longer does not count. Defaults to the system property
+     * {@code afp.combine.daemon.timeout} (10 minutes).
+     */
+    public void setTimeout(int timeout) {
+        if (timeout < 1)
+            throw new IllegalArgumentException("timeout must be at least 1 ms: " + timeout);
+        this.timeout = timeout;
+    }
+
+    /**
+     * Accepts connections until the daemon is {@link #close() closed} or a client sends a shutdown, then waits
+     * for the jobs that are running and closes the service.
+     */
+    public void serve() throws IOException {
+        LOGGER.info("accepting combine jobs on {}:{}", server.getInetAddress().getHostAddress(), getPort());
+        ExecutorService connections = Executors.newFixedThreadPool(maxConnections, runnable -> {
+            Thread thread = new Thread(runnable, "afp-daemon-connection");
+            thread.setDaemon(true);
+            return thread;
+        });
+        Semaphore permits = new Semaphore(maxConnections);
+        try {
+            while (!closed) {
+                Socket client;
+                try {
+                    client = server.accept();
+                } catch (SocketException e) {
+                    if (closed) break;
+                    throw e;
+                }
+                if (!permits.tryAcquire()) {
+                    reject(client);
+                    continue;
+                }
+                clients.add(client);
+                connections.execute(() -> {
+                    try {
+                        handle(client);
+                    } finally {
+                        permits.release();
+                    }
+                });
+            }
+        } finally {
+            close();
+            service.close();
+            connections.shutdown();
+            // idle connections see the end of their input, those waiting for a job answer it first
+            for (Socket client : clients) {
+                try {
+                    client.shutdownInput();
+                } catch (IOException e) {
+                    LOGGER.debug("connection already closed", e);
+                }
+            }
+            try {
+                if (!connections.awaitTermination(1, TimeUnit.MINUTES))
+                    LOGGER.warn("connections still open after shutdown");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            LOGGER.info("stopped after {} jobs, {} failed", completed.sum() + failed.sum(), failed.sum());
+        }
+    }
+
+    private void reject(Socket client) {
+        LOGGER.warn("closing connection from port {}, {} connections are open", client.getPort(), maxConnections);
+        try (Socket socket = client;
+             Writer out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8)) {
+            out.write("error" + SEPARATOR + "too many connections\n");
+        } catch (IOException e) {
+            LOGGER.debug("unable to answer a connection beyond the maximum", e);
+        }
+    }
+
+    private void handle(Socket client) {
+        try (Socket socket = client;
+             Reader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+             Writer out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8))) {
+            socket.setSoTimeout(timeout);
+            StringBuilder field = new StringBuilder();
+            while (true) {
+                // the token is read on its own, so that no more than its length is read before it is verified
+                int end = readField(in, field, token.length, true);
+                if (end == -1 && field.length() == 0) break;
+                if (end == '\n' && field.length() == 0) continue;
+                String reply, refused = null;
+                if (end == TOO_LONG || !MessageDigest.isEqual(token, field.toString().getBytes(StandardCharsets.UTF_8))) {
+                    reply = "error" + SEPARATOR + "not authorized";
+                    refused = "a wrong token";
+                } else if (end != '\t') {
+                    reply = reply(new String[0]);
+                } else if (readField(in, field, MAX_REQUEST_LENGTH, false) == TOO_LONG) {
+                    reply = "error" + SEPARATOR + "request longer than " + MAX_REQUEST_LENGTH + " characters";
+                    refused = "a request too long";
+                } else {
+                    reply = reply(field.toString().split(SEPARATOR, -1));
+                }
+                out.write(reply);
+                out.write('\n');
+                out.flush();
+                if (refused != null) {
+                    LOGGER.warn("closing connection from port {} that sent {}", socket.getPort(), refused);
+                    break;
+                }
+            }
+        } catch (SocketTimeoutException e) {
+            LOGGER.info("closing connection idle for {} ms", timeout);
+        } catch (IOException e) {
+            LOGGER.warn("connection failed", e);
+        } finally {
+            clients.remove(client);
+        }
+    }
+
+    /**
+     * Reads the characters up to the end of the line, or also up to a tab if {@code toTab}, into {@code field},
+     * without the line terminator.
+     *
+     * @return the character that ended the field, -1 at the end of the input, or {@link #TOO_LONG} if the field
+     * has more than {@code maxLength} characters, of which the rest is not read
+     */
+    private static int readField(Reader in, StringBuilder field, int maxLength, boolean toTab) throws IOException {
+        field.setLength(0);
+        int c;
+        while ((c = in.read()) >= 0) {
+            if (c == '\n' || toTab && c == '\t') break;
+            if (field.length() == maxLength) return TOO_LONG;
+            field.append((char) c);
+        }
+        if (c != '\t' && field.length() > 0 && field.charAt(field.length() - 1) == '\r')
+            field.setLength(field.length() - 1);
+        return c;
+    }
+
+    private String reply(String[] request) throws IOException {
+        if (request.length == 0) return "error" + SEPARATOR + "request expected";
+        switch (request[0]) {
+            case "combine":
+                if (request.length < 3) return "error" + SEPARATOR + "combine needs an output file and input files";
+                for (int i = 1; i < request.length; i++) {
+                    if (!isAbsolute(request[i])) return "error" + SEPARATOR + "path is not absolute: " + clean(request[i]);
+                }
+                return combine(request);
+            case "status":
+                return String.join(SEPARATOR, "status", "running=" + running.sum(), "completed=" + completed.sum(),
+                        "failed=" + failed.sum(), "cached=" + service.getScanCache().size());
+            case "shutdown":
+                LOGGER.info("shutdown requested");
+                close();
+                return "ok" + SEPARATOR + "shutdown";
+            default:
+                return "error" + SEPARATOR + "unknown request " + clean(request[0]);
+        }
+    }
+
+    private String combine(String[] request) {
+        int job = jobs.incrementAndGet();
+        long start = System.nanoTime();
+        String outFile = request[1];
+        running.increment();
+        try {
+            Path[] inFiles = new Path[request.length - 2];
+            for (int i = 0; i < inFiles.length; i++)
+                inFiles[i] = Paths.get(request[i + 2]);
+            AfpCombine combine = new AfpCombine(Paths.get(outFile), inFiles);
+            Future<CombineStatistics> result = service.submit(combine);
+            CombineStatistics statistics = result.get();
+
+            StringBuilder reply = new StringBuilder("ok").append(SEPARATOR).append(job)
+                    .append(SEPARATOR).append("elapsed=").append(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            for (Phase phase : Phase.values())
+                reply.append(SEPARATOR).append(phase).append('=')
+                        .append(TimeUnit.NANOSECONDS.toMillis(statistics.get(phase).getWallTimeNanos()));
+            for (Path output : combine.getOutputFiles())
+                reply.append(SEPARATOR).append("output=").append(output);
+            completed.increment();
+            return reply.toString();
+        } catch (ExecutionException e) {
+            failed.increment();
+            LOGGER.warn("job {} into {} failed", job, outFile, e.getCause());
+            return failure(job, String.valueOf(e.getCause()));
+        } catch (RejectedExecutionException e) {
+            failed.increment();
+            return failure(job, "daemon is shutting down");
+        } catch (RuntimeException e) {
+            failed.increment();
+            LOGGER.warn("job {} into {} failed", job, outFile, e);
+            return failure(job, String.valueOf(e));
+        } catch (InterruptedException e) {
+            failed.increment();
+            Thread.currentThread().interrupt();
+            return failure(job, "interrupted");
+        } finally {
+            running.decrement();
+        }
+    }
+
+    private static boolean isAbsolute(String path) {
+        try {
+            return Paths.get(path).isAbsolute();
+        } catch (InvalidPathException e) {
+            return false;
+        }
+    }
+
+    private static String failure(int job, String message) {
+        return String.join(SEPARATOR, "failed", String.valueOf(job), clean(message));
+    }
+
+    private static String clean(String text) {
+        return text.replaceAll("[\t\r\n]+", " ");
+    }
+
+    /**
+     * Stops accepting connections and deletes the token file. {@link #serve()} then finishes the jobs that are
+     * running and returns.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        try {
+            server.close();
+        } finally {
+            Files.deleteIfExists(tokenFile);
+        }
+    }
+
+    /**
+     * Runs a daemon on the port given as the first argument or by the system property
+     * {@code afp.combine.daemon.port} ({@value #DEFAULT_PORT}), with a service {@link CombineService#create()
+     * configured by the system properties}, until a client sends a shutdown. The token is written to the file
+     * given as the second argument or by the system property {@code afp.combine.daemon.tokenFile}
+     * ({@code .afp-combine/daemon.token} in the user's home directory).
+     */
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0])
+                : Integer.getInteger("afp.combine.daemon.port", DEFAULT_PORT);
+        Path tokenFile = Paths.get(args.length > 1 ? args[1] : System.getProperty("afp.combine.daemon.tokenFile",
+                Paths.get(System.getProperty("user.home"), ".afp-combine", "daemon.token").toString()));
+        CombineDaemon daemon = new CombineDaemon(CombineService.create(), port, tokenFile);
+        Thread serving = Thread.currentThread();
+        // on a signal, the running jobs are finished before the JVM exits
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                daemon.close();
+                serving.join();
+            } catch (IOException e) {
+                LOGGER.warn("unable to stop accepting jobs", e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "afp-daemon-shutdown"));
+        daemon.serve();
+    }
+}
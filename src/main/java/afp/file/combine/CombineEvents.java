@@ -0,0 +1,91 @@
+package afp.file.combine;
+
+/**
+ * Flight recorder events of {@link AfpCombine}. They are only committed while a recording
+ * with the event enabled is running, otherwise creating and ending them costs next to nothing.
+ * <p>
+ * Java 8 has the flight recorder API only from update 262 on. On older runtimes the events are
+ * never recorded, and the {@link JfrEvents} behind them are not loaded.
+ */
+final class CombineEvents {
+
+    private static final boolean RECORDABLE = isRecordable();
+
+    private CombineEvents() {
+    }
+
+    private static boolean isRecordable() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            return true;
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+
+    /**
+     * The methods of {@code jdk.jfr.Event}, on an event of {@link JfrEvents} if the runtime has them.
+     */
+    private abstract static class Recordable {
+        private final Object event;
+
+        Recordable(Object event) {
+            this.event = event;
+        }
+
+        final void begin() {
+            if (event != null) JfrEvents.begin(event);
+        }
+
+        final void end() {
+            if (event != null) JfrEvents.end(event);
+        }
+
+        final boolean shouldCommit() {
+            return event != null && JfrEvents.shouldCommit(event);
+        }
+
+        final void commit() {
+            if (event != null) commit(event);
+        }
+
+        abstract void commit(Object event);
+    }
+
+    static final class PhaseEvent extends Recordable {
+        String phase;
+        String output;
+        long bytesRead;
+        long bytesWritten;
+        long fieldsDecoded;
+        long fieldsPatched;
+        long fieldsPassedThrough;
+
+        PhaseEvent() {
+            super(RECORDABLE ? JfrEvents.newPhaseEvent() : null);
+        }
+
+        @Override
+        void commit(Object event) {
+            JfrEvents.commit(event, this);
+        }
+    }
+
+    static final class InputFileEvent extends Recordable {
+        String phase;
+        String path;
+        long bytesRead;
+        long bytesWritten;
+
+        InputFileEvent(CombineStatistics.Phase phase, AfpCombine.InputFile inputFile) {
+            super(RECORDABLE ? JfrEvents.newInputFileEvent() : null);
+            this.phase = phase.name();
+            this.path = inputFile.path.toString();
+        }
+
+        @Override
+        void commit(Object event) {
+            JfrEvents.commit(event, this);
+        }
+    }
+}
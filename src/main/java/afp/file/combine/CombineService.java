@@ -0,0 +1,120 @@
+package afp.file.combine;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Runs many {@link AfpCombine} jobs in one JVM. At most {@code jobs} jobs run at the same time,
+ * on virtual threads if the runtime has them and on a fixed thread pool otherwise. The jobs share
+ * a {@link ScanCache} of the scan results of their input files, so resource libraries used by many
+ * jobs are scanned and fingerprinted once. Apart from that, each job has its own state, and its
+ * output is the same as if it ran alone.
+ * <pre>
+ * try (CombineService service = CombineService.create()) {
+ *     Future&lt;CombineStatistics&gt; job = service.submit(output, inputs);
+ *     ...
+ *     job.get();
+ * }
+ * </pre>
+ */
+public class CombineService implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CombineService.class);
+
+    private final ExecutorService executor;
+    private final Semaphore running;
+    private final ScanCache scanCache;
+
+    /**
+     * @param jobs      the number of jobs that run at the same time
+     * @param cacheSize the number of input files whose scan results are kept
+     */
+    public CombineService(int jobs, int cacheSize) {
+        if (jobs < 1)
+            throw new IllegalArgumentException("jobs must be at least 1: " + jobs);
+        scanCache = new ScanCache(cacheSize);
+        ExecutorService virtual = newVirtualThreadPerTaskExecutor();
+        if (virtual != null) {
+            executor = virtual;
+            running = new Semaphore(jobs);
+        } else {
+            executor = Executors.newFixedThreadPool(jobs);
+            running = null;
+        }
+    }
+
+    /**
+     * Creates a service with the number of concurrent jobs given by the system property
+     * {@code afp.combine.service.jobs} (the number of available processors) and the number of
+     * cached scan results given by {@code afp.combine.service.cacheSize} (4096).
+     */
+    public static CombineService create() {
+        return new CombineService(
+                Integer.getInteger("afp.combine.service.jobs", Runtime.getRuntime().availableProcessors()),
+                Integer.getInteger("afp.combine.service.cacheSize", 4096));
+    }
+
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            LOGGER.debug("no virtual threads, running jobs on a thread pool");
+            return null;
+        }
+    }
+
+    /**
+     * Submits a combine of {@code inFiles} into {@code outFile} with the settings taken from the
+     * system properties.
+     */
+    public Future<CombineStatistics> submit(Path outFile, Path... inFiles) {
+        requireNonNull(outFile, "Path is required");
+        return submit(new AfpCombine(outFile, inFiles));
+    }
+
+    /**
+     * Submits a configured combine. It must not be run or submitted elsewhere.
+     */
+    public Future<CombineStatistics> submit(AfpCombine combine) {
+        requireNonNull(combine, "AfpCombine is required");
+        combine.setScanCache(scanCache);
+        return executor.submit(() -> {
+            if (running == null) return combine.run();
+            running.acquire();
+            try {
+                return combine.run();
+            } finally {
+                running.release();
+            }
+        });
+    }
+
+    ScanCache getScanCache() {
+        return scanCache;
+    }
+
+    /**
+     * Accepts no more jobs and waits for the submitted jobs to finish.
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+        try {
+            while (!executor.awaitTermination(1, TimeUnit.MINUTES))
+                LOGGER.info("waiting for combine jobs to finish");
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package afp.file.combine;
+
+import afp.file.AsyncFileOutputStream;
+import afp.file.combine.AfpCombine.InputFile;
+import org.afplib.ResourceKey;
+import org.afplib.io.AfpOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedList;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Combines input files that arrive one at a time. Each input file is scanned, renamed against the
+ * input files added before it, and its resources and documents are written to spool files next to
+ * the output file as soon as it is {@link #add(Path) added}. {@link #finish()} builds the formdef and writes
+ * the output file: the resource group, then the spooled documents.
+ * <p>
+ * {@link #finish()} is not cheap: it copies both spool files into the output file, so all resource and
+ * document bytes are written twice, and finishing takes about as long as copying the output file. The copy
+ * cannot be avoided, as the resource group with the merged formdef must come before the documents, and its
+ * size is only known when the last input file has been added. What the session saves is the scanning,
+ * renaming and decoding of the input files, which are done while they arrive. The copies are channel
+ * transfers, which the operating system may do without passing the bytes through the JVM.
+ * <p>
+ * Input files must stay readable until the session is finished, as later input files are compared
+ * with them. Since names of later input files are not known when an input file is renamed, new names
+ * may differ from those of an {@link AfpCombine} of the same input files. A session that is closed
+ * without being finished deletes its spool files and leaves no output.
+ * <p>
+ * A session writes one output file with all resources of its input files: it cannot be opened with
+ * {@link AfpCombine#setSplit split} or {@link AfpCombine#setPrune prune} set, nor with the system
+ * properties {@code afp.combine.split.maxBytes}, {@code afp.combine.split.maxPages} or {@code afp.combine.prune}.
+ * It does not write a {@link PageIndex} either, and ignores {@code afp.combine.pageIndex}.
+ * <pre>
+ * try (CombineSession session = CombineSession.open(output)) {
+ *     for (Path input : inputs)
+ *         session.add(input);
+ *     session.finish();
+ * }
+ * </pre>
+ */
+public class CombineSession implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CombineSession.class);
+
+    private final AfpCombine combine;
+    private final Path resourcesFile, documentsFile;
+    private final AsyncFileOutputStream resources, documents;
+    private final AfpOutputStream resourcesAout, documentsAout;
+    private final LinkedList<ResourceKey> resourcesWritten = new LinkedList<>();
+    private boolean closed;
+
+    private CombineSession(AfpCombine combine, Path resourcesFile, Path documentsFile) throws IOException {
+        this.combine = combine;
+        this.resourcesFile = resourcesFile;
+        this.documentsFile = documentsFile;
+        resources = combine.newOutputStream(resourcesFile);
+        resourcesAout = new AfpOutputStream(resources);
+        AsyncFileOutputStream out = null;
+        try {
+            out = combine.newOutputStream(documentsFile);
+        } finally {
+            if (out == null) resources.close();
+        }
+        documents = out;
+        documentsAout = new AfpOutputStream(documents);
+    }
+
+    /**
+     * Opens a session writing to {@code outFile}, with the settings of an {@link AfpCombine} taken
+     * from the system properties.
+     *
+     * @throws IllegalStateException if the system properties split or prune the output
+     */
+    public static CombineSession open(Path outFile) throws IOException {
+        return open(new AfpCombine(requireNonNull(outFile, "Path is required")));
+    }
+
+    static CombineSession open(AfpCombine combine) throws IOException {
+        combine.checkSessionSettings();
+        Path resourcesFile = combine.newSpoolFile(".resources");
+        Path documentsFile = null;
+        try {
+            documentsFile = combine.newSpoolFile(".documents");
+            return new CombineSession(combine, resourcesFile, documentsFile);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(resourcesFile);
+            if (documentsFile != null) Files.deleteIfExists(documentsFile);
+            throw e;
+        }
+    }
+
+    /**
+     * Scans an input file and spools its resources and documents.
+     */
+    public void add(Path inFile) throws IOException {
+        requireNonNull(inFile, "Path is required");
+        if (closed) throw new IllegalStateException("session is closed");
+
+        InputFile inputFile = combine.scanInput(inFile);
+        combine.renameAgainstPrevious(inputFile);
+        combine.appendResources(inputFile, resourcesAout, resources, resourcesWritten);
+        combine.appendDocuments(inputFile, documentsAout, documents);
+        LOGGER.debug("{}: added to session", inputFile.getName());
+    }
+
+    /**
+     * Writes the output file from the input files added so far and closes the session. This copies the
+     * spooled resources and documents into the output file.
+     *
+     * @return counters and timings of all phases of this session
+     */
+    public CombineStatistics finish() throws IOException {
+        if (closed) throw new IllegalStateException("session is closed");
+        try {
+            resourcesAout.close();
+            documentsAout.close();
+
+            combine.buildFormdef();
+
+            try (FileChannel spooledResources = FileChannel.open(resourcesFile, StandardOpenOption.READ);
+                 FileChannel spooledDocuments = FileChannel.open(documentsFile, StandardOpenOption.READ);
+                 AsyncFileOutputStream out = combine.newOutputStream();
+                 AfpOutputStream aout = new AfpOutputStream(out)) {
+                combine.writeResourceGroup(aout, out, spooledResources);
+                combine.writeDocuments(aout, out, spooledDocuments);
+            }
+        } finally {
+            close();
+        }
+
+        CombineStatistics statistics = combine.getStatistics();
+        LOGGER.info("combined session into {}: {}", combine.getOutFile(), statistics);
+        return statistics;
+    }
+
+    /**
+     * Discards the spool files. Without {@link #finish()} before, no output file is written.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        try {
+            resourcesAout.close();
+        } finally {
+            try {
+                documentsAout.close();
+            } finally {
+                Files.deleteIfExists(resourcesFile);
+                Files.deleteIfExists(documentsFile);
+            }
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package afp.file.combine;
+
+import java.nio.file.Path;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters collected by one {@link AfpCombine} run, per phase and for the whole run.
+ * <p>
+ * Counters are updated concurrently by the threads of a phase and may be read at any
+ * time. Structured fields that are copied within a bulk transfer are only counted in
+ * bytes, not as passed through fields. With a fan-in, the counters of the groups are
+ * summed up, including their wall times.
+ */
+public final class CombineStatistics {
+
+    public enum Phase {
+        SCAN, RENAMING, FORMDEF, RESOURCE_GROUP, DOCUMENTS
+    }
+
+    public static final class PhaseStatistics {
+        final LongAdder wallTime = new LongAdder();
+        final LongAdder bytesRead = new LongAdder();
+        final LongAdder bytesWritten = new LongAdder();
+        final LongAdder fieldsDecoded = new LongAdder();
+        final LongAdder fieldsPatched = new LongAdder();
+        final LongAdder fieldsPassedThrough = new LongAdder();
+
+        public long getWallTimeNanos() {
+            return wallTime.sum();
+        }
+
+        public long getBytesRead() {
+            return bytesRead.sum();
+        }
+
+        public long getBytesWritten() {
+            return bytesWritten.sum();
+        }
+
+        /**
+         * @return the number of structured fields turned into objects
+         */
+        public long getFieldsDecoded() {
+            return fieldsDecoded.sum();
+        }
+
+        /**
+         * @return the number of structured fields renamed in their raw bytes, without decoding them
+         */
+        public long getFieldsPatched() {
+            return fieldsPatched.sum();
+        }
+
+        /**
+         * @return the number of structured fields copied one by one without decoding them
+         */
+        public long getFieldsPassedThrough() {
+            return fieldsPassedThrough.sum();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d ms, %d bytes read, %d bytes written, %d fields decoded, %d patched, %d passed through",
+                    TimeUnit.NANOSECONDS.toMillis(getWallTimeNanos()), getBytesRead(), getBytesWritten(),
+                    getFieldsDecoded(), getFieldsPatched(), getFieldsPassedThrough());
+        }
+    }
+
+    private final Map<Phase, PhaseStatistics> phases = new EnumMap<>(Phase.class);
+    final LongAdder resourcesSeen = new LongAdder();
+    final LongAdder resourcesDeduplicated = new LongAdder();
+    final LongAdder resourcesPruned = new LongAdder();
+    final LongAdder resourcesRenamed = new LongAdder();
+    final LongAdder mediumMapsSeen = new LongAdder();
+    final LongAdder mediumMapsMerged = new LongAdder();
+    final LongAdder mediumMapsRenamed = new LongAdder();
+
+    CombineStatistics() {
+        for (Phase phase : Phase.values())
+            phases.put(phase, new PhaseStatistics());
+    }
+
+    public PhaseStatistics get(Phase phase) {
+        return phases.get(phase);
+    }
+
+    public long getWallTimeNanos() {
+        long nanos = 0;
+        for (PhaseStatistics phase : phases.values())
+            nanos += phase.getWallTimeNanos();
+        return nanos;
+    }
+
+    /**
+     * @return the number of resources in all input files, not counting formdefs
+     */
+    public long getResourcesSeen() {
+        return resourcesSeen.sum();
+    }
+
+    /**
+     * @return the number of resources not written because the same resource was written before
+     */
+    public long getResourcesDeduplicated() {
+        return resourcesDeduplicated.sum();
+    }
+
+    /**
+     * @return the number of resources not written because the documents do not need them
+     */
+    public long getResourcesPruned() {
+        return resourcesPruned.sum();
+    }
+
+    public long getResourcesRenamed() {
+        return resourcesRenamed.sum();
+    }
+
+    public long getMediumMapsSeen() {
+        return mediumMapsSeen.sum();
+    }
+
+    /**
+     * @return the number of medium maps written to the combined formdef
+     */
+    public long getMediumMapsMerged() {
+        return mediumMapsMerged.sum();
+    }
+
+    public long getMediumMapsRenamed() {
+        return mediumMapsRenamed.sum();
+    }
+
+    /**
+     * Adds the work of the combine of a group of input files to this combine. Resources and medium maps of
+     * the input files are counted by the scan and renaming of all input files, so only the phases and the
+     * resources dropped by the groups are added.
+     */
+    void addGroup(CombineStatistics group) {
+        for (Map.Entry<Phase, PhaseStatistics> phase : group.phases.entrySet()) {
+            PhaseStatistics from = phase.getValue(), to = phases.get(phase.getKey());
+            to.wallTime.add(from.getWallTimeNanos());
+            to.bytesRead.add(from.getBytesRead());
+            to.bytesWritten.add(from.getBytesWritten());
+            to.fieldsDecoded.add(from.getFieldsDecoded());
+            to.fieldsPatched.add(from.getFieldsPatched());
+            to.fieldsPassedThrough.add(from.getFieldsPassedThrough());
+        }
+        resourcesDeduplicated.add(group.getResourcesDeduplicated());
+        resourcesPruned.add(group.getResourcesPruned());
+    }
+
+    /**
+     * Starts timing a phase, which also marks it in a flight recording.
+     */
+    PhaseTimer start(Phase phase, Path outFile) {
+        return new PhaseTimer(phase, outFile);
+    }
+
+    final class PhaseTimer implements AutoCloseable {
+        private final PhaseStatistics statistics;
+        private final CombineEvents.PhaseEvent event = new CombineEvents.PhaseEvent();
+        private final long start = System.nanoTime();
+
+        private PhaseTimer(Phase phase, Path outFile) {
+            statistics = phases.get(phase);
+            event.phase = phase.name();
+            event.output = String.valueOf(outFile);
+            event.begin();
+        }
+
+        @Override
+        public void close() {
+            statistics.wallTime.add(System.nanoTime() - start);
+            event.end();
+            if (event.shouldCommit()) {
+                event.bytesRead = statistics.getBytesRead();
+                event.bytesWritten = statistics.getBytesWritten();
+                event.fieldsDecoded = statistics.getFieldsDecoded();
+                event.fieldsPatched = statistics.getFieldsPatched();
+                event.fieldsPassedThrough = statistics.getFieldsPassedThrough();
+                event.commit();
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%d ms, resources %d seen, %d deduplicated, %d pruned, %d renamed, medium maps %d seen, %d merged, %d renamed",
+                TimeUnit.NANOSECONDS.toMillis(getWallTimeNanos()),
+                getResourcesSeen(), getResourcesDeduplicated(), getResourcesPruned(), getResourcesRenamed(),
+                getMediumMapsSeen(), getMediumMapsMerged(), getMediumMapsRenamed()));
+        for (Map.Entry<Phase, PhaseStatistics> phase : phases.entrySet())
+            sb.append(System.lineSeparator()).append("  ").append(phase.getKey()).append(": ").append(phase.getValue());
+        return sb.toString();
+    }
+}
@@ -0,0 +1,96 @@
+package afp.file.combine;
+
+/**
+ * Fingerprint of the content of a resource or medium map, up to 128 bits of a hash or checksum.
+ * Equal fingerprints only tell that two contents are probably equal; {@link AfpCombine}
+ * still compares the bytes before it treats them as the same.
+ */
+public final class Fingerprint {
+
+    static final int MAX_LENGTH = 16;
+
+    private final long high, low;
+    private final int length;
+
+    /**
+     * @param high   the first eight bytes, big endian
+     * @param low    the next eight bytes, big endian
+     * @param length the number of significant bytes, starting with the most significant byte of {@code high}
+     */
+    Fingerprint(long high, long low, int length) {
+        if (length < 1 || length > MAX_LENGTH)
+            throw new IllegalArgumentException("fingerprint length must be 1 to 16 bytes: " + length);
+        this.high = high;
+        this.low = low;
+        this.length = length;
+    }
+
+    /**
+     * Takes the first 16 bytes of {@code bytes}.
+     */
+    static Fingerprint of(byte[] bytes) {
+        int length = Math.min(bytes.length, MAX_LENGTH);
+        long high = 0, low = 0;
+        for (int i = 0; i < MAX_LENGTH; i++) {
+            long b = i < length ? bytes[i] & 0xff : 0;
+            if (i < 8) high = high << 8 | b;
+            else low = low << 8 | b;
+        }
+        return new Fingerprint(high, low, length);
+    }
+
+    /**
+     * A four byte fingerprint, like a CRC.
+     */
+    static Fingerprint of(int value) {
+        return new Fingerprint((long) value << 32, 0, 4);
+    }
+
+    long getHigh() {
+        return high;
+    }
+
+    long getLow() {
+        return low;
+    }
+
+    int getLength() {
+        return length;
+    }
+
+    private int byteAt(int i) {
+        return (int) ((i < 8 ? high >>> (56 - 8 * i) : low >>> (56 - 8 * (i - 8))) & 0xff);
+    }
+
+    /**
+     * The significant bytes in hex without zero padding, as the hash strings new names have
+     * always been derived from.
+     */
+    String toNameSource() {
+        StringBuilder hex = new StringBuilder(2 * length);
+        for (int i = 0; i < length; i++)
+            hex.append(Integer.toHexString(byteAt(i)));
+        return hex.toString();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof Fingerprint)) return false;
+        Fingerprint other = (Fingerprint) o;
+        return high == other.high && low == other.low && length == other.length;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(high ^ low) * 31 + length;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder hex = new StringBuilder(2 * length);
+        for (int i = 0; i < length; i++)
+            hex.append(String.format("%02x", byteAt(i)));
+        return hex.toString();
+    }
+}
@@ -0,0 +1,236 @@
+package afp.file.combine;
+
+import java.lang.reflect.Constructor;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.function.Supplier;
+import java.util.zip.Checksum;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Computes the {@link Fingerprint} of the content of a resource or medium map while it is scanned.
+ * An instance is used by one thread at a time and reused after {@link #reset()}.
+ * <p>
+ * The built-in algorithms are selected by name with {@link #forName(String)}:
+ * <ul>
+ * <li>{@code digest:<algorithm>}, a {@link MessageDigest} such as {@code digest:MD5}; digests
+ * longer than 128 bits are truncated</li>
+ * <li>{@code crc32c}, the CRC32C checksum of the JDK, which needs Java 9</li>
+ * <li>{@code murmur3}, the 128 bit x64 variant of MurmurHash3</li>
+ * </ul>
+ */
+public abstract class Fingerprinter {
+
+    /**
+     * @return the name of the algorithm, which identifies fingerprints that can be compared
+     */
+    public abstract String getAlgorithm();
+
+    public abstract void reset();
+
+    public abstract void update(byte[] b, int off, int len);
+
+    /**
+     * @return the fingerprint of the bytes given since the last reset
+     */
+    public abstract Fingerprint finish();
+
+    /**
+     * @return a supplier of fingerprinters of the named algorithm
+     * @throws IllegalArgumentException if the algorithm is not known or not available
+     */
+    public static Supplier<Fingerprinter> forName(String name) {
+        requireNonNull(name, "Algorithm is required");
+        if (name.startsWith("digest:")) {
+            String algorithm = name.substring("digest:".length());
+            try {
+                MessageDigest.getInstance(algorithm);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalArgumentException("unknown digest algorithm " + algorithm, e);
+            }
+            return () -> new DigestFingerprinter(algorithm);
+        }
+        if (name.equals("crc32c")) {
+            Constructor<? extends Checksum> crc32c = crc32c();
+            return () -> new ChecksumFingerprinter(name, newInstance(crc32c));
+        }
+        if (name.equals("murmur3")) return Murmur3Fingerprinter::new;
+        throw new IllegalArgumentException("unknown fingerprint algorithm " + name);
+    }
+
+    private static Constructor<? extends Checksum> crc32c() {
+        try {
+            return Class.forName("java.util.zip.CRC32C").asSubclass(Checksum.class).getConstructor();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalArgumentException("CRC32C is not available before Java 9", e);
+        }
+    }
+
+    private static Checksum newInstance(Constructor<? extends Checksum> constructor) {
+        try {
+            return constructor.newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static final class DigestFingerprinter extends Fingerprinter {
+        private final MessageDigest digest;
+
+        DigestFingerprinter(String algorithm) {
+            try {
+                digest = MessageDigest.getInstance(algorithm);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalArgumentException(e);
+            }
+        }
+
+        @Override
+        public String getAlgorithm() {
+            return "digest:" + digest.getAlgorithm();
+        }
+
+        @Override
+        public void reset() {
+            digest.reset();
+        }
+
+        @Override
+        public void update(byte[] b, int off, int len) {
+            digest.update(b, off, len);
+        }
+
+        @Override
+        public Fingerprint finish() {
+            return Fingerprint.of(digest.digest());
+        }
+    }
+
+    private static final class ChecksumFingerprinter extends Fingerprinter {
+        private final String algorithm;
+        private final Checksum checksum;
+
+        ChecksumFingerprinter(String algorithm, Checksum checksum) {
+            this.algorithm = algorithm;
+            this.checksum = checksum;
+        }
+
+        @Override
+        public String getAlgorithm() {
+            return algorithm;
+        }
+
+        @Override
+        public void reset() {
+            checksum.reset();
+        }
+
+        @Override
+        public void update(byte[] b, int off, int len) {
+            checksum.update(b, off, len);
+        }
+
+        @Override
+        public Fingerprint finish() {
+            return Fingerprint.of((int) checksum.getValue());
+        }
+    }
+
+    /**
+     * MurmurHash3 x64 128, fed in arbitrary pieces.
+     */
+    private static final class Murmur3Fingerprinter extends Fingerprinter {
+        private static final long C1 = 0x87c37b91114253d5L, C2 = 0x4cf5ad432745937fL;
+
+        private final byte[] tail = new byte[16];
+        private int pending;
+        private long h1, h2, length;
+
+        @Override
+        public String getAlgorithm() {
+            return "murmur3";
+        }
+
+        @Override
+        public void reset() {
+            h1 = h2 = length = 0;
+            pending = 0;
+        }
+
+        @Override
+        public void update(byte[] b, int off, int len) {
+            length += len;
+            if (pending > 0) {
+                int n = Math.min(len, 16 - pending);
+                System.arraycopy(b, off, tail, pending, n);
+                pending += n;
+                off += n;
+                len -= n;
+                if (pending < 16) return;
+                mix(getLong(tail, 0), getLong(tail, 8));
+                pending = 0;
+            }
+            for (; len >= 16; off += 16, len -= 16)
+                mix(getLong(b, off), getLong(b, off + 8));
+            if (len > 0) {
+                System.arraycopy(b, off, tail, 0, len);
+                pending = len;
+            }
+        }
+
+        private static long getLong(byte[] b, int off) {
+            long l = 0;
+            for (int i = 7; i >= 0; i--)
+                l = l << 8 | b[off + i] & 0xff;
+            return l;
+        }
+
+        private void mix(long k1, long k2) {
+            h1 ^= mixK1(k1);
+            h1 = Long.rotateLeft(h1, 27) + h2;
+            h1 = h1 * 5 + 0x52dce729;
+
+            h2 ^= mixK2(k2);
+            h2 = Long.rotateLeft(h2, 31) + h1;
+            h2 = h2 * 5 + 0x38495ab5;
+        }
+
+        private static long mixK1(long k1) {
+            return Long.rotateLeft(k1 * C1, 31) * C2;
+        }
+
+        private static long mixK2(long k2) {
+            return Long.rotateLeft(k2 * C2, 33) * C1;
+        }
+
+        private static long fmix(long k) {
+            k ^= k >>> 33;
+            k *= 0xff51afd7ed558ccdL;
+            k ^= k >>> 33;
+            k *= 0xc4ceb9fe1a85ec53L;
+            k ^= k >>> 33;
+            return k;
+        }
+
+        @Override
+        public Fingerprint finish() {
+            long k1 = 0, k2 = 0;
+            for (int i = pending - 1; i >= 8; i--)
+                k2 = k2 << 8 | tail[i] & 0xff;
+            for (int i = Math.min(pending, 8) - 1; i >= 0; i--)
+                k1 = k1 << 8 | tail[i] & 0xff;
+            if (pending > 8) h2 ^= mixK2(k2);
+            if (pending > 0) h1 ^= mixK1(k1);
+
+            long a = h1 ^ length, b = h2 ^ length;
+            a += b;
+            b += a;
+            a = fmix(a);
+            b = fmix(b);
+            a += b;
+            b += a;
+            return new Fingerprint(a, b, Fingerprint.MAX_LENGTH);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package afp.file.combine;
+
+import jdk.jfr.*;
+
+/**
+ * The flight recorder events behind {@link CombineEvents}. This is the only class that refers to
+ * {@code jdk.jfr}, and it is only loaded if the runtime has it.
+ */
+final class JfrEvents {
+
+    private JfrEvents() {
+    }
+
+    @Name("afp.combine.Phase")
+    @Label("AFP Combine Phase")
+    @Category({"AFP", "Combine"})
+    @Description("One phase of combining AFP files")
+    static final class PhaseEvent extends Event {
+        @Label("Phase")
+        String phase;
+
+        @Label("Output File")
+        String output;
+
+        @Label("Bytes Read")
+        @DataAmount
+        long bytesRead;
+
+        @Label("Bytes Written")
+        @DataAmount
+        long bytesWritten;
+
+        @Label("Fields Decoded")
+        long fieldsDecoded;
+
+        @Label("Fields Patched")
+        long fieldsPatched;
+
+        @Label("Fields Passed Through")
+        long fieldsPassedThrough;
+    }
+
+    @Name("afp.combine.InputFile")
+    @Label("AFP Combine Input File")
+    @Category({"AFP", "Combine"})
+    @Description("Processing of one input file within a phase")
+    static final class InputFileEvent extends Event {
+        @Label("Phase")
+        String phase;
+
+        @Label("Input File")
+        String path;
+
+        @Label("Bytes Read")
+        @DataAmount
+        long bytesRead;
+
+        @Label("Bytes Written")
+        @DataAmount
+        long bytesWritten;
+    }
+
+    static Object newPhaseEvent() {
+        return new PhaseEvent();
+    }
+
+    static Object newInputFileEvent() {
+        return new InputFileEvent();
+    }
+
+    static void begin(Object event) {
+        ((Event) event).begin();
+    }
+
+    static void end(Object event) {
+        ((Event) event).end();
+    }
+
+    static boolean shouldCommit(Object event) {
+        return ((Event) event).shouldCommit();
+    }
+
+    static void commit(Object event, CombineEvents.PhaseEvent from) {
+        PhaseEvent to = (PhaseEvent) event;
+        to.phase = from.phase;
+        to.output = from.output;
+        to.bytesRead = from.bytesRead;
+        to.bytesWritten = from.bytesWritten;
+        to.fieldsDecoded = from.fieldsDecoded;
+        to.fieldsPatched = from.fieldsPatched;
+        to.fieldsPassedThrough = from.fieldsPassedThrough;
+        to.commit();
+    }
+
+    static void commit(Object event, CombineEvents.InputFileEvent from) {
+        InputFileEvent to = (InputFileEvent) event;
+        to.phase = from.phase;
+        to.path = from.path;
+        to.bytesRead = from.bytesRead;
+        to.bytesWritten = from.bytesWritten;
+        to.commit();
+    }
+}
@@ -0,0 +1,87 @@
+package afp.file.combine;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Hands out new names of at most eight characters within one namespace, like the page segments
+ * or the medium maps of a combined file, that do not clash with the names already in use.
+ * <p>
+ * A new name keeps the first two characters of the old name. The rest is taken from the
+ * fingerprint of the content if possible, so the same content gets the same name in every run,
+ * and is a counter per prefix otherwise.
+ */
+final class NameAllocator {
+
+    static final int NAME_LENGTH = 8;
+    private static final int PREFIX_LENGTH = 2;
+
+    private final String namespace;
+    private final Set<String> names = new HashSet<>();
+    private final Set<String> generated = new HashSet<>();
+    private final Map<String, Integer> counters = new HashMap<>();
+
+    NameAllocator(String namespace) {
+        this.namespace = namespace;
+    }
+
+    /**
+     * Marks a name of an input file as in use.
+     */
+    void reserve(String name) {
+        names.add(name);
+    }
+
+    boolean contains(String name) {
+        return names.contains(name);
+    }
+
+    /**
+     * @return whether the name was handed out by {@link #allocate}
+     */
+    boolean isGenerated(String name) {
+        return generated.contains(name);
+    }
+
+    /**
+     * @param oldName    the name that has to be replaced
+     * @param nameSource hex digits to derive the new name from
+     * @throws IllegalStateException if all names with the prefix of {@code oldName} are in use
+     */
+    String allocate(String oldName, String nameSource) {
+        String prefix = oldName.substring(0, Math.min(PREFIX_LENGTH, oldName.length())).toUpperCase();
+        int suffixLength = NAME_LENGTH - prefix.length();
+
+        String upper = nameSource.toUpperCase();
+        for (int i = 0; i + suffixLength <= upper.length(); i++) {
+            String candidate = prefix + upper.substring(i, i + suffixLength);
+            if (take(candidate)) return candidate;
+        }
+
+        int limit = (int) Math.pow(10, suffixLength);
+        StringBuilder candidate = new StringBuilder(NAME_LENGTH);
+        for (int i = counters.getOrDefault(prefix, 0); i < limit; i++) {
+            candidate.setLength(0);
+            candidate.append(prefix);
+            String counter = Integer.toString(i);
+            for (int pad = counter.length(); pad < suffixLength; pad++)
+                candidate.append('0');
+            candidate.append(counter);
+            if (take(candidate.toString())) {
+                counters.put(prefix, i + 1);
+                return candidate.toString();
+            }
+        }
+        counters.put(prefix, limit);
+        throw new IllegalStateException(String.format(
+                "no name left for %s in %s: all %d names with prefix %s are in use", oldName.trim(), namespace, limit, prefix));
+    }
+
+    private boolean take(String name) {
+        if (!names.add(name)) return false;
+        generated.add(name);
+        return true;
+    }
+}
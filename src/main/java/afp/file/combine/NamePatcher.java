@@ -0,0 +1,330 @@
+package afp.file.combine;
+
+import org.afplib.ResourceKey;
+import org.afplib.afplib.FullyQualifiedNameFQNType;
+import org.afplib.afplib.ResourceObjectTypeObjType;
+import org.afplib.afplib.SFName;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Renames references to resources and medium maps of one input file directly in the raw
+ * structured fields, without decoding them.
+ * <p>
+ * The eight byte name fields and the fully qualified name triplets of the structured fields that
+ * may refer to a resource or a medium map are located by their offsets and overwritten with the
+ * EBCDIC bytes of the new name. Whenever the result would not be the same as renaming the decoded
+ * structured field, for instance because a triplet name has a different length than the new name,
+ * {@link Result#DECODE} tells the caller to decode and rename the structured field instead.
+ * Include Object and Map Data Resource, whose references depend on more than a name, are always
+ * decoded if they mention a renamed name.
+ */
+final class NamePatcher {
+
+    static final Charset EBCDIC = Charset.forName("IBM500");
+
+    enum Result {
+        /** nothing to rename */
+        UNTOUCHED,
+        /** renamed in place */
+        PATCHED,
+        /** has to be decoded to be renamed */
+        DECODE
+    }
+
+    static final int NAME_LENGTH = 8;
+    static final int INTRODUCER_LENGTH = 9;
+    private static final int FLAG_EXTENSION = 0x80, FLAG_SEGMENTED = 0x20, FLAG_PADDING = 0x08;
+    private static final int TRIPLET_FQN = 0x02;
+    private static final int FQN_CHARACTER_STRING = 0x00;
+    private static final int MCF1_GROUP_LENGTH = 28;
+
+    /**
+     * Old and new names of one namespace, sorted by old name so a lookup allocates nothing.
+     */
+    private static final class Names {
+        static final Names NONE = new Names(new TreeMap<>());
+
+        final long[] oldNames;
+        final byte[][] newNames;
+
+        Names(TreeMap<Long, byte[]> names) {
+            oldNames = new long[names.size()];
+            newNames = new byte[names.size()][];
+            int i = 0;
+            for (Map.Entry<Long, byte[]> name : names.entrySet()) {
+                oldNames[i] = name.getKey();
+                newNames[i++] = name.getValue();
+            }
+        }
+
+        int indexOf(byte[] record, int offset) {
+            return oldNames.length == 0 ? -1 : Arrays.binarySearch(oldNames, toLong(record, offset));
+        }
+    }
+
+    private final boolean exact;
+    private final Names pageSegments, overlays, codedFonts, codePages, fontCharacterSets, mediumMaps, all;
+
+    NamePatcher(Map<ResourceKey, String> renamings, Map<String, String> renameIMM) {
+        Map<Integer, TreeMap<Long, byte[]>> byType = new TreeMap<>();
+        TreeMap<Long, byte[]> allNames = new TreeMap<>(), mmNames = new TreeMap<>();
+        boolean exact = true;
+
+        for (Map.Entry<ResourceKey, String> renaming : renamings.entrySet()) {
+            byte[] oldName = renaming.getKey().getName().getBytes(EBCDIC);
+            byte[] newName = renaming.getValue().getBytes(EBCDIC);
+            if (oldName.length != NAME_LENGTH || newName.length != NAME_LENGTH) {
+                exact = false;
+                continue;
+            }
+            allNames.put(toLong(oldName, 0), newName);
+            if (renaming.getKey().getObjId() == null)
+                byType.computeIfAbsent(renaming.getKey().getType(), type -> new TreeMap<>()).put(toLong(oldName, 0), newName);
+        }
+        for (Map.Entry<String, String> renaming : renameIMM.entrySet()) {
+            byte[] oldName = renaming.getKey().getBytes(EBCDIC);
+            byte[] newName = renaming.getValue().getBytes(EBCDIC);
+            if (oldName.length != NAME_LENGTH || newName.length != NAME_LENGTH) {
+                exact = false;
+                continue;
+            }
+            mmNames.put(toLong(oldName, 0), newName);
+        }
+
+        this.exact = exact;
+        pageSegments = names(byType, ResourceObjectTypeObjType.CONST_PAGE_SEGMENT_VALUE);
+        overlays = names(byType, ResourceObjectTypeObjType.CONST_OVERLAY_VALUE);
+        codedFonts = names(byType, ResourceObjectTypeObjType.CONST_CODED_FONT_VALUE);
+        codePages = names(byType, ResourceObjectTypeObjType.CONST_CODE_PAGE_VALUE);
+        fontCharacterSets = names(byType, ResourceObjectTypeObjType.CONST_FONT_CHARACTER_SET_VALUE);
+        mediumMaps = new Names(mmNames);
+        all = new Names(allNames);
+    }
+
+    private static Names names(Map<Integer, TreeMap<Long, byte[]>> byType, int type) {
+        TreeMap<Long, byte[]> names = byType.get(type);
+        return names == null ? Names.NONE : new Names(names);
+    }
+
+    private static long toLong(byte[] b, int offset) {
+        long l = 0;
+        for (int i = 0; i < NAME_LENGTH; i++)
+            l = l << 8 | b[offset + i] & 0xff;
+        return l;
+    }
+
+    private static int u8(byte[] b, int offset) {
+        return b[offset] & 0xff;
+    }
+
+    private static int u16(byte[] b, int offset) {
+        return (b[offset] & 0xff) << 8 | b[offset + 1] & 0xff;
+    }
+
+    private static int id(byte[] record) {
+        return u8(record, 3) << 16 | u8(record, 4) << 8 | u8(record, 5);
+    }
+
+    private static boolean isPlain(byte[] record, int length) {
+        return length >= INTRODUCER_LENGTH
+                && (u8(record, 6) & (FLAG_EXTENSION | FLAG_SEGMENTED | FLAG_PADDING)) == 0;
+    }
+
+    /**
+     * Renames the references in a raw structured field of the documents.
+     *
+     * @param record the structured field, starting with the carriage control byte
+     * @param length the length of the structured field including the carriage control byte
+     */
+    Result patch(byte[] record, int length) {
+        if (!exact || !isPlain(record, length)) return Result.DECODE;
+
+        int data = INTRODUCER_LENGTH;
+        switch (id(record)) {
+            case SFName.IPS_VALUE:
+                return patchInclude(record, data, length, pageSegments, 14);
+            case SFName.IPO_VALUE:
+                return patchInclude(record, data, length, overlays, 17);
+            case SFName.IMM_VALUE:
+                return patchInclude(record, data, length, mediumMaps, NAME_LENGTH);
+            case SFName.MPS_VALUE:
+            case SFName.MMO_VALUE:
+                return patchFixedGroups(record, data, length,
+                        id(record) == SFName.MPS_VALUE ? pageSegments : overlays);
+            case SFName.MCF1_VALUE:
+                return patchMcf1(record, data, length);
+            case SFName.MCF_VALUE:
+            case SFName.MPO_VALUE:
+            case SFName.MDR_VALUE:
+                Result result = patchGroupTriplets(record, data, length, false);
+                if (result == Result.PATCHED) patchGroupTriplets(record, data, length, true);
+                return result;
+            case SFName.IOB_VALUE:
+                if (length - data < NAME_LENGTH) return Result.DECODE;
+                return all.indexOf(record, data) >= 0 ? Result.DECODE : Result.UNTOUCHED;
+        }
+        return Result.DECODE;
+    }
+
+    /**
+     * Renames a resource in its raw Begin or End Resource, like {@code renameBRSERS}: the name
+     * and, in a Begin Resource, the first Replace First GID Name triplet.
+     */
+    static Result renameResource(byte[] record, int length, byte[] newName) {
+        if (newName.length != NAME_LENGTH || !isPlain(record, length)) return Result.DECODE;
+        int data = INTRODUCER_LENGTH;
+        if (length - data < NAME_LENGTH) return Result.DECODE;
+
+        if (id(record) == SFName.BRS_VALUE) {
+            int gid = findGid(record, data + NAME_LENGTH + 2, length);
+            if (gid == -2) return Result.DECODE;
+            if (gid >= 0) System.arraycopy(newName, 0, record, gid, NAME_LENGTH);
+        }
+        System.arraycopy(newName, 0, record, data, NAME_LENGTH);
+        return Result.PATCHED;
+    }
+
+    /**
+     * Include Page Segment, Include Page Overlay and Invoke Medium Map: a name at the start and
+     * optional triplets at {@code triplets}, the first Replace First GID Name of which is renamed too.
+     */
+    private static Result patchInclude(byte[] record, int data, int end, Names names, int triplets) {
+        if (end - data < NAME_LENGTH) return Result.DECODE;
+        int i = names.indexOf(record, data);
+        if (i < 0) return Result.UNTOUCHED;
+
+        int gid = findGid(record, data + triplets, end);
+        if (gid == -2) return Result.DECODE;
+        if (gid >= 0) System.arraycopy(names.newNames[i], 0, record, gid, NAME_LENGTH);
+        System.arraycopy(names.newNames[i], 0, record, data, NAME_LENGTH);
+        return Result.PATCHED;
+    }
+
+    /**
+     * @return the offset of the name of the first Replace First GID Name triplet from {@code start},
+     * -1 if there is none, or -2 if it cannot be replaced in place
+     */
+    private static int findGid(byte[] record, int start, int end) {
+        for (int t = start; t < end; ) {
+            if (end - t < 2) return -2;
+            int tripletLength = u8(record, t);
+            if (tripletLength < 2 || t + tripletLength > end) return -2;
+            if (u8(record, t + 1) == TRIPLET_FQN && tripletLength >= 4
+                    && u8(record, t + 2) == FullyQualifiedNameFQNType.CONST_REPLACE_FIRST_GID_NAME_VALUE) {
+                if (tripletLength - 4 != NAME_LENGTH || u8(record, t + 3) != FQN_CHARACTER_STRING) return -2;
+                return t + 4;
+            }
+            t += tripletLength;
+        }
+        return -1;
+    }
+
+    /**
+     * Map Page Segment and Map Medium Overlay: fixed length repeating groups with the name in
+     * the last eight bytes of each group.
+     */
+    private static Result patchFixedGroups(byte[] record, int data, int end, Names names) {
+        if (end - data < 4) return Result.DECODE;
+        int groupLength = u8(record, data);
+        if (groupLength < 4 + NAME_LENGTH) return Result.DECODE;
+
+        Result result = Result.UNTOUCHED;
+        for (int rg = data + 4; rg + groupLength <= end; rg += groupLength) {
+            int i = names.indexOf(record, rg + 4);
+            if (i >= 0) {
+                System.arraycopy(names.newNames[i], 0, record, rg + 4, NAME_LENGTH);
+                result = Result.PATCHED;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Map Coded Font format 1: fixed length repeating groups with a coded font, code page and
+     * font character set name each, where X'FFFF' marks a name that is not given.
+     */
+    private Result patchMcf1(byte[] record, int data, int end) {
+        if (end - data < 4) return Result.DECODE;
+        int groupLength = u8(record, data);
+        if (groupLength < MCF1_GROUP_LENGTH) return Result.DECODE;
+
+        Result result = Result.UNTOUCHED;
+        for (int rg = data + 4; rg + groupLength <= end; rg += groupLength) {
+            if (patchName(record, rg + 4, codedFonts)) result = Result.PATCHED;
+            if (patchName(record, rg + 12, codePages)) result = Result.PATCHED;
+            if (patchName(record, rg + 20, fontCharacterSets)) result = Result.PATCHED;
+        }
+        return result;
+    }
+
+    private static boolean patchName(byte[] record, int offset, Names names) {
+        if (record[offset] == (byte) 0xff || record[offset + 1] == (byte) 0xff) return false;
+        int i = names.indexOf(record, offset);
+        if (i < 0) return false;
+        System.arraycopy(names.newNames[i], 0, record, offset, NAME_LENGTH);
+        return true;
+    }
+
+    /**
+     * Map Coded Font format 2, Map Page Overlay and Map Data Resource: repeating groups with a two
+     * byte length followed by triplets, whose fully qualified names are references. Checks the
+     * whole structured field before anything is changed, then renames with {@code apply}.
+     */
+    private Result patchGroupTriplets(byte[] record, int data, int end, boolean apply) {
+        int id = id(record);
+        Result result = Result.UNTOUCHED;
+        for (int rg = data; rg < end; ) {
+            if (end - rg < 2) return Result.DECODE;
+            int groupLength = u16(record, rg);
+            if (groupLength < 2 || rg + groupLength > end) return Result.DECODE;
+
+            for (int t = rg + 2; t < rg + groupLength; ) {
+                if (rg + groupLength - t < 2) return Result.DECODE;
+                int tripletLength = u8(record, t);
+                if (tripletLength < 2 || t + tripletLength > rg + groupLength) return Result.DECODE;
+
+                if (u8(record, t + 1) == TRIPLET_FQN && tripletLength >= 4) {
+                    Names names = referencedNames(id, u8(record, t + 2));
+                    int i = tripletLength - 4 == NAME_LENGTH ? names.indexOf(record, t + 4) : -1;
+                    if (i >= 0) {
+                        if (id == SFName.MDR_VALUE || u8(record, t + 3) != FQN_CHARACTER_STRING)
+                            return Result.DECODE;
+                        if (apply) System.arraycopy(names.newNames[i], 0, record, t + 4, NAME_LENGTH);
+                        result = Result.PATCHED;
+                    }
+                }
+                t += tripletLength;
+            }
+            rg += groupLength;
+        }
+        return result;
+    }
+
+    private Names referencedNames(int id, int fqnType) {
+        if (id == SFName.MCF_VALUE) {
+            switch (fqnType) {
+                case FullyQualifiedNameFQNType.CONST_FONT_CHARACTER_SET_NAME_REFERENCE_VALUE:
+                    return fontCharacterSets;
+                case FullyQualifiedNameFQNType.CONST_CODE_PAGE_NAME_REFERENCE_VALUE:
+                    return codePages;
+                case FullyQualifiedNameFQNType.CONST_CODED_FONT_NAME_REFERENCE_VALUE:
+                    return codedFonts;
+            }
+        } else if (id == SFName.MPO_VALUE) {
+            if (fqnType == FullyQualifiedNameFQNType.CONST_RESOURCE_OBJECT_REFERENCE_VALUE)
+                return overlays;
+        } else if (id == SFName.MDR_VALUE) {
+            switch (fqnType) {
+                case FullyQualifiedNameFQNType.CONST_RESOURCE_OBJECT_REFERENCE_VALUE:
+                case FullyQualifiedNameFQNType.CONST_OTHER_OBJECT_DATA_REFERENCE_VALUE:
+                case FullyQualifiedNameFQNType.CONST_DATA_OBJECT_EXTERNAL_RESOURCE_REFERENCE_VALUE:
+                    return all;
+            }
+        }
+        return Names.NONE;
+    }
+}
@@ -0,0 +1,482 @@
+package afp.file.combine;
+
+import afp.file.AfpFiles;
+import afp.file.AfpRecordReader;
+import afp.file.AsyncFileOutputStream;
+import afp.file.combine.AfpCombine.InputFile;
+import afp.file.combine.AfpCombine.Resource;
+import afp.file.combine.CombineStatistics.Phase;
+import org.afplib.ResourceKey;
+import org.afplib.afplib.*;
+import org.afplib.base.SF;
+import org.afplib.io.AfpOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * Writes the renamed documents of an {@link AfpCombine} into several output files. The documents are
+ * handed over twice. The first, read-only pass plans the parts: where each is cut, and the resources
+ * and medium maps its documents refer to, including the resources those refer to in turn. The second
+ * pass writes each part directly: a resource group of only those resources, then its documents.
+ * So the documents are read and renamed twice, but written once, instead of being spooled and copied.
+ * <p>
+ * A part is cut before the top level page group, or the page outside of page groups, that would take it
+ * over a limit. Its size counts the resource group, from the lengths of the resources in the input files,
+ * and the End Document that ends a document cut in two. Only a part of a single group or page is larger.
+ * <p>
+ * Resources of types whose references are not known here, such as graphics, are put into every part.
+ */
+final class OutputSplitter implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(OutputSplitter.class);
+
+    private static final int EDT_LENGTH = NamePatcher.INTRODUCER_LENGTH + NamePatcher.NAME_LENGTH;
+
+    /**
+     * A resource of the resource group: where it is copied from and under which name.
+     */
+    static final class OutputResource {
+        final InputFile inputFile;
+        final ResourceKey key;
+        final Resource resource;
+        final String newName;
+        final int ordinal;
+
+        OutputResource(InputFile inputFile, ResourceKey key, Resource resource, String newName, int ordinal) {
+            this.inputFile = inputFile;
+            this.key = key;
+            this.resource = resource;
+            this.newName = newName;
+            this.ordinal = ordinal;
+        }
+
+        long length() {
+            return resource.end - resource.start;
+        }
+    }
+
+    /**
+     * A planned part: what its resource group holds, and the number of the first record of the next part.
+     */
+    private static final class Part {
+        final Set<ResourceKey> resources = new HashSet<>();
+        final Set<String> mediumMaps = new HashSet<>();
+        long end = Long.MAX_VALUE;
+        int pages;
+    }
+
+    private final AfpCombine combine;
+    private final long maxBytes;
+    private final int maxPages;
+    private final ResourceClosure resources;
+
+    private final SF[] formdef;
+    private final Map<String, int[]> mediumMaps = new HashMap<>();
+    private final Map<String, Set<ResourceKey>> mediumMapReferences = new HashMap<>();
+    private final Map<String, Long> mediumMapBytes = new HashMap<>();
+    private final String defaultMediumMap;
+    /** bytes of the resource group without medium maps and resources */
+    private final long groupBytes;
+
+    private final List<Part> plan = new ArrayList<>();
+    private long records;
+    private int depth;
+    private byte[] documentStart, lastImm;
+
+    // the part being planned and its last page or group, which is added once it ends
+    private Part part;
+    private long partBytes;
+    private long unitStart, unitBytes;
+    private int unitPages;
+    // the document the page or group continues, if any, and the medium map invoked before it
+    private byte[] unitDocumentStart, unitImm;
+    private final Set<ResourceKey> unitResources = new HashSet<>();
+    private final Set<String> unitMediumMaps = new HashSet<>();
+
+    private final List<Path> parts = new ArrayList<>();
+    private final List<Path> indexInputs;
+    private final PageIndex.Entries partIndex;
+    private PageIndex.Numbering numbering;
+
+    // the part being written
+    private Path partFile;
+    private AsyncFileOutputStream out;
+    private AfpOutputStream aout;
+    private long documentsStart, documentBytes;
+
+    /**
+     * @param resources the resources of the resource group by their name in the output, in output order
+     * @param formdef     the merged formdef
+     * @param indexInputs the input files a page index of each part refers to, or null to write no page index
+     */
+    OutputSplitter(AfpCombine combine, long maxBytes, int maxPages,
+                   LinkedHashMap<ResourceKey, OutputResource> resources, SF[] formdef, List<Path> indexInputs)
+            throws IOException {
+        this.combine = combine;
+        this.maxBytes = maxBytes;
+        this.maxPages = maxPages;
+        this.resources = new ResourceClosure(resources);
+        this.formdef = formdef;
+        this.indexInputs = indexInputs;
+        this.partIndex = indexInputs == null ? null : new PageIndex.Entries();
+
+        String first = null;
+        long formdefBytes = 0;
+        for (int i = 0; i < formdef.length; i++) {
+            if (!(formdef[i] instanceof BMM)) {
+                formdefBytes += AfpCombine.encode(formdef[i]).length;
+                continue;
+            }
+            String name = ((BMM) formdef[i]).getMMName();
+            int end = i;
+            long bytes = 0;
+            Set<ResourceKey> references = new HashSet<>();
+            while (!(formdef[end] instanceof EMM)) {
+                bytes += AfpCombine.encode(formdef[end]).length;
+                References.collect(formdef[end++], references, new HashSet<>());
+            }
+            bytes += AfpCombine.encode(formdef[end]).length;
+            mediumMaps.put(name, new int[]{i, end + 1});
+            mediumMapReferences.put(name, references);
+            mediumMapBytes.put(name, bytes);
+            if (first == null) first = name;
+            i = end;
+        }
+        defaultMediumMap = first;
+
+        ByteArrayOutputStream group = new ByteArrayOutputStream();
+        try (AfpOutputStream groupOut = new AfpOutputStream(group)) {
+            AfpCombine.writeResourceGroupStart(groupOut, new SF[0]);
+            groupOut.writeStructuredField(AfplibFactory.eINSTANCE.createERG());
+        }
+        groupBytes = group.size() + formdefBytes;
+    }
+
+    /**
+     * Sets the numbering of the page index entries of the next input file.
+     */
+    void setNumbering(PageIndex.Numbering numbering) {
+        this.numbering = numbering;
+    }
+
+    /**
+     * Plans the parts with one record of the documents, without writing anything.
+     *
+     * @param sf the renamed record if it was decoded and renamed, else null and the record is taken as it is
+     */
+    void plan(int id, byte[] record, int length, SF sf) throws IOException {
+        if (part == null) beginPart(null, null);
+        if (sf != null) {
+            record = AfpCombine.encode(sf);
+            length = record.length;
+        }
+
+        if (id == SFName.BDT_VALUE) {
+            documentStart = Arrays.copyOf(record, length);
+            lastImm = null;
+        } else if (id == SFName.IMM_VALUE) {
+            lastImm = Arrays.copyOf(record, length);
+        }
+        if (References.mayRefer(id)) addReferences(record, length);
+        unitBytes += length;
+        records++;
+
+        switch (id) {
+            case SFName.BNG_VALUE:
+                depth++;
+                break;
+            case SFName.ENG_VALUE:
+                if (depth > 0 && --depth == 0) endUnit();
+                break;
+            case SFName.EPG_VALUE:
+                unitPages++;
+                if (depth == 0) endUnit();
+                break;
+            case SFName.EDT_VALUE:
+                documentStart = lastImm = null;
+                depth = 0;
+                endUnit();
+                break;
+        }
+    }
+
+    private void addReferences(byte[] record, int length) throws IOException {
+        Set<ResourceKey> referenced = new HashSet<>();
+        Set<String> invoked = new HashSet<>();
+        References.collect(record, length, referenced, invoked);
+        for (String mediumMap : invoked)
+            addMediumMap(mediumMap, unitMediumMaps, unitResources);
+        for (ResourceKey key : referenced)
+            resources.add(key, unitResources);
+    }
+
+    private void addMediumMap(String name, Set<String> mediumMapsTo, Set<ResourceKey> resourcesTo) throws IOException {
+        if (!mediumMaps.containsKey(name) || !mediumMapsTo.add(name)) return;
+        for (ResourceKey key : mediumMapReferences.get(name))
+            resources.add(key, resourcesTo);
+    }
+
+    /**
+     * Adds the page or group that just ended to the current part, or cuts the part before it if it has pages
+     * and would take the part over a limit. The End Document that would end the part after it counts too.
+     */
+    private void endUnit() throws IOException {
+        long bytes = partBytes + unitBytes + addedBytes(part) + (documentStart != null ? EDT_LENGTH : 0);
+        if (unitPages > 0 && part.pages > 0
+                && ((maxPages > 0 && part.pages + unitPages > maxPages) || (maxBytes > 0 && bytes > maxBytes))) {
+            part.end = unitStart;
+            beginPart(unitDocumentStart, unitDocumentStart != null ? unitImm : null);
+        }
+        partBytes += unitBytes + addedBytes(part);
+        part.resources.addAll(unitResources);
+        part.mediumMaps.addAll(unitMediumMaps);
+        part.pages += unitPages;
+
+        unitStart = records;
+        unitBytes = 0;
+        unitPages = 0;
+        unitResources.clear();
+        unitMediumMaps.clear();
+        unitDocumentStart = documentStart;
+        unitImm = lastImm;
+    }
+
+    /**
+     * @return the bytes that the resources and medium maps of the current page or group add to a part
+     */
+    private long addedBytes(Part part) {
+        long bytes = 0;
+        for (ResourceKey key : unitResources)
+            if (!part.resources.contains(key)) bytes += resources.get(key).length();
+        for (String name : unitMediumMaps)
+            if (!part.mediumMaps.contains(name)) bytes += mediumMapBytes.get(name);
+        return bytes;
+    }
+
+    /**
+     * Begins planning a part, which continues a document that was cut if {@code bdt} is given.
+     */
+    private void beginPart(byte[] bdt, byte[] imm) throws IOException {
+        part = new Part();
+        plan.add(part);
+        if (defaultMediumMap != null) addMediumMap(defaultMediumMap, part.mediumMaps, part.resources);
+        for (ResourceKey key : resources.getUnreferencedTypes())
+            resources.add(key, part.resources);
+        if (bdt != null && imm != null) {
+            Set<String> invoked = new HashSet<>();
+            References.collect(imm, imm.length, new HashSet<>(), invoked);
+            for (String mediumMap : invoked)
+                addMediumMap(mediumMap, part.mediumMaps, part.resources);
+        }
+
+        partBytes = groupBytes + (bdt != null ? bdt.length : 0) + (imm != null ? imm.length : 0);
+        for (ResourceKey key : part.resources)
+            partBytes += resources.get(key).length();
+        for (String name : part.mediumMaps)
+            partBytes += mediumMapBytes.get(name);
+    }
+
+    /**
+     * Ends planning: the records handed over after this are written.
+     */
+    void endPlan() throws IOException {
+        if (part != null) {
+            partBytes += unitBytes + addedBytes(part);
+            part.resources.addAll(unitResources);
+            part.mediumMaps.addAll(unitMediumMaps);
+            part.pages += unitPages;
+        }
+        LOGGER.info("planned {} parts of {} records", plan.size(), records);
+        records = 0;
+        depth = 0;
+        documentStart = lastImm = null;
+    }
+
+    /**
+     * Writes one record of the documents, which must be the same as planned.
+     *
+     * @param sf the renamed record if it was decoded and renamed, else null and the record is written as it is
+     */
+    void write(int id, byte[] record, int length, SF sf) throws IOException {
+        if (aout != null && records == plan.get(parts.size()).end) cut();
+        if (aout == null) openPart();
+
+        if (sf != null) {
+            record = AfpCombine.encode(sf);
+            length = record.length;
+        }
+        if (partIndex != null) numbering.add(partIndex, id, documentBytes, record, length);
+
+        if (id == SFName.BDT_VALUE) {
+            documentStart = Arrays.copyOf(record, length);
+            lastImm = null;
+        } else if (id == SFName.IMM_VALUE) {
+            lastImm = Arrays.copyOf(record, length);
+        } else if (id == SFName.EDT_VALUE) {
+            documentStart = lastImm = null;
+        }
+        writeRecord(record, length);
+        records++;
+    }
+
+    private void writeRecord(byte[] record, int length) throws IOException {
+        aout.write(record, 0, length);
+        documentBytes += length;
+    }
+
+    /**
+     * Ends the current part, and continues the document it was cut in, if any, in the next part.
+     */
+    private void cut() throws IOException {
+        byte[] bdt = documentStart, imm = lastImm;
+        if (bdt != null) writeRecord(endDocument(bdt), EDT_LENGTH);
+        closePart();
+        openPart();
+        if (bdt != null) {
+            if (partIndex != null) numbering.addAgain(partIndex, SFName.BDT_VALUE, documentBytes, bdt, bdt.length);
+            writeRecord(bdt, bdt.length);
+            if (imm != null) writeRecord(imm, imm.length);
+        }
+    }
+
+    /**
+     * @return an End Document with the name of the Begin Document, or the name that matches any if it
+     * cannot be taken over
+     */
+    private static byte[] endDocument(byte[] bdt) {
+        byte[] edt = new byte[EDT_LENGTH];
+        int length = edt.length - 1;
+        edt[0] = (byte) AfpRecordReader.CARRIAGE_CONTROL;
+        edt[1] = (byte) (length >> 8);
+        edt[2] = (byte) length;
+        edt[3] = (byte) (SFName.EDT_VALUE >> 16);
+        edt[4] = (byte) (SFName.EDT_VALUE >> 8);
+        edt[5] = (byte) SFName.EDT_VALUE;
+        if ((bdt[6] & 0x80) == 0 && bdt.length >= edt.length)
+            System.arraycopy(bdt, NamePatcher.INTRODUCER_LENGTH, edt, NamePatcher.INTRODUCER_LENGTH, NamePatcher.NAME_LENGTH);
+        else
+            Arrays.fill(edt, NamePatcher.INTRODUCER_LENGTH, edt.length, (byte) 0xff);
+        return edt;
+    }
+
+    /**
+     * Opens the file of the next planned part and writes its resource group.
+     */
+    private void openPart() throws IOException {
+        Part planned = plan.get(parts.size());
+        partFile = combine.partFile(parts.size() + 1);
+        out = combine.newOutputStream(partFile);
+        aout = new AfpOutputStream(out);
+        AfpCombine.writeResourceGroupStart(aout, partFormdef(planned));
+
+        List<OutputResource> written = new ArrayList<>();
+        for (ResourceKey key : planned.resources)
+            written.add(resources.get(key));
+        written.sort(Comparator.comparingInt(r -> r.ordinal));
+
+        FileChannel in = null;
+        InputFile inFile = null;
+        try {
+            for (OutputResource resource : written) {
+                if (resource.inputFile != inFile) {
+                    if (in != null) in.close();
+                    inFile = resource.inputFile;
+                    in = AfpFiles.openInput(inFile.path);
+                }
+                combine.copyResource(inFile, in, resource.resource, resource.newName, aout, out);
+            }
+        } finally {
+            if (in != null) in.close();
+        }
+
+        aout.writeStructuredField(AfplibFactory.eINSTANCE.createERG());
+        aout.flush();
+        documentsStart = out.position();
+        documentBytes = 0;
+        combine.getStatistics().get(Phase.RESOURCE_GROUP).bytesWritten.add(documentsStart);
+    }
+
+    /**
+     * Finishes the file of the current part and its page index.
+     */
+    private void closePart() throws IOException {
+        Part planned = plan.get(parts.size());
+        try {
+            aout.close();
+        } finally {
+            aout = null;
+            out = null;
+        }
+        combine.getStatistics().get(Phase.DOCUMENTS).bytesWritten.add(documentBytes);
+        if (partIndex != null) writeIndex(partFile, documentsStart);
+
+        LOGGER.info("wrote {} with {} pages, {} resources and {} medium maps",
+                partFile, planned.pages, planned.resources.size(), planned.mediumMaps.size());
+        parts.add(partFile);
+        partFile = null;
+    }
+
+    /**
+     * Writes the page index of a part, whose documents start at {@code documentsStart}.
+     */
+    private void writeIndex(Path partFile, long documentsStart) throws IOException {
+        partIndex.shift(documentsStart);
+        try (PageIndex.Writer index = new PageIndex.Writer(partFile)) {
+            index.write(partIndex);
+            index.finish(indexInputs);
+        }
+        partIndex.clear();
+    }
+
+    /**
+     * @return the merged formdef with only the medium maps of a part, in the same order
+     */
+    private SF[] partFormdef(Part planned) {
+        List<SF> sfs = new ArrayList<>();
+        for (int i = 0; i < formdef.length; i++) {
+            if (formdef[i] instanceof BMM) {
+                String name = ((BMM) formdef[i]).getMMName();
+                int[] range = mediumMaps.get(name);
+                if (!planned.mediumMaps.contains(name)) {
+                    i = range[1] - 1;
+                    continue;
+                }
+            }
+            sfs.add(formdef[i]);
+        }
+        return sfs.toArray(new SF[0]);
+    }
+
+    /**
+     * Writes the last part.
+     *
+     * @return the files written
+     */
+    List<Path> finish() throws IOException {
+        if (aout != null) closePart();
+        return parts;
+    }
+
+    /**
+     * Deletes the file of a part that was not finished.
+     */
+    @Override
+    public void close() throws IOException {
+        if (aout == null) return;
+        try {
+            aout.close();
+        } finally {
+            aout = null;
+            out = null;
+            Files.deleteIfExists(partFile);
+        }
+    }
+}
@@ -0,0 +1,381 @@
+package afp.file.combine;
+
+import org.afplib.afplib.SFName;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Sidecar index of where the documents, named page groups and pages of a combined output file begin, written by
+ * {@link AfpCombine} next to the output file with the suffix {@value #SUFFIX}, so that single pages can be read
+ * without parsing the output.
+ * <p>
+ * The index starts with a header of 16 bytes: the magic number {@code AFPP}, the version and the length of an
+ * entry as two byte integers, and the number of entries as an eight byte integer. The entries follow in output
+ * order, so entry {@code i} is at offset {@code 16 + 32 * i}. An entry holds the identifier of its BDT, BNG or
+ * BPG, the number of the input file it comes from, its ordinal among the fields of that type in the input file,
+ * its offset in the output file and its 8 byte EBCDIC name, all big-endian, followed by 4 reserved bytes. The
+ * paths of the input files follow the entries, as a count and modified UTF-8 strings.
+ * <p>
+ * The offsets of a gzip compressed output file are offsets in its uncompressed content, as read through
+ * {@link afp.file.AfpFiles#openInput}, which seeks to them by inflating from the gzip member that contains them.
+ */
+public final class PageIndex implements Closeable {
+
+    public static final String SUFFIX = ".pages";
+
+    private static final int MAGIC = 0x41465050; // AFPP
+    private static final int VERSION = 1;
+    private static final int HEADER_LENGTH = 16;
+    private static final int ENTRY_LENGTH = 32;
+    private static final int NAME_LENGTH = NamePatcher.NAME_LENGTH;
+    private static final byte[] NO_NAME = {-1, -1, -1, -1, -1, -1, -1, -1};
+
+    /**
+     * Where a document, named page group or page begins in the output file.
+     */
+    public static final class Entry {
+        private final int id, input, ordinal;
+        private final long offset;
+        private final String name;
+
+        Entry(int id, int input, int ordinal, long offset, String name) {
+            this.id = id;
+            this.input = input;
+            this.ordinal = ordinal;
+            this.offset = offset;
+            this.name = name;
+        }
+
+        /**
+         * @return the identifier of the structured field, {@link SFName#BDT_VALUE}, {@link SFName#BNG_VALUE}
+         * or {@link SFName#BPG_VALUE}
+         */
+        public int getId() {
+            return id;
+        }
+
+        /**
+         * @return the number of the input file, see {@link #getInputs()}
+         */
+        public int getInput() {
+            return input;
+        }
+
+        /**
+         * @return the number of structured fields with the same identifier before this one in the input file
+         */
+        public int getOrdinal() {
+            return ordinal;
+        }
+
+        /**
+         * @return the offset of the structured field in the output file, in its uncompressed content if it is
+         * gzip compressed
+         */
+        public long getOffset() {
+            return offset;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%06X %s@%d from input %d #%d", id, name, offset, input, ordinal);
+        }
+    }
+
+    private final FileChannel channel;
+    private final long size;
+
+    private PageIndex(FileChannel channel, long size) {
+        this.channel = channel;
+        this.size = size;
+    }
+
+    /**
+     * @return the path of the index of an output file
+     */
+    public static Path sidecarOf(Path outFile) {
+        return outFile.resolveSibling(outFile.getFileName() + SUFFIX);
+    }
+
+    /**
+     * Opens the index of an output file.
+     */
+    public static PageIndex open(Path outFile) throws IOException {
+        requireNonNull(outFile, "Path is required");
+        Path sidecar = sidecarOf(outFile);
+        FileChannel channel = FileChannel.open(sidecar, StandardOpenOption.READ);
+        try {
+            ByteBuffer header = read(channel, 0, HEADER_LENGTH);
+            if (header.getInt() != MAGIC || header.getShort() != VERSION || header.getShort() != ENTRY_LENGTH)
+                throw new IOException(sidecar + " is not a page index");
+            return new PageIndex(channel, header.getLong());
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the number of entries
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Reads one entry.
+     */
+    public Entry get(long i) throws IOException {
+        if (i < 0 || i >= size)
+            throw new IndexOutOfBoundsException("entry " + i + " of " + size);
+        ByteBuffer entry = read(channel, HEADER_LENGTH + i * ENTRY_LENGTH, ENTRY_LENGTH);
+        int id = entry.getInt(), input = entry.getInt(), ordinal = entry.getInt();
+        long offset = entry.getLong();
+        byte[] name = new byte[NAME_LENGTH];
+        entry.get(name);
+        return new Entry(id, input, ordinal, offset, new String(name, NamePatcher.EBCDIC));
+    }
+
+    /**
+     * @return the input files of the output file, in the order they were combined
+     */
+    public List<Path> getInputs() throws IOException {
+        channel.position(HEADER_LENGTH + size * ENTRY_LENGTH);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+        List<Path> inputs = new ArrayList<>();
+        for (int i = in.readInt(); i > 0; i--)
+            inputs.add(Paths.get(in.readUTF()));
+        return inputs;
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0)
+                throw new EOFException("page index ends at " + (position + buffer.position()));
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * @return whether structured fields with this identifier are indexed
+     */
+    static boolean isIndexed(int id) {
+        return id == SFName.BDT_VALUE || id == SFName.BNG_VALUE || id == SFName.BPG_VALUE;
+    }
+
+    /**
+     * Entries collected in memory, at offsets in the file they were written to.
+     */
+    static final class Entries {
+        private int size;
+        private int[] ids = new int[64], inputs = new int[64], ordinals = new int[64];
+        private long[] offsets = new long[64];
+        private byte[] names = new byte[64 * NAME_LENGTH];
+
+        void add(int id, int input, int ordinal, long offset, byte[] name, int nameOffset) {
+            if (size == ids.length) {
+                int capacity = 2 * size;
+                ids = Arrays.copyOf(ids, capacity);
+                inputs = Arrays.copyOf(inputs, capacity);
+                ordinals = Arrays.copyOf(ordinals, capacity);
+                offsets = Arrays.copyOf(offsets, capacity);
+                names = Arrays.copyOf(names, capacity * NAME_LENGTH);
+            }
+            ids[size] = id;
+            inputs[size] = input;
+            ordinals[size] = ordinal;
+            offsets[size] = offset;
+            System.arraycopy(name, nameOffset, names, size * NAME_LENGTH, NAME_LENGTH);
+            size++;
+        }
+
+        /**
+         * Moves all entries by {@code distance} bytes, when the file they were written to is copied to another.
+         */
+        void shift(long distance) {
+            for (int i = 0; i < size; i++)
+                offsets[i] += distance;
+        }
+
+        int size() {
+            return size;
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        void clear() {
+            size = 0;
+        }
+    }
+
+    /**
+     * Numbers the indexed structured fields of the documents of one input file while they are written. The
+     * documents of an intermediate file of a fan-in keep the input files and ordinals they were indexed
+     * with before.
+     */
+    static final class Numbering {
+        private final int input;
+        private final int[] counts = new int[3], lastInputs = new int[3], lastOrdinals = new int[3];
+        private final List<Entries> inherited;
+        private int entries, position;
+
+        /**
+         * Numbers the fields of input file number {@code input}.
+         */
+        Numbering(int input) {
+            this.input = input;
+            this.inherited = null;
+        }
+
+        /**
+         * Takes the numbers of the fields from the entries of an intermediate file, in order.
+         */
+        Numbering(List<Entries> inherited) {
+            this.input = -1;
+            this.inherited = inherited;
+        }
+
+        /**
+         * Adds an entry to {@code to} if the record is indexed.
+         *
+         * @param offset the offset the record is written at
+         */
+        void add(Entries to, int id, long offset, byte[] record, int length) throws IOException {
+            if (!isIndexed(id)) return;
+            int type = type(id);
+            if (inherited == null) {
+                lastInputs[type] = input;
+                lastOrdinals[type] = counts[type]++;
+            } else {
+                while (entries < inherited.size() && position == inherited.get(entries).size()) {
+                    entries++;
+                    position = 0;
+                }
+                if (entries == inherited.size() || inherited.get(entries).ids[position] != id)
+                    throw new IOException(String.format("structured field %06X at %d is not in the page index", id, offset));
+                lastInputs[type] = inherited.get(entries).inputs[position];
+                lastOrdinals[type] = inherited.get(entries).ordinals[position];
+                position++;
+            }
+            addAgain(to, id, offset, record, length);
+        }
+
+        private static int type(int id) {
+            return id == SFName.BDT_VALUE ? 0 : id == SFName.BNG_VALUE ? 1 : 2;
+        }
+
+        /**
+         * Adds an entry with the numbers of the last entry with the same identifier, for a field that is
+         * written once more.
+         */
+        void addAgain(Entries to, int id, long offset, byte[] record, int length) {
+            int type = type(id);
+            int nameOffset = NamePatcher.INTRODUCER_LENGTH;
+            if ((record[6] & 0x80) != 0 && length > nameOffset) nameOffset += record[nameOffset] & 0xff;
+            if (nameOffset + NAME_LENGTH <= length)
+                to.add(id, lastInputs[type], lastOrdinals[type], offset, record, nameOffset);
+            else
+                to.add(id, lastInputs[type], lastOrdinals[type], offset, NO_NAME, 0);
+        }
+    }
+
+    /**
+     * Writes an index while its output file is written.
+     */
+    static final class Writer implements Closeable {
+        private final Path sidecar;
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(1024 * ENTRY_LENGTH);
+        private long size;
+        private boolean finished;
+
+        /**
+         * @param outFile the output file, next to which the index is written
+         */
+        Writer(Path outFile) throws IOException {
+            sidecar = sidecarOf(outFile);
+            channel = FileChannel.open(sidecar, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            channel.position(HEADER_LENGTH);
+        }
+
+        /**
+         * Appends entries, which must come after those written before in the output file.
+         */
+        void write(Entries entries) throws IOException {
+            for (int i = 0; i < entries.size; i++) {
+                if (buffer.remaining() < ENTRY_LENGTH) drain();
+                buffer.putInt(entries.ids[i])
+                        .putInt(entries.inputs[i])
+                        .putInt(entries.ordinals[i])
+                        .putLong(entries.offsets[i])
+                        .put(entries.names, i * NAME_LENGTH, NAME_LENGTH)
+                        .putInt(0);
+            }
+            size += entries.size;
+        }
+
+        private void drain() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+            buffer.clear();
+        }
+
+        /**
+         * Completes the index with the input files the entries refer to.
+         */
+        void finish(List<Path> inputs) throws IOException {
+            drain();
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(inputs.size());
+            for (Path input : inputs)
+                out.writeUTF(input.toString());
+            out.flush();
+            ByteBuffer trailer = ByteBuffer.wrap(bytes.toByteArray());
+            while (trailer.hasRemaining())
+                channel.write(trailer);
+
+            buffer.putInt(MAGIC).putShort((short) VERSION).putShort((short) ENTRY_LENGTH).putLong(size);
+            buffer.flip();
+            channel.write(buffer, 0);
+            buffer.clear();
+            finished = true;
+        }
+
+        /**
+         * Closes the index, and deletes it if it was not finished.
+         */
+        @Override
+        public void close() throws IOException {
+            channel.close();
+            if (!finished) Files.deleteIfExists(sidecar);
+        }
+    }
+}
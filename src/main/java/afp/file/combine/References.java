@@ -0,0 +1,163 @@
+package afp.file.combine;
+
+import afp.file.AfpRecordReader;
+import org.afplib.ResourceKey;
+import org.afplib.afplib.*;
+import org.afplib.base.SF;
+import org.afplib.base.Triplet;
+
+import java.io.IOException;
+import java.util.Set;
+
+/**
+ * Finds the resources and medium maps that structured fields refer to by name: the same references
+ * {@link AfpCombine} renames, and the font character sets and code pages of coded fonts.
+ */
+final class References {
+
+    private static final int CFI_GROUP_LENGTH = 25;
+
+    private References() {
+    }
+
+    /**
+     * @return whether structured fields with this identifier may refer to resources or medium maps
+     */
+    static boolean mayRefer(int id) {
+        switch (id) {
+            case SFName.CFI_VALUE:
+            case SFName.IMM_VALUE:
+            case SFName.IOB_VALUE:
+            case SFName.IPO_VALUE:
+            case SFName.IPS_VALUE:
+            case SFName.MCF_VALUE:
+            case SFName.MCF1_VALUE:
+            case SFName.MDR_VALUE:
+            case SFName.MMO_VALUE:
+            case SFName.MPO_VALUE:
+            case SFName.MPS_VALUE:
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Adds the references of a raw structured field.
+     */
+    static void collect(byte[] record, int length, Set<ResourceKey> resources, Set<String> mediumMaps)
+            throws IOException {
+        int id = (record[3] & 0xff) << 16 | (record[4] & 0xff) << 8 | record[5] & 0xff;
+        if (id == SFName.CFI_VALUE) {
+            collectCodedFontIndex(record, length, resources);
+        } else if (mayRefer(id)) {
+            collect(AfpRecordReader.decode(record, length), resources, mediumMaps);
+        }
+    }
+
+    /**
+     * Coded Font Index: fixed repeating groups of a font character set name, a code page name and
+     * attributes, read from the raw record.
+     */
+    private static void collectCodedFontIndex(byte[] record, int length, Set<ResourceKey> resources) {
+        for (int rg = NamePatcher.INTRODUCER_LENGTH; rg + CFI_GROUP_LENGTH <= length; rg += CFI_GROUP_LENGTH) {
+            resources.add(new ResourceKey(ResourceObjectTypeObjType.CONST_FONT_CHARACTER_SET,
+                    new String(record, rg, NamePatcher.NAME_LENGTH, NamePatcher.EBCDIC)));
+            resources.add(new ResourceKey(ResourceObjectTypeObjType.CONST_CODE_PAGE,
+                    new String(record, rg + NamePatcher.NAME_LENGTH, NamePatcher.NAME_LENGTH, NamePatcher.EBCDIC)));
+        }
+    }
+
+    static void collect(SF sf, Set<ResourceKey> resources, Set<String> mediumMaps) {
+        switch (sf.getId()) {
+            case SFName.IMM_VALUE:
+                mediumMaps.add(((IMM) sf).getMMPName());
+                break;
+            case SFName.IOB_VALUE:
+                resources.add(ResourceKey.toResourceKey((IOB) sf));
+                break;
+            case SFName.IPO_VALUE:
+                resources.add(ResourceKey.toResourceKey((IPO) sf));
+                break;
+            case SFName.IPS_VALUE:
+                resources.add(ResourceKey.toResourceKey((IPS) sf));
+                break;
+            case SFName.MCF_VALUE:
+                for (MCFRG rg : ((MCF) sf).getRG())
+                    collectFonts(rg.getTriplets(), resources);
+                break;
+            case SFName.MCF1_VALUE:
+                for (MCF1RG rg : ((MCF1) sf).getRG()) {
+                    addFont(ResourceObjectTypeObjType.CONST_FONT_CHARACTER_SET, rg.getFCSName(), resources);
+                    addFont(ResourceObjectTypeObjType.CONST_CODED_FONT, rg.getCFName(), resources);
+                    addFont(ResourceObjectTypeObjType.CONST_CODE_PAGE, rg.getCPName(), resources);
+                }
+                break;
+            case SFName.MDR_VALUE:
+                for (MDRRG rg : ((MDR) sf).getRG())
+                    collectObjects(rg.getTriplets(), resources);
+                break;
+            case SFName.MMO_VALUE:
+                for (MMORG rg : ((MMO) sf).getRg())
+                    resources.add(new ResourceKey(ResourceObjectTypeObjType.CONST_OVERLAY, rg.getOVLname()));
+                break;
+            case SFName.MPO_VALUE:
+                for (MPORG rg : ((MPO) sf).getRG()) {
+                    for (Triplet t : rg.getTriplets()) {
+                        if (t instanceof FullyQualifiedName && ((FullyQualifiedName) t).getFQNType()
+                                == FullyQualifiedNameFQNType.CONST_RESOURCE_OBJECT_REFERENCE_VALUE)
+                            resources.add(new ResourceKey(ResourceObjectTypeObjType.CONST_OVERLAY,
+                                    ((FullyQualifiedName) t).getFQName()));
+                    }
+                }
+                break;
+            case SFName.MPS_VALUE:
+                for (MPSRG rg : ((MPS) sf).getFixedLengthRG())
+                    resources.add(new ResourceKey(ResourceObjectTypeObjType.CONST_PAGE_SEGMENT, rg.getPsegName()));
+                break;
+        }
+    }
+
+    private static void addFont(ResourceObjectTypeObjType type, String name, Set<ResourceKey> resources) {
+        byte[] bytes = name.getBytes(NamePatcher.EBCDIC);
+        if (bytes[0] != (byte) 0xff && bytes[1] != (byte) 0xff)
+            resources.add(new ResourceKey(type, name));
+    }
+
+    private static void collectFonts(Iterable<Triplet> triplets, Set<ResourceKey> resources) {
+        for (Triplet t : triplets) {
+            if (!(t instanceof FullyQualifiedName)) continue;
+            FullyQualifiedName fqn = (FullyQualifiedName) t;
+            if (fqn.getFQNType() == null) continue;
+            switch (fqn.getFQNType()) {
+                case FullyQualifiedNameFQNType.CONST_FONT_CHARACTER_SET_NAME_REFERENCE_VALUE:
+                    resources.add(new ResourceKey(ResourceObjectTypeObjType.CONST_FONT_CHARACTER_SET, fqn.getFQName()));
+                    break;
+                case FullyQualifiedNameFQNType.CONST_CODE_PAGE_NAME_REFERENCE_VALUE:
+                    resources.add(new ResourceKey(ResourceObjectTypeObjType.CONST_CODE_PAGE, fqn.getFQName()));
+                    break;
+                case FullyQualifiedNameFQNType.CONST_CODED_FONT_NAME_REFERENCE_VALUE:
+                    resources.add(new ResourceKey(ResourceObjectTypeObjType.CONST_CODED_FONT, fqn.getFQName()));
+                    break;
+            }
+        }
+    }
+
+    private static void collectObjects(Iterable<Triplet> triplets, Set<ResourceKey> resources) {
+        for (Triplet triplet : triplets) {
+            if (!(triplet instanceof FullyQualifiedName)) continue;
+            FullyQualifiedName fqn = (FullyQualifiedName) triplet;
+            if (fqn.getFQNType() == null) continue;
+            int fqnType = fqn.getFQNType();
+            if (fqnType == FullyQualifiedNameFQNType.CONST_RESOURCE_OBJECT_REFERENCE_VALUE) {
+                resources.add(new ResourceKey(ResourceObjectTypeObjType.CONST_IOCA, fqn.getFQName()));
+            } else if (fqnType == FullyQualifiedNameFQNType.CONST_OTHER_OBJECT_DATA_REFERENCE_VALUE
+                    || fqnType == FullyQualifiedNameFQNType.CONST_DATA_OBJECT_EXTERNAL_RESOURCE_REFERENCE_VALUE) {
+                for (Triplet t : triplets) {
+                    if (t instanceof ObjectClassification)
+                        resources.add(new ResourceKey(ResourceObjectTypeObjType.CONST_OBJECT_CONTAINER,
+                                fqn.getFQName(), ((ObjectClassification) t).getRegObjId()));
+                }
+            }
+        }
+    }
+}
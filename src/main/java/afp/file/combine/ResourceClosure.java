@@ -0,0 +1,93 @@
+package afp.file.combine;
+
+import afp.file.AfpFiles;
+import afp.file.AfpRecordReader;
+import afp.file.combine.OutputSplitter.OutputResource;
+import org.afplib.ResourceKey;
+import org.afplib.afplib.ResourceObjectTypeObjType;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Follows the references between the resources of a resource group. A resource is reachable if it is
+ * referred to, or if a reachable page segment, overlay or coded font refers to it in turn. Resources of
+ * types whose references are not known here, such as graphics, are always reachable.
+ * <p>
+ * The references of each resource are read from its input file once and then kept.
+ */
+final class ResourceClosure {
+
+    private static final Set<Integer> REFERENCED_TYPES = new HashSet<>(Arrays.asList(
+            ResourceObjectTypeObjType.CONST_PAGE_SEGMENT_VALUE,
+            ResourceObjectTypeObjType.CONST_OVERLAY_VALUE,
+            ResourceObjectTypeObjType.CONST_CODED_FONT_VALUE,
+            ResourceObjectTypeObjType.CONST_CODE_PAGE_VALUE,
+            ResourceObjectTypeObjType.CONST_FONT_CHARACTER_SET_VALUE,
+            ResourceObjectTypeObjType.CONST_IOCA_VALUE,
+            ResourceObjectTypeObjType.CONST_OBJECT_CONTAINER_VALUE));
+
+    /** types of resources that may refer to other resources */
+    private static final Set<Integer> REFERRING_TYPES = new HashSet<>(Arrays.asList(
+            ResourceObjectTypeObjType.CONST_PAGE_SEGMENT_VALUE,
+            ResourceObjectTypeObjType.CONST_OVERLAY_VALUE,
+            ResourceObjectTypeObjType.CONST_CODED_FONT_VALUE));
+
+    private final Map<ResourceKey, OutputResource> resources;
+    private final List<ResourceKey> unreferencedTypes = new ArrayList<>();
+    private final Map<OutputResource, Set<ResourceKey>> resourceReferences = new HashMap<>();
+
+    /**
+     * @param resources the resources of the resource group by their name in the output
+     */
+    ResourceClosure(Map<ResourceKey, OutputResource> resources) {
+        this.resources = resources;
+        for (ResourceKey key : resources.keySet()) {
+            if (!REFERENCED_TYPES.contains(key.getType()))
+                unreferencedTypes.add(key);
+        }
+    }
+
+    /**
+     * @return the resources that are reachable without being referred to
+     */
+    List<ResourceKey> getUnreferencedTypes() {
+        return unreferencedTypes;
+    }
+
+    OutputResource get(ResourceKey key) {
+        return resources.get(key);
+    }
+
+    /**
+     * Adds a resource of the resource group to {@code reachable}, with the resources it refers to.
+     * References to resources that are not in the resource group are left to the printer.
+     *
+     * @return the number of bytes of the resources added
+     */
+    long add(ResourceKey key, Set<ResourceKey> reachable) throws IOException {
+        OutputResource resource = resources.get(key);
+        if (resource == null || !reachable.add(key)) return 0;
+        long bytes = resource.length();
+        for (ResourceKey reference : referencesOf(resource))
+            bytes += add(reference, reachable);
+        return bytes;
+    }
+
+    private Set<ResourceKey> referencesOf(OutputResource resource) throws IOException {
+        Set<ResourceKey> references = resourceReferences.get(resource);
+        if (references != null) return references;
+
+        references = new HashSet<>();
+        if (REFERRING_TYPES.contains(resource.key.getType())) {
+            try (AfpRecordReader reader = AfpFiles.newAfpRecordReader(resource.inputFile.path, resource.resource.start)) {
+                while (reader.next() && reader.getRecordOffset() < resource.resource.end) {
+                    if (References.mayRefer(reader.getId()))
+                        References.collect(reader.getBuffer(), reader.getLength(), references, new HashSet<>());
+                }
+            }
+        }
+        resourceReferences.put(resource, references);
+        return references;
+    }
+}
@@ -0,0 +1,199 @@
+package afp.file.combine;
+
+import afp.file.combine.AfpCombine.InputFile;
+import afp.file.combine.AfpCombine.MediumMap;
+import afp.file.combine.AfpCombine.Resource;
+import org.afplib.ResourceKey;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Scan results of input files in memory, shared by the {@link AfpCombine} jobs of a
+ * {@link CombineService}, so that the resource libraries many jobs include are only scanned
+ * and fingerprinted once.
+ * <p>
+ * Entries are keyed by path, size, modification time and file key of the input file and by the
+ * fingerprint algorithm, and the least recently used entries are evicted beyond the capacity.
+ * Jobs scanning the same file at the same time wait for the first scan instead of repeating it.
+ * Each job gets its own copy of the cached results; the regions of resources and medium maps
+ * are shared, as they are not changed after the scan.
+ */
+final class ScanCache {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ScanCache.class);
+
+    interface Scanner {
+        /**
+         * Fills the scan results of the input file.
+         *
+         * @return the number of bytes read
+         */
+        long scan() throws IOException;
+    }
+
+    private static final class Key {
+        final String path;
+        final long size, lastModified;
+        final Object fileKey;
+        final String fingerprintAlgorithm;
+
+        Key(Path file, String fingerprintAlgorithm) throws IOException {
+            Path absolute = file.toAbsolutePath().normalize();
+            BasicFileAttributes attributes = Files.readAttributes(absolute, BasicFileAttributes.class);
+            this.path = absolute.toString();
+            this.size = attributes.size();
+            this.lastModified = attributes.lastModifiedTime().toMillis();
+            this.fileKey = attributes.fileKey();
+            this.fingerprintAlgorithm = fingerprintAlgorithm;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key other = (Key) o;
+            return path.equals(other.path) && size == other.size && lastModified == other.lastModified
+                    && Objects.equals(fileKey, other.fileKey) && fingerprintAlgorithm.equals(other.fingerprintAlgorithm);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(path, size, lastModified, fingerprintAlgorithm);
+        }
+    }
+
+    /**
+     * The scan results of one input file, without the formdef bytes, which each job keeps
+     * within its own memory budget.
+     */
+    private static final class Entry {
+        final long documentStart, formdefStart, formdefEnd;
+        final List<ResourceKey> resources;
+        final Map<ResourceKey, Resource> filePos;
+        final List<String> mmNames;
+        final Map<String, MediumMap> mediumMaps;
+
+        Entry(InputFile inputFile) {
+            documentStart = inputFile.documentStart;
+            formdefStart = inputFile.formdefStart;
+            formdefEnd = inputFile.formdefEnd;
+            resources = new ArrayList<>(inputFile.resources);
+            filePos = new HashMap<>(inputFile.filePos);
+            mmNames = new ArrayList<>(inputFile.mmNames);
+            mediumMaps = new HashMap<>(inputFile.mediumMaps);
+        }
+
+        void copyTo(InputFile inputFile) {
+            inputFile.documentStart = documentStart;
+            inputFile.formdefStart = formdefStart;
+            inputFile.formdefEnd = formdefEnd;
+            inputFile.resources.addAll(resources);
+            inputFile.filePos.putAll(filePos);
+            inputFile.mmNames.addAll(mmNames);
+            inputFile.mediumMaps.putAll(mediumMaps);
+        }
+    }
+
+    private final int capacity;
+    private final Map<Key, FutureTask<Entry>> entries;
+    private final LongAdder hits = new LongAdder();
+
+    /**
+     * @param capacity the number of input files to keep the scan results of
+     */
+    ScanCache(int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("capacity must be at least 1: " + capacity);
+        this.capacity = capacity;
+        entries = new LinkedHashMap<Key, FutureTask<Entry>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, FutureTask<Entry>> eldest) {
+                return size() > ScanCache.this.capacity;
+            }
+        };
+    }
+
+    /**
+     * Fills the scan results of {@code inputFile} from the cache, or with {@code scanner} if
+     * they are not cached yet.
+     *
+     * @return the number of bytes read by {@code scanner}, 0 if the results were cached
+     */
+    long scan(InputFile inputFile, String fingerprintAlgorithm, Scanner scanner) throws IOException {
+        Key key = new Key(inputFile.path, fingerprintAlgorithm);
+        long[] bytesRead = new long[1];
+        FutureTask<Entry> task = new FutureTask<>(() -> {
+            bytesRead[0] = scanner.scan();
+            return new Entry(inputFile);
+        });
+
+        FutureTask<Entry> cached;
+        synchronized (entries) {
+            cached = entries.get(key);
+            if (cached == null) entries.put(key, task);
+        }
+
+        if (cached == null) {
+            task.run();
+            try {
+                task.get();
+            } catch (ExecutionException | InterruptedException e) {
+                synchronized (entries) {
+                    entries.remove(key, task);
+                }
+                inputFile.clearScan();
+                throw unwrap(e, inputFile);
+            }
+            return bytesRead[0];
+        }
+
+        Entry entry;
+        try {
+            entry = cached.get();
+        } catch (ExecutionException e) {
+            // the other scan failed, so this one is tried on its own
+            return scanner.scan();
+        } catch (InterruptedException e) {
+            throw unwrap(e, inputFile);
+        }
+        entry.copyTo(inputFile);
+        hits.increment();
+        LOGGER.debug("{}: using cached scan results", inputFile.getName());
+        return 0;
+    }
+
+    private static IOException unwrap(Exception e, InputFile inputFile) {
+        if (e instanceof InterruptedException) {
+            Thread.currentThread().interrupt();
+            return new InterruptedIOException("interrupted while scanning " + inputFile.getName());
+        }
+        Throwable cause = e.getCause();
+        if (cause instanceof IOException) return (IOException) cause;
+        if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+        if (cause instanceof Error) throw (Error) cause;
+        return new IOException(cause);
+    }
+
+    /**
+     * @return the number of scans served from the cache
+     */
+    long getHits() {
+        return hits.sum();
+    }
+
+    int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+}
@@ -0,0 +1,295 @@
+package afp.file.combine;
+
+import afp.file.combine.AfpCombine.InputFile;
+import afp.file.combine.AfpCombine.MediumMap;
+import afp.file.combine.AfpCombine.Resource;
+import org.afplib.ResourceKey;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.UUID;
+import java.util.zip.CRC32;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Persistent index of the results of {@link AfpCombine}'s scan phase, so that unchanged
+ * input files do not have to be parsed again.
+ * <p>
+ * An entry is only used if path, size, modification time and a CRC32 of the content of the
+ * input file, as well as the fingerprint algorithm, are the same as when it was written. Entries are
+ * written to a temporary file and moved into place, and carry a checksum of their payload. An
+ * entry that cannot be read is deleted and the input file is scanned again.
+ */
+public class ScanIndex {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ScanIndex.class);
+
+    private static final int MAGIC = 0x41465049; // AFPI
+    private static final int VERSION = 4;
+    private static final String SUFFIX = ".afpidx";
+    private static final int CHECKSUM_BUFFER_SIZE = 256 * 1024;
+
+    private final Path directory;
+
+    private ScanIndex(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Keeps the index entries of all input files in one cache directory.
+     */
+    public static ScanIndex inDirectory(Path directory) throws IOException {
+        requireNonNull(directory, "Path is required");
+        Files.createDirectories(directory);
+        return new ScanIndex(directory);
+    }
+
+    /**
+     * Keeps the index entry of each input file next to it, named after the file with the
+     * suffix {@value #SUFFIX}.
+     */
+    public static ScanIndex besideInputs() {
+        return new ScanIndex(null);
+    }
+
+    static final class FileIdentity {
+        final String path;
+        final long size, lastModified, checksum;
+
+        private FileIdentity(String path, long size, long lastModified, long checksum) {
+            this.path = path;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.checksum = checksum;
+        }
+
+        boolean sameAs(FileIdentity other) {
+            return path.equals(other.path) && size == other.size
+                    && lastModified == other.lastModified && checksum == other.checksum;
+        }
+    }
+
+    FileIdentity identify(Path file) throws IOException {
+        Path absolute = file.toAbsolutePath().normalize();
+        long size = Files.size(absolute);
+        long lastModified = Files.getLastModifiedTime(absolute).toMillis();
+        CRC32 crc = new CRC32();
+        try (InputStream in = Files.newInputStream(absolute)) {
+            byte[] buffer = new byte[CHECKSUM_BUFFER_SIZE];
+            int l;
+            while ((l = in.read(buffer)) >= 0)
+                crc.update(buffer, 0, l);
+        }
+        return new FileIdentity(absolute.toString(), size, lastModified, crc.getValue());
+    }
+
+    private Path entryFor(FileIdentity identity) {
+        Path file = Paths.get(identity.path);
+        if (directory == null)
+            return file.resolveSibling(file.getFileName() + SUFFIX);
+        return directory.resolve(UUID.nameUUIDFromBytes(identity.path.getBytes(StandardCharsets.UTF_8)) + SUFFIX);
+    }
+
+    /**
+     * Fills the scan results of {@code inputFile} from the index.
+     *
+     * @return false if there is no valid entry for the current content of the file
+     */
+    boolean load(InputFile inputFile, FileIdentity identity, String fingerprintAlgorithm) {
+        Path entry = entryFor(identity);
+        if (!Files.isRegularFile(entry)) return false;
+
+        byte[] payload;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(entry)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                discard(entry, "unknown format");
+                return false;
+            }
+            FileIdentity stored = new FileIdentity(in.readUTF(), in.readLong(), in.readLong(), in.readLong());
+            if (!stored.sameAs(identity) || !in.readUTF().equals(fingerprintAlgorithm)) {
+                LOGGER.debug("{}: index entry {} is outdated", inputFile.getName(), entry);
+                return false;
+            }
+            // a corrupted length must not be allocated before the checksum can reject it
+            int length = in.readInt();
+            if (length < 0 || length > Files.size(entry)) {
+                discard(entry, "invalid payload length " + length);
+                return false;
+            }
+            payload = new byte[length];
+            in.readFully(payload);
+            CRC32 crc = new CRC32();
+            crc.update(payload, 0, payload.length);
+            if (in.readLong() != crc.getValue()) {
+                discard(entry, "checksum mismatch");
+                return false;
+            }
+        } catch (IOException | RuntimeException e) {
+            discard(entry, e.toString());
+            return false;
+        }
+
+        try {
+            read(inputFile, payload);
+        } catch (IOException | RuntimeException e) {
+            inputFile.clearScan();
+            discard(entry, e.toString());
+            return false;
+        }
+        LOGGER.info("{}: using scan results from {}", inputFile.getName(), entry);
+        return true;
+    }
+
+    private void discard(Path entry, String reason) {
+        LOGGER.warn("discarding index entry {}: {}", entry, reason);
+        try {
+            Files.deleteIfExists(entry);
+        } catch (IOException e) {
+            LOGGER.warn("unable to delete index entry {}", entry, e);
+        }
+    }
+
+    private void read(InputFile inputFile, byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        inputFile.documentStart = in.readLong();
+
+        for (int i = in.readInt(); i > 0; i--) {
+            ResourceKey key = readKey(in);
+            Resource resource = new Resource();
+            resource.start = in.readLong();
+            resource.end = in.readLong();
+            resource.ersPos = in.readLong();
+            resource.hash = readFingerprint(in);
+            inputFile.resources.add(key);
+            inputFile.filePos.put(key, resource);
+        }
+
+        for (int i = in.readInt(); i > 0; i--) {
+            String mmName = in.readUTF();
+            MediumMap mediumMap = new MediumMap();
+            mediumMap.start = in.readLong();
+            mediumMap.end = in.readLong();
+            mediumMap.hash = readFingerprint(in);
+            inputFile.mmNames.add(mmName);
+            inputFile.mediumMaps.put(mmName, mediumMap);
+        }
+
+        inputFile.formdefStart = in.readLong();
+        inputFile.formdefEnd = in.readLong();
+    }
+
+    /**
+     * Writes the scan results of {@code inputFile}, replacing any existing entry.
+     * Failures are logged, as the index is only an optimization.
+     */
+    void store(InputFile inputFile, FileIdentity identity, String fingerprintAlgorithm) {
+        Path entry = entryFor(identity);
+        try {
+            byte[] payload = write(inputFile);
+            CRC32 crc = new CRC32();
+            crc.update(payload, 0, payload.length);
+
+            Path tmp = Files.createTempFile(entry.getParent(), entry.getFileName().toString(), ".tmp");
+            try {
+                try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                    out.writeInt(MAGIC);
+                    out.writeInt(VERSION);
+                    out.writeUTF(identity.path);
+                    out.writeLong(identity.size);
+                    out.writeLong(identity.lastModified);
+                    out.writeLong(identity.checksum);
+                    out.writeUTF(fingerprintAlgorithm);
+                    out.writeInt(payload.length);
+                    out.write(payload);
+                    out.writeLong(crc.getValue());
+                }
+                try {
+                    Files.move(tmp, entry, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(tmp, entry, StandardCopyOption.REPLACE_EXISTING);
+                }
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+            LOGGER.debug("{}: stored scan results in {}", inputFile.getName(), entry);
+        } catch (IOException e) {
+            LOGGER.warn("{}: unable to write index entry {}", inputFile.getName(), entry, e);
+        }
+    }
+
+    private byte[] write(InputFile inputFile) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeLong(inputFile.documentStart);
+
+        out.writeInt(inputFile.resources.size());
+        for (ResourceKey key : inputFile.resources) {
+            Resource resource = inputFile.filePos.get(key);
+            writeKey(out, key);
+            out.writeLong(resource.start);
+            out.writeLong(resource.end);
+            out.writeLong(resource.ersPos);
+            writeFingerprint(out, resource.hash);
+        }
+
+        out.writeInt(inputFile.mmNames.size());
+        for (String mmName : inputFile.mmNames) {
+            MediumMap mediumMap = inputFile.mediumMaps.get(mmName);
+            out.writeUTF(mmName);
+            out.writeLong(mediumMap.start);
+            out.writeLong(mediumMap.end);
+            writeFingerprint(out, mediumMap.hash);
+        }
+
+        out.writeLong(inputFile.formdefStart);
+        out.writeLong(inputFile.formdefEnd);
+
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Writes type, name and object id of a resource key, so that loading an entry does not have to
+     * decode the BRS of each resource again. An object id is preceded by its length, -1 for none.
+     */
+    private static void writeKey(DataOutputStream out, ResourceKey key) throws IOException {
+        out.writeInt(key.getType());
+        out.writeUTF(key.getName());
+        byte[] objId = key.getObjId();
+        out.writeShort(objId == null ? -1 : objId.length);
+        if (objId != null) out.write(objId);
+    }
+
+    private static ResourceKey readKey(DataInputStream in) throws IOException {
+        int type = in.readInt();
+        String name = in.readUTF();
+        int length = in.readShort();
+        byte[] objId = null;
+        if (length >= 0) {
+            objId = new byte[length];
+            in.readFully(objId);
+        }
+        return new ResourceKey(type, name, objId);
+    }
+
+    /**
+     * Writes the length of the fingerprint, 0 for none, followed by its 16 bytes.
+     */
+    private static void writeFingerprint(DataOutputStream out, Fingerprint fingerprint) throws IOException {
+        out.writeByte(fingerprint == null ? 0 : fingerprint.getLength());
+        if (fingerprint != null) {
+            out.writeLong(fingerprint.getHigh());
+            out.writeLong(fingerprint.getLow());
+        }
+    }
+
+    private static Fingerprint readFingerprint(DataInputStream in) throws IOException {
+        int length = in.readUnsignedByte();
+        if (length == 0) return null;
+        return new Fingerprint(in.readLong(), in.readLong(), length);
+    }
+}
@@ -0,0 +1,92 @@
+package afp.file;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.Arrays;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+
+class AsyncFileOutputStreamTest {
+
+    private static final Duration TIMEOUT = Duration.ofSeconds(30);
+
+    @TempDir
+    Path directory;
+
+    /**
+     * A channel that fails with an unchecked exception, as a deflater or a read-only channel would.
+     */
+    private static final class FailingChannel implements WritableByteChannel {
+        @Override
+        public int write(ByteBuffer src) {
+            throw new IllegalStateException("broken channel");
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    @Test
+    void fail_writes_when_the_channel_throws_an_unchecked_exception() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            AsyncFileOutputStream out = new AsyncFileOutputStream(new FailingChannel(), 2, 16);
+            assertThatThrownBy(() -> {
+                for (int i = 0; i < 1000; i++)
+                    out.write(new byte[16]);
+            }).isInstanceOf(IOException.class).hasRootCauseInstanceOf(IllegalStateException.class);
+            assertThatThrownBy(out::close).isInstanceOf(IOException.class);
+        });
+    }
+
+    @Test
+    void fail_transfers_when_the_channel_throws_an_unchecked_exception() throws IOException {
+        Path source = directory.resolve("source");
+        Files.write(source, new byte[1000]);
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            try (FileChannel channel = FileChannel.open(source, StandardOpenOption.READ)) {
+                AsyncFileOutputStream out = new AsyncFileOutputStream(new FailingChannel(), 2, 16);
+                assertThatThrownBy(() -> out.transferFrom(channel, 0, 1000))
+                        .isInstanceOf(IOException.class).hasRootCauseInstanceOf(IllegalStateException.class);
+                // the buffers queued after the failure are skipped, so writing fails instead of waiting
+                assertThatThrownBy(() -> {
+                    for (int i = 0; i < 1000; i++)
+                        out.write(new byte[16]);
+                }).isInstanceOf(IOException.class);
+                assertThatThrownBy(out::close).isInstanceOf(IOException.class);
+            }
+        });
+    }
+
+    @Test
+    void truncate_a_longer_file_written_before() throws IOException {
+        Path file = directory.resolve("output.afp");
+        byte[] stale = new byte[10_000];
+        Arrays.fill(stale, (byte) 0x5A);
+        Files.write(file, stale);
+
+        byte[] data = new byte[1000];
+        for (int i = 0; i < data.length; i++)
+            data[i] = (byte) i;
+        try (AsyncFileOutputStream out = AfpFiles.newAsyncOutputStream(file, 2, 64)) {
+            out.write(data);
+        }
+        assertThat(file).hasBinaryContent(data);
+    }
+}
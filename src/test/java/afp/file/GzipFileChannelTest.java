@@ -0,0 +1,216 @@
+package afp.file;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class GzipFileChannelTest {
+
+    private static final int FHCRC = 2, FEXTRA = 4, FNAME = 8, FCOMMENT = 16;
+
+    @TempDir
+    Path directory;
+
+    /**
+     * @return content that compresses somewhat, larger than the window of the channel
+     */
+    private static byte[] content(int length) {
+        byte[] content = new byte[length];
+        Random random = new Random(length);
+        for (int i = 0; i < length; i++)
+            content[i] = (byte) (random.nextInt(16) + 'A');
+        return content;
+    }
+
+    /**
+     * @return the content compressed as gzip members of {@code memberSize} uncompressed bytes each
+     */
+    private static byte[] gzip(byte[] content, int memberSize) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int offset = 0; offset < content.length; offset += memberSize) {
+            try (GZIPOutputStream gzip = new GZIPOutputStream(new NonClosing(out))) {
+                gzip.write(content, offset, Math.min(memberSize, content.length - offset));
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static final class NonClosing extends FilterOutputStream {
+        NonClosing(ByteArrayOutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+
+    private Path write(String name, byte[] bytes) throws IOException {
+        Path file = directory.resolve(name);
+        Files.write(file, bytes);
+        return file;
+    }
+
+    private static byte[] read(GzipFileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) break;
+        }
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+
+    private static byte[] readAll(GzipFileChannel channel) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteBuffer buffer = ByteBuffer.allocate(8192);
+        while (channel.read(buffer) >= 0) {
+            out.write(buffer.array(), 0, buffer.position());
+            buffer.clear();
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    void seek_back_across_members() throws IOException {
+        byte[] content = content(1_000_000);
+        Path file = write("members.gz", gzip(content, 100_000));
+
+        try (GzipFileChannel channel = GzipFileChannel.open(file)) {
+            for (int position : new int[]{950_000, 640_000, 10_000, 399_990, 0, 999_000}) {
+                assertThat(read(channel, position, 1000))
+                        .isEqualTo(Arrays.copyOfRange(content, position, Math.min(content.length, position + 1000)));
+            }
+        }
+    }
+
+    @Test
+    void seek_back_within_one_member() throws IOException {
+        byte[] content = content(1_000_000);
+        Path file = write("member.gz", gzip(content, content.length));
+
+        try (GzipFileChannel channel = GzipFileChannel.open(file)) {
+            // further back than the window, so it inflates from the start again
+            for (int position : new int[]{900_000, 10_000, 500_000, 499_000, 0}) {
+                assertThat(read(channel, position, 2000)).isEqualTo(Arrays.copyOfRange(content, position, position + 2000));
+            }
+        }
+    }
+
+    @Test
+    void know_the_size_before_reading_to_the_end() throws IOException {
+        byte[] content = content(700_000);
+        Path file = write("size.gz", gzip(content, 300_000));
+
+        try (GzipFileChannel channel = GzipFileChannel.open(file)) {
+            assertThat(channel.size()).isEqualTo(content.length);
+            assertThat(channel.position()).isZero();
+            assertThat(readAll(channel)).isEqualTo(content);
+        }
+        try (GzipFileChannel channel = GzipFileChannel.open(file)) {
+            assertThat(read(channel, 100, 100)).isEqualTo(Arrays.copyOfRange(content, 100, 200));
+            assertThat(channel.size()).isEqualTo(content.length);
+        }
+    }
+
+    @Test
+    void reject_a_corrupt_trailer() throws IOException {
+        byte[] gzip = gzip(content(10_000), 10_000);
+        byte[] crc = gzip.clone();
+        crc[crc.length - 8] ^= 0x01;
+        byte[] size = gzip.clone();
+        size[size.length - 4] ^= 0x01;
+
+        try (GzipFileChannel channel = GzipFileChannel.open(write("crc.gz", crc))) {
+            assertThatThrownBy(() -> readAll(channel)).isInstanceOf(ZipException.class);
+        }
+        try (GzipFileChannel channel = GzipFileChannel.open(write("isize.gz", size))) {
+            assertThatThrownBy(() -> readAll(channel)).isInstanceOf(ZipException.class);
+        }
+        try (GzipFileChannel channel = GzipFileChannel.open(write("truncated.gz", Arrays.copyOf(gzip, gzip.length - 4)))) {
+            assertThatThrownBy(() -> readAll(channel)).isInstanceOf(EOFException.class);
+        }
+    }
+
+    @Test
+    void ignore_trailing_garbage() throws IOException {
+        byte[] content = content(10_000);
+        byte[] gzip = gzip(content, 4_000);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(gzip);
+        out.write("trailing garbage".getBytes("US-ASCII"));
+
+        try (GzipFileChannel channel = GzipFileChannel.open(write("garbage.gz", out.toByteArray()))) {
+            assertThat(readAll(channel)).isEqualTo(content);
+            assertThat(channel.size()).isEqualTo(content.length);
+        }
+        try (GzipFileChannel channel = GzipFileChannel.open(write("zeros.gz", Arrays.copyOf(gzip, gzip.length + 100)))) {
+            assertThat(channel.size()).isEqualTo(content.length);
+            assertThat(readAll(channel)).isEqualTo(content);
+        }
+    }
+
+    @Test
+    void skip_optional_header_fields() throws IOException {
+        byte[] content = content(50_000);
+        byte[] gzip = gzip(content, content.length);
+
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        header.write(gzip, 0, 10);
+        byte[] extra = {'A', 'P', 4, 0, 1, 2, 3, 4};
+        header.write(extra.length);
+        header.write(0);
+        header.write(extra);
+        header.write("input.afp\0".getBytes("ISO-8859-1"));
+        header.write("a comment\0".getBytes("ISO-8859-1"));
+        byte[] fields = header.toByteArray();
+        fields[3] = (byte) (FEXTRA | FNAME | FCOMMENT | FHCRC);
+        CRC32 crc = new CRC32();
+        crc.update(fields);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(fields);
+        out.write((int) crc.getValue());
+        out.write((int) crc.getValue() >> 8);
+        out.write(gzip, 10, gzip.length - 10);
+        // followed by a second member without optional fields
+        out.write(gzip);
+
+        try (GzipFileChannel channel = GzipFileChannel.open(write("header.gz", out.toByteArray()))) {
+            byte[] read = readAll(channel);
+            assertThat(Arrays.copyOfRange(read, 0, content.length)).isEqualTo(content);
+            assertThat(Arrays.copyOfRange(read, content.length, read.length)).isEqualTo(content);
+        }
+    }
+
+    @Test
+    void transfer_nothing_at_or_past_the_end() throws IOException {
+        byte[] content = content(10_000);
+        Path file = write("transfer.gz", gzip(content, 3_000));
+
+        try (GzipFileChannel channel = GzipFileChannel.open(file)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            assertThat(channel.transferTo(content.length - 5, 10, Channels.newChannel(out))).isEqualTo(5);
+            assertThat(out.toByteArray()).isEqualTo(Arrays.copyOfRange(content, content.length - 5, content.length));
+            assertThat(channel.transferTo(content.length, 10, Channels.newChannel(out))).isZero();
+            assertThat(channel.transferTo(content.length + 100, 10, Channels.newChannel(out))).isZero();
+            assertThat(out.size()).isEqualTo(5);
+            assertThat(read(channel, content.length, 10)).isEmpty();
+        }
+    }
+}
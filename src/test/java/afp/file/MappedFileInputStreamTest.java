@@ -0,0 +1,125 @@
+package afp.file;
+
+import afp.file.combine.AfpCorpusGenerator;
+import org.afplib.base.SF;
+import org.afplib.io.AfpInputStream;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Reads files through windows much smaller than their structured fields, so that nearly every read
+ * slides the window, as it does on files larger than 2 GB with the default window.
+ */
+class MappedFileInputStreamTest {
+
+    // smaller than the introducer plus name of any structured field, and not a divisor of any length
+    private static final long WINDOW = 7;
+
+    @TempDir
+    Path directory;
+
+    private Path file;
+    private byte[] bytes;
+
+    @BeforeEach
+    void generate() throws IOException {
+        file = new AfpCorpusGenerator()
+                .inputs(1)
+                .resources(3)
+                .resourceSize(100)
+                .pages(5)
+                .pageSize(300)
+                .generate(directory)[0];
+        bytes = Files.readAllBytes(file);
+    }
+
+    @Test
+    void read_across_windows_and_seek_back() throws IOException {
+        try (MappedFileInputStream in = AfpFiles.newMappedInputStream(file, WINDOW)) {
+            assertThat(in.size()).isEqualTo(bytes.length);
+
+            byte[] all = new byte[bytes.length + 10];
+            int done = 0;
+            for (int l; (l = in.read(all, done, Math.min(13, all.length - done))) > 0; )
+                done += l;
+            assertThat(Arrays.copyOf(all, done)).isEqualTo(bytes);
+            assertThat(in.read()).isEqualTo(-1);
+
+            // backwards through the file, each read starting in one window and ending in another
+            for (int position = bytes.length - 20; position >= 0; position -= 17) {
+                in.seek(position);
+                assertThat(in.read()).isEqualTo(bytes[position] & 0xff);
+                byte[] range = new byte[19];
+                int l = in.read(range, 0, range.length);
+                assertThat(Arrays.copyOf(range, l)).isEqualTo(Arrays.copyOfRange(bytes, position + 1, position + 1 + l));
+                assertThat(in.position()).isEqualTo(position + 1 + l);
+            }
+        }
+    }
+
+    @Test
+    void read_records_across_windows() throws IOException {
+        List<Long> offsets = new ArrayList<>();
+        try (AfpRecordReader expected = AfpFiles.newAfpRecordReader(file, 0);
+             AfpRecordReader mapped = AfpFiles.newAfpMappedRecordReader(file, 0, WINDOW)) {
+            while (expected.next()) {
+                assertThat(mapped.next()).isTrue();
+                assertThat(mapped.getRecordOffset()).isEqualTo(expected.getRecordOffset());
+                assertThat(Arrays.copyOf(mapped.getBuffer(), mapped.getLength()))
+                        .isEqualTo(Arrays.copyOf(expected.getBuffer(), expected.getLength()));
+                offsets.add(expected.getRecordOffset());
+            }
+            assertThat(mapped.next()).isFalse();
+        }
+        assertThat(offsets.size()).isGreaterThan(20);
+
+        // starting at every record, from the last one back
+        for (int i = offsets.size() - 1; i >= 0; i -= 3) {
+            long offset = offsets.get(i);
+            try (AfpRecordReader mapped = AfpFiles.newAfpMappedRecordReader(file, offset, WINDOW)) {
+                assertThat(mapped.next()).isTrue();
+                assertThat(mapped.getRecordOffset()).isEqualTo(offset);
+                assertThat(Arrays.copyOf(mapped.getBuffer(), mapped.getLength()))
+                        .isEqualTo(Arrays.copyOfRange(bytes, (int) offset, (int) offset + mapped.getLength()));
+            }
+        }
+    }
+
+    @Test
+    void read_structured_fields_across_windows_and_seek_back() throws IOException {
+        List<Long> offsets = new ArrayList<>();
+        List<Integer> ids = new ArrayList<>();
+        try (AfpInputStream expected = AfpFiles.newAfpInputStream(file);
+             AfpInputStream mapped = AfpFiles.newAfpMappedInputStream(file, WINDOW)) {
+            long offset = 0;
+            SF sf;
+            while ((sf = expected.readStructuredField()) != null) {
+                assertThat(mapped.readStructuredField()).isNotNull().extracting(SF::getId).isEqualTo(sf.getId());
+                assertThat(mapped.getLastReadBuffer()).isEqualTo(expected.getLastReadBuffer());
+                assertThat(mapped.getCurrentOffset()).isEqualTo(expected.getCurrentOffset());
+                offsets.add(offset);
+                ids.add(sf.getId());
+                offset = expected.getCurrentOffset();
+            }
+            assertThat(mapped.readStructuredField()).isNull();
+            assertThat(mapped.getCurrentOffset()).isEqualTo(bytes.length);
+
+            for (int i = offsets.size() - 1; i >= 0; i -= 2) {
+                mapped.position(offsets.get(i));
+                assertThat(mapped.readStructuredField()).isNotNull().extracting(SF::getId).isEqualTo(ids.get(i));
+                long end = i + 1 < offsets.size() ? offsets.get(i + 1) : bytes.length;
+                assertThat(mapped.getCurrentOffset()).isEqualTo(end);
+            }
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package afp.file.combine;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Combines large generated corpora and checks the output as well as time and heap budgets.
+ * Runs only with {@code mvn test -Pscale}; sizes and budgets can be changed with the
+ * {@code afp.scale.*} system properties.
+ */
+@Tag("scale")
+class AfpCombineScaleTest {
+
+    private static final long MAX_SECONDS = Long.getLong("afp.scale.maxSeconds", 600);
+    private static final long MAX_HEAP_MB = Long.getLong("afp.scale.maxHeapMb", 1024);
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void combine_thousands_of_inputs_with_conflicting_names() throws IOException {
+        int inputs = Integer.getInteger("afp.scale.inputs", 2000);
+        int documents = 2, pages = 10;
+        Path[] corpus = new AfpCorpusGenerator()
+                .inputs(inputs)
+                .resources(Integer.getInteger("afp.scale.resources", 50))
+                .resourceSize(4096)
+                .mediumMaps(20)
+                .documents(documents)
+                .pages(pages)
+                .sharedRatio(0.8)
+                .conflictRatio(0.2)
+                .generate(directory);
+
+        combineWithinBudget(corpus, inputs * documents, inputs * documents * pages);
+    }
+
+    @Test
+    void combine_large_document_sections() throws IOException {
+        int inputs = 4, documents = 4;
+        int pages = Integer.getInteger("afp.scale.pages", 1024);
+        Path[] corpus = new AfpCorpusGenerator()
+                .inputs(inputs)
+                .resources(20)
+                .resourceSize(64 * 1024)
+                .documents(documents)
+                .pages(pages)
+                .pageSize(Integer.getInteger("afp.scale.pageSize", 64 * 1024))
+                .generate(directory);
+
+        combineWithinBudget(corpus, inputs * documents, inputs * documents * pages);
+    }
+
+    private void combineWithinBudget(Path[] corpus, int expectedDocuments, int expectedPages) throws IOException {
+        Path output = directory.resolve("output.afp");
+        System.gc();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+            if (pool.getType() == MemoryType.HEAP) pool.resetPeakUsage();
+
+        long start = System.nanoTime();
+        new AfpCombine(output, corpus).run();
+        long seconds = TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start);
+
+        long peakHeap = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+            if (pool.getType() == MemoryType.HEAP) peakHeap += pool.getPeakUsage().getUsed();
+
+        assertThat(Files.size(output)).isPositive();
+        CombinedOutput.read(output).assertConsistent(expectedDocuments, expectedPages);
+        assertThat(seconds).as("seconds to combine").isLessThanOrEqualTo(MAX_SECONDS);
+        assertThat(peakHeap / (1024 * 1024)).as("peak heap in MB").isLessThanOrEqualTo(MAX_HEAP_MB);
+    }
+}
@@ -1,16 +1,28 @@
 package afp.file.combine;
 
+import org.afplib.ResourceKey;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
 import java.util.Optional;
 import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 
 class AfpCombineTest {
 
@@ -18,6 +30,9 @@ class AfpCombineTest {
     private static final String ENDE_AFP = "/testdata/ende.afp";
     private static final String EXPECTED_OUTPUT = "/testdata/expected_output.afp";
 
+    @TempDir
+    Path directory;
+
     @Test
     void generate_output() throws IOException {
         final Path output = Files.createTempFile("out", "afp");
@@ -39,6 +54,517 @@ class AfpCombineTest {
 
     }
 
+    @Test
+    void generate_same_output_from_scan_index() throws IOException {
+        final Path indexDirectory = directory.resolve("index");
+        final Path[] inputs = Stream.of(START_AFP, START_AFP, ENDE_AFP, ENDE_AFP)
+                .map(this::getResourcePath)
+                .map(Optional::get)
+                .map(Path::toAbsolutePath)
+                .toArray(Path[]::new);
+
+        for (int run = 0; run < 2; run++) {
+            final Path output = directory.resolve("output" + run + ".afp");
+            AfpCombine combine = new AfpCombine(output, inputs);
+            combine.setScanIndex(ScanIndex.inDirectory(indexDirectory));
+            CombineStatistics statistics = combine.run();
+            getResourcePath(EXPECTED_OUTPUT).ifPresent(expectedOutput ->
+                    assertThat(expectedOutput).hasSameBinaryContentAs(output));
+            if (run > 0)
+                assertThat(statistics.get(CombineStatistics.Phase.SCAN).getFieldsDecoded()).isZero();
+        }
+    }
+
+    @Test
+    void rescan_inputs_with_corrupted_or_outdated_index_entries() throws IOException {
+        final Path[] inputs = new AfpCorpusGenerator()
+                .inputs(4)
+                .mediumMaps(2)
+                .conflictRatio(0.5)
+                .generate(directory);
+        final Path indexDirectory = directory.resolve("index");
+
+        final Path expected = directory.resolve("expected.afp");
+        new AfpCombine(expected, inputs).run();
+        assertThat(combineWithIndex(inputs, indexDirectory)).isPositive();
+        assertThat(combineWithIndex(inputs, indexDirectory)).isZero();
+
+        final Path[] entries;
+        try (Stream<Path> files = Files.list(indexDirectory)) {
+            entries = files.sorted().toArray(Path[]::new);
+        }
+        assertThat(entries).hasSize(inputs.length);
+
+        // a flipped payload byte, a truncated entry, a huge payload length and an unknown version
+        byte[] flipped = Files.readAllBytes(entries[0]);
+        flipped[flipped.length - 9] ^= 0x01;
+        Files.write(entries[0], flipped);
+        byte[] truncated = Files.readAllBytes(entries[1]);
+        Files.write(entries[1], Arrays.copyOf(truncated, truncated.length / 2));
+        byte[] huge = Files.readAllBytes(entries[2]);
+        ByteArrayInputStream header = new ByteArrayInputStream(huge);
+        DataInputStream in = new DataInputStream(header);
+        in.readInt(); // magic
+        in.readInt(); // version
+        in.readUTF(); // path
+        in.skipBytes(3 * 8); // size, modification time, checksum
+        in.readUTF(); // fingerprint algorithm
+        ByteBuffer.wrap(huge).putInt(huge.length - header.available(), Integer.MAX_VALUE);
+        Files.write(entries[2], huge);
+        ByteBuffer version = ByteBuffer.wrap(Files.readAllBytes(entries[3]));
+        version.putInt(4, version.getInt(4) + 1);
+        Files.write(entries[3], version.array());
+
+        assertThat(combineWithIndex(inputs, indexDirectory)).isPositive();
+        assertThat(directory.resolve("indexed.afp")).hasSameBinaryContentAs(expected);
+        assertThat(combineWithIndex(inputs, indexDirectory)).isZero();
+
+        // a changed input is scanned again
+        Files.setLastModifiedTime(inputs[0], FileTime.fromMillis(Files.getLastModifiedTime(inputs[0]).toMillis() - 60_000));
+        assertThat(combineWithIndex(inputs, indexDirectory)).isPositive();
+        assertThat(directory.resolve("indexed.afp")).hasSameBinaryContentAs(expected);
+        assertThat(combineWithIndex(inputs, indexDirectory)).isZero();
+        assertThat(directory.resolve("indexed.afp")).hasSameBinaryContentAs(expected);
+    }
+
+    /**
+     * @return the number of structured fields decoded by the scan
+     */
+    private long combineWithIndex(Path[] inputs, Path indexDirectory) throws IOException {
+        AfpCombine combine = new AfpCombine(directory.resolve("indexed.afp"), inputs);
+        combine.setScanIndex(ScanIndex.inDirectory(indexDirectory));
+        return combine.run().get(CombineStatistics.Phase.SCAN).getFieldsDecoded();
+    }
+
+    @Test
+    void generate_consistent_output_for_conflicting_resources() throws IOException {
+        final Path[] inputs = new AfpCorpusGenerator()
+                .inputs(5)
+                .mediumMaps(3)
+                .documents(2)
+                .overlays(4)
+                .fonts(3)
+                .objects(3)
+                .sharedRatio(0.7)
+                .conflictRatio(0.5)
+                .generate(directory);
+
+        final Path output = directory.resolve("output.afp");
+        CombineStatistics statistics = new AfpCombine(output, inputs).run();
+        CombinedOutput combined = CombinedOutput.read(output);
+        combined.assertConsistent(5 * 2, 5 * 2 * 10);
+        combined.assertResolvesLike(inputs);
+
+        assertThat(statistics.getResourcesSeen()).isEqualTo(5 * (10 + 4 + 3 * 3 + 3));
+        assertThat(statistics.getMediumMapsSeen()).isEqualTo(5 * 3);
+        assertThat(statistics.get(CombineStatistics.Phase.RESOURCE_GROUP).getBytesWritten()
+                + statistics.get(CombineStatistics.Phase.DOCUMENTS).getBytesWritten())
+                .isEqualTo(Files.size(output));
+    }
+
+    @Test
+    void generate_same_output_with_concurrent_document_rewriting() throws IOException {
+        final Path[] inputs = new AfpCorpusGenerator()
+                .inputs(8)
+                .documents(3)
+                .conflictRatio(0.5)
+                .generate(directory);
+
+        final Path sequential = directory.resolve("sequential.afp");
+        AfpCombine combine = new AfpCombine(sequential, inputs);
+        combine.setParallelism(1);
+        combine.run();
+
+        final Path concurrent = directory.resolve("concurrent.afp");
+        combine = new AfpCombine(concurrent, inputs);
+        combine.setParallelism(4);
+        combine.run();
+
+        assertThat(concurrent).hasSameBinaryContentAs(sequential);
+    }
+
+    @Test
+    void generate_same_output_beyond_memory_budget() throws IOException {
+        final Path[] inputs = new AfpCorpusGenerator()
+                .inputs(6)
+                .mediumMaps(4)
+                .conflictRatio(0.5)
+                .generate(directory);
+
+        final Path inMemory = directory.resolve("memory.afp");
+        new AfpCombine(inMemory, inputs).run();
+
+        final Path reread = directory.resolve("reread.afp");
+        AfpCombine combine = new AfpCombine(reread, inputs);
+        combine.setMemoryBudget(0);
+        combine.run();
+
+        assertThat(reread).hasSameBinaryContentAs(inMemory);
+        CombinedOutput.read(reread).assertConsistent(6, 6 * 10);
+    }
+
+    @Test
+    void generate_same_output_when_combining_in_groups() throws IOException {
+        final Path[] inputs = new AfpCorpusGenerator()
+                .inputs(10)
+                .mediumMaps(3)
+                .conflictRatio(0.5)
+                .generate(directory);
+
+        final Path flat = directory.resolve("flat.afp");
+        CombineStatistics expected = new AfpCombine(flat, inputs).run();
+
+        // 10 inputs in 4 groups, 4 intermediate files in 2 groups, then 2 into the output
+        final Path tree = directory.resolve("tree.afp");
+        AfpCombine combine = new AfpCombine(tree, inputs);
+        combine.setFanIn(3);
+        CombineStatistics statistics = combine.run();
+
+        assertThat(tree).hasSameBinaryContentAs(flat);
+        assertThat(statistics.getResourcesDeduplicated()).isEqualTo(expected.getResourcesDeduplicated());
+        assertThat(statistics.getMediumMapsMerged()).isEqualTo(expected.getMediumMapsMerged());
+        try (Stream<Path> files = Files.list(directory)) {
+            assertThat(files.filter(file -> file.toString().endsWith(".part"))).isEmpty();
+        }
+
+        // the documents of the second group need page segments that only the inputs of the first group carry,
+        // and which their own documents do not need
+        final Path[] pruned = Stream.concat(
+                Stream.of(new AfpCorpusGenerator()
+                        .inputs(3)
+                        .pages(3)
+                        .conflictRatio(0)
+                        .generate(Files.createDirectory(directory.resolve("carrying")))),
+                Stream.of(new AfpCorpusGenerator()
+                        .inputs(3)
+                        .resources(0)
+                        .referencedResources(10)
+                        .generate(Files.createDirectory(directory.resolve("referring")))))
+                .toArray(Path[]::new);
+
+        final Path flatPruned = directory.resolve("flat-pruned.afp");
+        combine = new AfpCombine(flatPruned, pruned);
+        combine.setPrune(true);
+        combine.run();
+        CombinedOutput prunedOutput = CombinedOutput.read(flatPruned);
+        prunedOutput.assertConsistent(6, 3 * 3 + 3 * 10);
+        prunedOutput.assertResolvesLike(pruned);
+
+        final Path treePruned = directory.resolve("tree-pruned.afp");
+        combine = new AfpCombine(treePruned, pruned);
+        combine.setFanIn(3);
+        combine.setPrune(true);
+        combine.run();
+
+        assertThat(treePruned).hasSameBinaryContentAs(flatPruned);
+    }
+
+    @Test
+    void write_page_index_of_documents_and_pages() throws IOException {
+        final Path[] inputs = new AfpCorpusGenerator()
+                .inputs(5)
+                .pages(4)
+                .mediumMaps(2)
+                .conflictRatio(0.5)
+                .generate(directory);
+
+        final Path output = directory.resolve("indexed.afp");
+        AfpCombine combine = new AfpCombine(output, inputs);
+        combine.setPageIndex(true);
+        combine.run();
+
+        byte[] bytes = Files.readAllBytes(output);
+        try (PageIndex index = PageIndex.open(output)) {
+            assertThat(index.getInputs()).containsExactly(inputs);
+            assertThat(index.size()).isEqualTo(5 * (1 + 4));
+            for (int i = 0; i < index.size(); i++) {
+                PageIndex.Entry entry = index.get(i);
+                int input = i / 5, ordinal = i % 5 - 1;
+                assertThat(entry.getInput()).isEqualTo(input);
+                if (ordinal < 0) {
+                    assertThat(entry.getId()).isEqualTo(0xD3A8A8);
+                    assertThat(entry.getName()).isEqualTo("D0000000");
+                    assertThat(entry.getOrdinal()).isZero();
+                } else {
+                    assertThat(entry.getId()).isEqualTo(0xD3A8AF);
+                    assertThat(entry.getName()).isEqualTo(String.format("P%07d", ordinal));
+                    assertThat(entry.getOrdinal()).isEqualTo(ordinal);
+                }
+                int offset = (int) entry.getOffset();
+                assertThat(bytes[offset]).isEqualTo((byte) 0x5A);
+                assertThat((bytes[offset + 3] & 0xff) << 16 | (bytes[offset + 4] & 0xff) << 8 | bytes[offset + 5] & 0xff)
+                        .isEqualTo(entry.getId());
+            }
+        }
+
+        // decoded fields and intermediate files give the same offsets
+        final Path decoded = directory.resolve("decoded.afp");
+        combine = new AfpCombine(decoded, inputs);
+        combine.setPageIndex(true);
+        combine.setPatchNames(false);
+        combine.run();
+        assertThat(PageIndex.sidecarOf(decoded)).hasSameBinaryContentAs(PageIndex.sidecarOf(output));
+
+        final Path grouped = directory.resolve("grouped.afp");
+        combine = new AfpCombine(grouped, inputs);
+        combine.setPageIndex(true);
+        combine.setFanIn(2);
+        combine.run();
+        assertThat(PageIndex.sidecarOf(grouped)).hasSameBinaryContentAs(PageIndex.sidecarOf(output));
+    }
+
+    @Test
+    void prune_resources_the_documents_do_not_need() throws IOException {
+        // each page refers to one of 10 page segments, so 3 pages need 3 of them
+        final Path[] inputs = new AfpCorpusGenerator()
+                .inputs(3)
+                .pages(3)
+                .mediumMaps(2)
+                .conflictRatio(0.5)
+                .generate(directory);
+
+        final Path unpruned = directory.resolve("unpruned.afp");
+        new AfpCombine(unpruned, inputs).run();
+
+        final Path output = directory.resolve("pruned.afp");
+        AfpCombine combine = new AfpCombine(output, inputs);
+        combine.setPrune(true);
+        CombineStatistics statistics = combine.run();
+
+        CombinedOutput pruned = CombinedOutput.read(output);
+        pruned.assertConsistent(3, 9);
+        assertThat(pruned.resources).isEqualTo(pruned.referencedResources);
+        assertThat(statistics.getResourcesPruned()).isPositive();
+        assertThat(Files.size(output)).isLessThan(Files.size(unpruned));
+    }
+
+    @Test
+    void prune_resources_the_documents_refer_to_through_other_resources() throws IOException {
+        // the page includes page segment 0, overlay 0 and object 1, and maps coded font 0 and object 0;
+        // overlay 0 maps coded font 1, and the medium map positions overlay 3, which maps coded font 4
+        final Path[] inputs = new AfpCorpusGenerator()
+                .inputs(2)
+                .resources(2)
+                .referencedResources(1)
+                .overlays(4)
+                .fonts(5)
+                .objects(3)
+                .pages(1)
+                .conflictRatio(0)
+                .generate(directory);
+
+        final Path output = directory.resolve("pruned.afp");
+        AfpCombine combine = new AfpCombine(output, inputs);
+        combine.setPrune(true);
+        CombineStatistics statistics = combine.run();
+
+        CombinedOutput pruned = CombinedOutput.read(output);
+        pruned.assertConsistent(2, 2);
+        pruned.assertResolvesLike(inputs);
+        assertThat(pruned.resources.stream().map(ResourceKey::getName)).containsExactlyInAnyOrder(
+                "S0000000",
+                "O0000000", "O0000003",
+                "X0000000", "X0000001", "X0000004",
+                "C0000000", "C0000001", "C0000004",
+                "T0000000", "T0000001", "T0000004",
+                "R0000000", "R0000001");
+        assertThat(statistics.getResourcesPruned()).isPositive();
+    }
+
+    @Test
+    void split_output_into_parts_with_their_own_resources() throws IOException {
+        final Path[] inputs = new AfpCorpusGenerator()
+                .inputs(4)
+                .mediumMaps(2)
+                .conflictRatio(0.5)
+                .generate(directory);
+
+        final Path output = directory.resolve("split.afp");
+        AfpCombine combine = new AfpCombine(output, inputs);
+        combine.setSplit(0, 15);
+        combine.setPageIndex(true);
+        combine.run();
+
+        // 4 documents of 10 pages, cut after 15 pages within the second and third document
+        assertThat(combine.getOutputFiles()).containsExactly(
+                directory.resolve("split.0001.afp"), directory.resolve("split.0002.afp"), directory.resolve("split.0003.afp"));
+        int[] documents = {2, 2, 1}, pages = {15, 15, 10};
+        for (int i = 0; i < 3; i++) {
+            CombinedOutput part = CombinedOutput.read(combine.getOutputFiles().get(i));
+            part.assertConsistent(documents[i], pages[i]);
+            assertThat(part.resources).isEqualTo(part.referencedResources);
+            try (PageIndex index = PageIndex.open(combine.getOutputFiles().get(i))) {
+                assertThat(index.size()).isEqualTo(documents[i] + pages[i]);
+            }
+        }
+        try (Stream<Path> files = Files.list(directory)) {
+            assertThat(files.filter(file -> file.toString().endsWith(".documents"))).isEmpty();
+        }
+    }
+
+    @Test
+    void split_output_into_parts_within_the_byte_limit() throws IOException {
+        final Path[] inputs = new AfpCorpusGenerator()
+                .inputs(3)
+                .mediumMaps(2)
+                .pageSize(2000)
+                .conflictRatio(0.5)
+                .generate(directory);
+
+        final long maxBytes = 20_000;
+        final Path output = directory.resolve("split.afp");
+        AfpCombine combine = new AfpCombine(output, inputs);
+        combine.setSplit(maxBytes, 0);
+        CombineStatistics statistics = combine.run();
+
+        // the resource group and the documents both count, and a part is cut before the page that would not fit
+        assertThat(combine.getOutputFiles()).hasSizeGreaterThan(1);
+        long written = 0;
+        int pages = 0;
+        for (Path file : combine.getOutputFiles()) {
+            assertThat(Files.size(file)).isLessThanOrEqualTo(maxBytes);
+            CombinedOutput part = CombinedOutput.read(file);
+            part.assertConsistent(part.documents, part.pages);
+            assertThat(part.pages).isPositive();
+            written += Files.size(file);
+            pages += part.pages;
+        }
+        assertThat(pages).isEqualTo(3 * 10);
+        assertThat(statistics.get(CombineStatistics.Phase.RESOURCE_GROUP).getBytesWritten()
+                + statistics.get(CombineStatistics.Phase.DOCUMENTS).getBytesWritten()).isEqualTo(written);
+    }
+
+    @Test
+    void generate_same_output_when_patching_names() throws IOException {
+        final Path[] inputs = new AfpCorpusGenerator()
+                .inputs(6)
+                .mediumMaps(3)
+                .overlays(4)
+                .fonts(3)
+                .objects(3)
+                .conflictRatio(0.5)
+                .generate(directory);
+
+        final Path decoded = directory.resolve("decoded.afp");
+        AfpCombine combine = new AfpCombine(decoded, inputs);
+        combine.setPatchNames(false);
+        combine.run();
+
+        final Path patched = directory.resolve("patched.afp");
+        combine = new AfpCombine(patched, inputs);
+        CombineStatistics statistics = combine.run();
+
+        assertThat(patched).hasSameBinaryContentAs(decoded);
+        CombinedOutput.read(patched).assertResolvesLike(inputs);
+        assertThat(statistics.get(CombineStatistics.Phase.DOCUMENTS).getFieldsPatched()).isPositive();
+    }
+
+    @Test
+    void generate_consistent_output_with_fast_fingerprints() throws IOException {
+        final Path[] inputs = new AfpCorpusGenerator()
+                .inputs(5)
+                .mediumMaps(3)
+                .overlays(4)
+                .fonts(3)
+                .objects(3)
+                .conflictRatio(0.5)
+                .generate(directory);
+
+        for (String algorithm : new String[]{"murmur3", "crc32c"}) {
+            final Path output = directory.resolve(algorithm + ".afp");
+            AfpCombine combine = new AfpCombine(output, inputs);
+            combine.setFingerprinter(Fingerprinter.forName(algorithm));
+            CombineStatistics statistics = combine.run();
+            CombinedOutput combined = CombinedOutput.read(output);
+            combined.assertConsistent(5, 5 * 10);
+            combined.assertResolvesLike(inputs);
+            assertThat(statistics.getResourcesRenamed()).isPositive();
+        }
+    }
+
+    @Test
+    void generate_consistent_output_from_session() throws IOException {
+        final Path[] inputs = new AfpCorpusGenerator()
+                .inputs(5)
+                .mediumMaps(3)
+                .documents(2)
+                .overlays(4)
+                .fonts(3)
+                .objects(3)
+                .sharedRatio(0.7)
+                .conflictRatio(0.5)
+                .generate(directory);
+
+        final Path output = directory.resolve("output.afp");
+        try (CombineSession session = CombineSession.open(output)) {
+            for (Path input : inputs)
+                session.add(input);
+            session.finish();
+        }
+        CombinedOutput combined = CombinedOutput.read(output);
+        combined.assertConsistent(5 * 2, 5 * 2 * 10);
+        combined.assertResolvesLike(inputs);
+        try (Stream<Path> files = Files.list(directory)) {
+            assertThat(files.filter(file -> file.getFileName().toString().startsWith("output.afp."))).isEmpty();
+        }
+
+        final AfpCombine split = new AfpCombine(output);
+        split.setSplit(0, 10);
+        assertThatThrownBy(() -> CombineSession.open(split)).isInstanceOf(IllegalStateException.class);
+        final AfpCombine pruned = new AfpCombine(output);
+        pruned.setPrune(true);
+        assertThatThrownBy(() -> CombineSession.open(pruned)).isInstanceOf(IllegalStateException.class);
+        try (Stream<Path> files = Files.list(directory)) {
+            assertThat(files.filter(file -> file.getFileName().toString().startsWith("output.afp."))).isEmpty();
+        }
+    }
+
+    @Test
+    void read_and_write_gzip_compressed_files() throws IOException {
+        final Path[] inputs = new AfpCorpusGenerator()
+                .inputs(4)
+                .mediumMaps(2)
+                .conflictRatio(0.5)
+                .pageSize(40_000)
+                .generate(directory);
+
+        final Path plain = directory.resolve("plain.afp");
+        new AfpCombine(plain, inputs).run();
+
+        // the first input in two members, so that seeks start inflating at the second
+        final Path[] compressed = new Path[inputs.length];
+        for (int i = 0; i < inputs.length; i++) {
+            compressed[i] = directory.resolve(inputs[i].getFileName() + ".gz");
+            byte[] bytes = Files.readAllBytes(inputs[i]);
+            try (OutputStream out = Files.newOutputStream(compressed[i])) {
+                int split = i == 0 ? bytes.length / 2 : bytes.length;
+                gzip(out, bytes, 0, split);
+                if (split < bytes.length) gzip(out, bytes, split, bytes.length - split);
+            }
+        }
+
+        final Path output = directory.resolve("output.afp.gz");
+        AfpCombine combine = new AfpCombine(output, compressed);
+        combine.setPageIndex(true);
+        combine.run();
+
+        final Path decompressed = directory.resolve("output.afp");
+        try (InputStream in = new GZIPInputStream(Files.newInputStream(output))) {
+            Files.copy(in, decompressed);
+        }
+        assertThat(decompressed).hasSameBinaryContentAs(plain);
+        try (PageIndex index = PageIndex.open(output)) {
+            assertThat(index.size()).isEqualTo(4 + 4 * 10);
+            assertThat(index.getInputs()).containsExactly(compressed);
+        }
+    }
+
+    private static void gzip(OutputStream out, byte[] bytes, int offset, int length) throws IOException {
+        GZIPOutputStream gzip = new GZIPOutputStream(out);
+        gzip.write(bytes, offset, length);
+        gzip.finish();
+    }
+
     private Optional<Path> getResourcePath(String name) {
         return Optional.ofNullable(getClass().getResource(name))
                 .map(url -> {
@@ -0,0 +1,403 @@
+package afp.file.combine;
+
+import afp.file.AfpFiles;
+import org.afplib.afplib.*;
+import org.afplib.io.AfpOutputStream;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Generates reproducible AFP input files for combine tests and benchmarks.
+ * <p>
+ * Every input has a resource group with an inline formdef of {@code mediumMaps} medium maps
+ * and {@code resources} page segments of about {@code resourceSize} bytes, followed by
+ * {@code documents} documents of {@code pages} pages. Each page includes one page segment
+ * and carries {@code pageSize} bytes of padding; each document invokes one medium map.
+ * <p>
+ * A page segment has a name used by all inputs with probability {@code sharedRatio},
+ * otherwise a name unique to its input. A shared page segment or medium map gets content
+ * specific to its input with probability {@code conflictRatio}, which forces the combine
+ * to rename it.
+ * <p>
+ * Pages include the first {@code referencedResources} page segments, all by default. Segments beyond
+ * those the input carries are referred to by their shared names, so that inputs without resources can
+ * use those of other inputs.
+ * <p>
+ * Optionally the inputs also carry {@code overlays} overlays, {@code fonts} coded fonts with their
+ * font character sets and code pages, and {@code objects} object containers, all under shared names.
+ * Page p then maps coded font p and object p, includes overlay p and object p + 1, each modulo
+ * their count, and overlay k maps coded font k + 1. Every medium map positions the last overlay.
+ * Overlays other than the last and objects conflict like page segments; fonts and the last overlay
+ * never do, as the combine copies resources and merges medium maps without renaming the references
+ * inside them.
+ */
+public final class AfpCorpusGenerator {
+
+    private static final Charset EBCDIC = Charset.forName("IBM500");
+
+    private static final int BPS = 0xD3A85F, EPS = 0xD3A95F;
+    private static final int BDT = 0xD3A8A8, EDT = 0xD3A9A8;
+    private static final int BPG = 0xD3A8AF, EPG = 0xD3A9AF;
+    private static final int NOP = 0xD3EEEE;
+    private static final int BMO = 0xD3A8DF, EMO = 0xD3A9DF;
+    private static final int BAG = 0xD3A8C9, EAG = 0xD3A9C9;
+    private static final int BCF = 0xD3A88A, ECF = 0xD3A98A, CFI = 0xD38C8A;
+    private static final int BFN = 0xD3A889, EFN = 0xD3A989;
+    private static final int BCP = 0xD3A887, ECP = 0xD3A987;
+    private static final int BOC = 0xD3A892, EOC = 0xD3A992, OCD = 0xD3EE92;
+    private static final int BRS = 0xD3A8CE;
+    private static final int MCF = 0xD3AB8A, MCF1 = 0xD3B18A, MDR = 0xD3ABC3;
+    private static final int IPO = 0xD3AFD8, IOB = 0xD3AFC3;
+    private static final int MMO = 0xD3B1DF, MPO = 0xD3ABD8, PGP = 0xD3B1AF, MCC = 0xD3A288, MMC = 0xD3A788;
+    private static final int FQN_RESOURCE_OBJECT = 0x84, FQN_CODED_FONT = 0x8E, FQN_OTHER_OBJECT_DATA = 0xCE;
+    private static final int OBJECT_CONTAINER = 0x92;
+    /**
+     * Registered object identifier of the objects: PDF single page object.
+     */
+    private static final byte[] OBJECT_ID = {0x06, 0x07, 0x2B, 0x12, 0x00, 0x04, 0x01, 0x01, 0x19,
+            0, 0, 0, 0, 0, 0, 0};
+    private static final int MAX_DATA = 32 * 1024 - 9;
+
+    private int inputs = 2;
+    private int resources = 10;
+    private int resourceSize = 1024;
+    private int mediumMaps = 1;
+    private int documents = 1;
+    private int pages = 10;
+    private int pageSize = 0;
+    private int referencedResources = -1;
+    private int overlays = 0;
+    private int fonts = 0;
+    private int objects = 0;
+    private double sharedRatio = 1.0;
+    private double conflictRatio = 0.1;
+    private long seed = 1;
+
+    public AfpCorpusGenerator inputs(int inputs) {
+        this.inputs = inputs;
+        return this;
+    }
+
+    public AfpCorpusGenerator resources(int resources) {
+        this.resources = resources;
+        return this;
+    }
+
+    public AfpCorpusGenerator resourceSize(int resourceSize) {
+        this.resourceSize = resourceSize;
+        return this;
+    }
+
+    public AfpCorpusGenerator mediumMaps(int mediumMaps) {
+        this.mediumMaps = mediumMaps;
+        return this;
+    }
+
+    public AfpCorpusGenerator documents(int documents) {
+        this.documents = documents;
+        return this;
+    }
+
+    public AfpCorpusGenerator pages(int pages) {
+        this.pages = pages;
+        return this;
+    }
+
+    public AfpCorpusGenerator pageSize(int pageSize) {
+        this.pageSize = pageSize;
+        return this;
+    }
+
+    public AfpCorpusGenerator referencedResources(int referencedResources) {
+        this.referencedResources = referencedResources;
+        return this;
+    }
+
+    public AfpCorpusGenerator overlays(int overlays) {
+        this.overlays = overlays;
+        return this;
+    }
+
+    public AfpCorpusGenerator fonts(int fonts) {
+        this.fonts = fonts;
+        return this;
+    }
+
+    public AfpCorpusGenerator objects(int objects) {
+        this.objects = objects;
+        return this;
+    }
+
+    public AfpCorpusGenerator sharedRatio(double sharedRatio) {
+        this.sharedRatio = sharedRatio;
+        return this;
+    }
+
+    public AfpCorpusGenerator conflictRatio(double conflictRatio) {
+        this.conflictRatio = conflictRatio;
+        return this;
+    }
+
+    public AfpCorpusGenerator seed(long seed) {
+        this.seed = seed;
+        return this;
+    }
+
+    public Path[] generate(Path directory) throws IOException {
+        Random random = new Random(seed);
+        Path[] result = new Path[inputs];
+        for (int i = 0; i < inputs; i++) {
+            result[i] = directory.resolve(String.format("input%06d.afp", i));
+            try (AfpOutputStream out = AfpFiles.newAfpBufferedOutputStream(result[i],
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                write(out, i, random);
+            }
+        }
+        return result;
+    }
+
+    private void write(AfpOutputStream out, int input, Random random) throws IOException {
+        String[] segments = new String[resources];
+        for (int r = 0; r < resources; r++)
+            segments[r] = random.nextDouble() < sharedRatio
+                    ? String.format("S%07d", r)
+                    : String.format("U%07d", input * resources + r);
+
+        out.writeStructuredField(AfplibFactory.eINSTANCE.createBRG());
+
+        out.writeStructuredField(brs("F1CORPUS", ResourceObjectTypeObjType.CONST_FORM_MAP_VALUE));
+        out.writeStructuredField(AfplibFactory.eINSTANCE.createBFM());
+        for (int m = 0; m < mediumMaps; m++) {
+            BMM bmm = AfplibFactory.eINSTANCE.createBMM();
+            bmm.setMMName(mediumMapName(m));
+            out.writeStructuredField(bmm);
+            if (overlays > 0) {
+                String overlay = overlayName(overlays - 1);
+                record(out, MMO, concat(new byte[]{0x0C, 0, 0, 0, 1, 0, 0, 0}, name(overlay)));
+                record(out, MPO, concat(new byte[]{0, 18}, fqn(FQN_RESOURCE_OBJECT, overlay),
+                        new byte[]{4, 0x24, 2, 1}));
+            }
+            // a conflicting medium map moves the medium origin
+            int origin = random.nextDouble() < conflictRatio ? input + 1 : 0;
+            record(out, PGP, new byte[]{1, 0x0C, 0, (byte) (origin >> 8), (byte) origin, 0, 0, 0, 0, 0, 0, 0, 0});
+            record(out, MCC, new byte[]{0, 1, 0, 1, 0, 1});
+            record(out, MMC, new byte[]{1, (byte) 0xFF, (byte) 0xF4, 1});
+            out.writeStructuredField(AfplibFactory.eINSTANCE.createEMM());
+        }
+        out.writeStructuredField(AfplibFactory.eINSTANCE.createEFM());
+        out.writeStructuredField(ers("F1CORPUS"));
+
+        for (String segment : segments) {
+            boolean conflicting = segment.startsWith("S") && random.nextDouble() < conflictRatio;
+            Random content = new Random(segment.hashCode() * 31L + (conflicting ? input + 1 : 0));
+
+            out.writeStructuredField(brs(segment, ResourceObjectTypeObjType.CONST_PAGE_SEGMENT_VALUE));
+            record(out, BPS, name(segment));
+            padding(out, content, resourceSize);
+            record(out, EPS, name(segment));
+            out.writeStructuredField(ers(segment));
+        }
+
+        for (int k = 0; k < fonts; k++)
+            writeFont(out, k);
+
+        for (int k = 0; k < overlays; k++) {
+            String overlay = overlayName(k);
+            boolean conflicting = k < overlays - 1 && random.nextDouble() < conflictRatio;
+            Random content = new Random(overlay.hashCode() * 31L + (conflicting ? input + 1 : 0));
+
+            out.writeStructuredField(brs(overlay, ResourceObjectTypeObjType.CONST_OVERLAY_VALUE));
+            record(out, BMO, name(overlay));
+            if (fonts > 0) {
+                record(out, BAG, new byte[0]);
+                record(out, MCF, concat(new byte[]{0, 18}, fqn(FQN_CODED_FONT, codedFontName((k + 1) % fonts)),
+                        new byte[]{4, 0x24, 5, 1}));
+                record(out, EAG, new byte[0]);
+            }
+            padding(out, content, resourceSize);
+            record(out, EMO, name(overlay));
+            out.writeStructuredField(ers(overlay));
+        }
+
+        for (int k = 0; k < objects; k++) {
+            String object = objectName(k);
+            boolean conflicting = random.nextDouble() < conflictRatio;
+            Random content = new Random(object.hashCode() * 31L + (conflicting ? input + 1 : 0));
+
+            record(out, BRS, concat(name(object), new byte[]{0, 0, 0x0A, 0x21, (byte) OBJECT_CONTAINER,
+                    0, 0, 0, 0, 0, 0, 0}, classification()));
+            record(out, BOC, concat(name(object), new byte[2], classification()));
+            for (int left = resourceSize; left > 0; left -= MAX_DATA) {
+                byte[] data = new byte[Math.min(left, MAX_DATA)];
+                content.nextBytes(data);
+                record(out, OCD, data);
+            }
+            record(out, EOC, name(object));
+            out.writeStructuredField(ers(object));
+        }
+
+        out.writeStructuredField(AfplibFactory.eINSTANCE.createERG());
+
+        int referenced = referencedResources < 0 ? resources : referencedResources;
+        for (int d = 0; d < documents; d++) {
+            String document = String.format("D%07d", d);
+            record(out, BDT, concat(name(document), new byte[2]));
+            IMM imm = AfplibFactory.eINSTANCE.createIMM();
+            imm.setMMPName(mediumMapName(d % Math.max(1, mediumMaps)));
+            if (mediumMaps > 0) out.writeStructuredField(imm);
+            for (int p = 0; p < pages; p++) {
+                String page = String.format("P%07d", p);
+                record(out, BPG, name(page));
+                if (fonts > 0 || objects > 0) {
+                    record(out, BAG, new byte[0]);
+                    if (fonts > 0) record(out, MCF1, mcf1(codedFontName(p % fonts)));
+                    if (objects > 0) record(out, MDR, concat(new byte[]{0, 38},
+                            fqn(FQN_OTHER_OBJECT_DATA, objectName(p % objects)), classification()));
+                    record(out, EAG, new byte[0]);
+                }
+                if (referenced > 0) {
+                    int r = p % referenced;
+                    IPS ips = AfplibFactory.eINSTANCE.createIPS();
+                    ips.setPsegName(r < resources ? segments[r] : String.format("S%07d", r));
+                    ips.setXpsOset(0);
+                    ips.setYpsOset(0);
+                    out.writeStructuredField(ips);
+                }
+                if (overlays > 0)
+                    record(out, IPO, concat(name(overlayName(p % overlays)), new byte[9]));
+                if (objects > 0)
+                    record(out, IOB, concat(name(objectName((p + 1) % objects)),
+                            new byte[]{0, (byte) OBJECT_CONTAINER, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 1},
+                            classification()));
+                padding(out, random, pageSize);
+                record(out, EPG, name(page));
+            }
+            record(out, EDT, name(document));
+        }
+    }
+
+    private static String mediumMapName(int m) {
+        return String.format("M%07d", m);
+    }
+
+    private static String overlayName(int k) {
+        return String.format("O%07d", k);
+    }
+
+    private static String codedFontName(int k) {
+        return String.format("X%07d", k);
+    }
+
+    private static String objectName(int k) {
+        return String.format("R%07d", k);
+    }
+
+    /**
+     * Writes coded font k with its font character set and code page, which have the same content in every input.
+     */
+    private void writeFont(AfpOutputStream out, int k) throws IOException {
+        String codePage = String.format("T%07d", k), characterSet = String.format("C%07d", k);
+        String codedFont = codedFontName(k);
+
+        out.writeStructuredField(brs(codePage, ResourceObjectTypeObjType.CONST_CODE_PAGE_VALUE));
+        record(out, BCP, name(codePage));
+        padding(out, new Random(codePage.hashCode()), resourceSize / 4);
+        record(out, ECP, name(codePage));
+        out.writeStructuredField(ers(codePage));
+
+        out.writeStructuredField(brs(characterSet, ResourceObjectTypeObjType.CONST_FONT_CHARACTER_SET_VALUE));
+        record(out, BFN, name(characterSet));
+        padding(out, new Random(characterSet.hashCode()), resourceSize);
+        record(out, EFN, name(characterSet));
+        out.writeStructuredField(ers(characterSet));
+
+        out.writeStructuredField(brs(codedFont, ResourceObjectTypeObjType.CONST_CODED_FONT_VALUE));
+        record(out, BCF, name(codedFont));
+        record(out, CFI, concat(name(characterSet), name(codePage), new byte[]{0, 0, 0, 0, 0, 0, 0, 0, 1}));
+        record(out, ECF, name(codedFont));
+        out.writeStructuredField(ers(codedFont));
+    }
+
+    /**
+     * @return the data of a Map Coded Font format 1 that maps a coded font by its name only
+     */
+    private static byte[] mcf1(String codedFont) {
+        byte[] none = new byte[8];
+        Arrays.fill(none, (byte) 0xFF);
+        return concat(new byte[]{0x1E, 0, 0, 0, 1, 0, 0, 0}, name(codedFont), none, none, new byte[2]);
+    }
+
+    /**
+     * @return a Fully Qualified Name triplet with a character name
+     */
+    private static byte[] fqn(int type, String name) {
+        return concat(new byte[]{0x0C, 0x02, (byte) type, 0x00}, name(name));
+    }
+
+    /**
+     * @return an Object Classification triplet of the objects
+     */
+    private static byte[] classification() {
+        return concat(new byte[]{0x18, 0x10, 0x00, 0x01, 0x00, 0x00, 0x00, 0x00}, OBJECT_ID);
+    }
+
+    private static BRS brs(String name, int objType) {
+        BRS brs = AfplibFactory.eINSTANCE.createBRS();
+        brs.setRSName(name);
+        ResourceObjectType type = AfplibFactory.eINSTANCE.createResourceObjectType();
+        type.setConData(new byte[]{0, 0, 0, 0});
+        type.setObjType(objType);
+        brs.getTriplets().add(type);
+        return brs;
+    }
+
+    private static ERS ers(String name) {
+        ERS ers = AfplibFactory.eINSTANCE.createERS();
+        ers.setRSName(name);
+        return ers;
+    }
+
+    private static void padding(AfpOutputStream out, Random random, int size) throws IOException {
+        for (int left = size; left > 0; left -= MAX_DATA) {
+            byte[] data = new byte[Math.min(left, MAX_DATA)];
+            random.nextBytes(data);
+            record(out, NOP, data);
+        }
+    }
+
+    private static byte[] name(String name) {
+        byte[] result = new byte[8];
+        Arrays.fill(result, (byte) 0x40);
+        byte[] encoded = name.getBytes(EBCDIC);
+        System.arraycopy(encoded, 0, result, 0, Math.min(8, encoded.length));
+        return result;
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        int length = 0;
+        for (byte[] part : parts)
+            length += part.length;
+        byte[] result = new byte[length];
+        int position = 0;
+        for (byte[] part : parts) {
+            System.arraycopy(part, 0, result, position, part.length);
+            position += part.length;
+        }
+        return result;
+    }
+
+    /**
+     * Writes a structured field that has no setters used elsewhere in this project as a raw record.
+     */
+    private static void record(AfpOutputStream out, int id, byte[] data) throws IOException {
+        int length = 8 + data.length;
+        out.write(new byte[]{0x5A, (byte) (length >> 8), (byte) length,
+                (byte) (id >> 16), (byte) (id >> 8), (byte) id, 0, 0, 0});
+        out.write(data);
+    }
+}
@@ -0,0 +1,174 @@
+package afp.file.combine;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class CombineDaemonTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void run_jobs_sent_over_the_socket() throws Exception {
+        final Path[] inputs = new AfpCorpusGenerator()
+                .inputs(4)
+                .mediumMaps(2)
+                .conflictRatio(0.5)
+                .generate(directory);
+
+        final Path expected = directory.resolve("alone.afp");
+        new AfpCombine(expected, inputs).run();
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try (CombineDaemon daemon = new CombineDaemon(new CombineService(2, 16), 0, directory.resolve("daemon.token"))) {
+            Future<?> serving = executor.submit(() -> {
+                daemon.serve();
+                return null;
+            });
+
+            final String token = new String(Files.readAllBytes(daemon.getTokenFile()), StandardCharsets.US_ASCII);
+            if (Files.getFileStore(daemon.getTokenFile()).supportsFileAttributeView("posix"))
+                assertThat(PosixFilePermissions.toString(Files.getPosixFilePermissions(daemon.getTokenFile())))
+                        .isEqualTo("rw-------");
+
+            try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), daemon.getPort());
+                 BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                 Writer out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8)) {
+                out.write("guess\tstatus\nguess\tstatus\n");
+                out.flush();
+                assertThat(in.readLine()).isEqualTo("error\tnot authorized");
+                assertThat(in.readLine()).isNull();
+            }
+
+            final Path output = directory.resolve("daemon.afp");
+            try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), daemon.getPort());
+                 BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                 Writer out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8)) {
+                StringBuilder combine = new StringBuilder(token).append("\tcombine\t").append(output);
+                for (Path input : inputs)
+                    combine.append('\t').append(input);
+                out.write(combine.append('\n').toString());
+                out.write(token + "\tcombine\t" + directory.resolve("missing.afp") + "\t" + directory.resolve("missing.in") + "\n");
+                out.write(token + "\tcombine\trelative.afp\t" + inputs[0] + "\n");
+                out.write(token + "\tstatus\n");
+                out.write(token + "\tmerge\n");
+                out.write(token + "\tshutdown\n");
+                out.flush();
+
+                assertThat(in.readLine().split("\t"))
+                        .startsWith("ok", "1")
+                        .contains("output=" + output)
+                        .anyMatch(field -> field.startsWith("elapsed="))
+                        .anyMatch(field -> field.startsWith("DOCUMENTS="));
+                assertThat(in.readLine()).startsWith("failed\t2\t");
+                assertThat(in.readLine()).isEqualTo("error\tpath is not absolute: relative.afp");
+                assertThat(in.readLine()).isEqualTo("status\trunning=0\tcompleted=1\tfailed=1\tcached=4");
+                assertThat(in.readLine()).startsWith("error\t");
+                assertThat(in.readLine()).isEqualTo("ok\tshutdown");
+            }
+            serving.get(1, TimeUnit.MINUTES);
+
+            assertThat(output).hasSameBinaryContentAs(expected);
+            assertThat(daemon.getTokenFile()).doesNotExist();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void close_connections_that_send_too_much() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try (CombineDaemon daemon = new CombineDaemon(new CombineService(1, 16), 0, directory.resolve("daemon.token"))) {
+            Future<?> serving = executor.submit(() -> {
+                daemon.serve();
+                return null;
+            });
+            final String token = new String(Files.readAllBytes(daemon.getTokenFile()), StandardCharsets.US_ASCII);
+
+            // no more than one character beyond the length of the token is read before it is refused
+            try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), daemon.getPort());
+                 BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                 Writer out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8)) {
+                out.write(token);
+                out.write('0');
+                out.flush();
+                assertThat(in.readLine()).isEqualTo("error\tnot authorized");
+                assertThat(in.readLine()).isNull();
+            }
+
+            try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), daemon.getPort());
+                 BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                 Writer out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8)) {
+                char[] request = new char[CombineDaemon.MAX_REQUEST_LENGTH + 1];
+                Arrays.fill(request, 'a');
+                out.write(token + "\t");
+                out.write(request);
+                out.flush();
+                assertThat(in.readLine()).startsWith("error\trequest longer than ");
+                assertThat(in.readLine()).isNull();
+            }
+
+            try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), daemon.getPort());
+                 BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                 Writer out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8)) {
+                out.write(token + "\tstatus\r\n" + token + "\n" + token + "\tshutdown\n");
+                out.flush();
+                assertThat(in.readLine()).isEqualTo("status\trunning=0\tcompleted=0\tfailed=0\tcached=0");
+                assertThat(in.readLine()).isEqualTo("error\trequest expected");
+                assertThat(in.readLine()).isEqualTo("ok\tshutdown");
+            }
+            serving.get(1, TimeUnit.MINUTES);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void refuse_connections_beyond_the_maximum_and_close_idle_ones() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try (CombineDaemon daemon = new CombineDaemon(new CombineService(1, 16), 0, directory.resolve("daemon.token"))) {
+            daemon.setMaxConnections(1);
+            daemon.setTimeout(500);
+            Future<?> serving = executor.submit(() -> {
+                daemon.serve();
+                return null;
+            });
+
+            try (Socket idle = new Socket(InetAddress.getLoopbackAddress(), daemon.getPort());
+                 BufferedReader idleIn = new BufferedReader(new InputStreamReader(idle.getInputStream(), StandardCharsets.UTF_8))) {
+                try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), daemon.getPort());
+                     BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))) {
+                    assertThat(in.readLine()).isEqualTo("error\ttoo many connections");
+                    assertThat(in.readLine()).isNull();
+                }
+                // closed by the daemon after the timeout
+                long start = System.nanoTime();
+                assertThat(idleIn.readLine()).isNull();
+                assertThat(System.nanoTime() - start).isLessThan(TimeUnit.SECONDS.toNanos(30));
+            }
+
+            daemon.close();
+            serving.get(1, TimeUnit.MINUTES);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package afp.file.combine;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Future;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class CombineServiceTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void generate_same_output_as_separate_runs_with_shared_scans() throws Exception {
+        final Path[] inputs = new AfpCorpusGenerator()
+                .inputs(6)
+                .mediumMaps(2)
+                .conflictRatio(0.5)
+                .generate(directory);
+
+        // every job combines a different window of the same inputs
+        final int jobs = 4;
+        List<Path[]> jobInputs = new ArrayList<>();
+        for (int j = 0; j < jobs; j++)
+            jobInputs.add(Arrays.copyOfRange(inputs, j % 2, j % 2 + 4));
+
+        long distinct = jobInputs.stream().flatMap(Arrays::stream).distinct().count();
+
+        List<Path> expected = new ArrayList<>();
+        for (int j = 0; j < jobs; j++) {
+            Path output = directory.resolve("alone" + j + ".afp");
+            new AfpCombine(output, jobInputs.get(j)).run();
+            expected.add(output);
+        }
+
+        List<Future<CombineStatistics>> results = new ArrayList<>();
+        List<Path> outputs = new ArrayList<>();
+        try (CombineService service = new CombineService(2, 16)) {
+            for (int j = 0; j < jobs; j++) {
+                Path output = directory.resolve("service" + j + ".afp");
+                results.add(service.submit(output, jobInputs.get(j)));
+                outputs.add(output);
+            }
+            for (Future<CombineStatistics> result : results)
+                result.get();
+
+            assertThat(service.getScanCache().size()).isEqualTo(distinct);
+            assertThat(service.getScanCache().getHits()).isEqualTo(jobs * 4 - distinct);
+        }
+
+        for (int j = 0; j < jobs; j++)
+            assertThat(outputs.get(j)).hasSameBinaryContentAs(expected.get(j));
+    }
+}
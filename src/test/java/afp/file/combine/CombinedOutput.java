@@ -0,0 +1,212 @@
+package afp.file.combine;
+
+import afp.file.AfpFiles;
+import afp.file.AfpRecordReader;
+import org.afplib.ResourceKey;
+import org.afplib.afplib.*;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Reads a combined file and checks that it is consistent: every resource and medium map
+ * is defined once, and every reference in the documents refers to one of them.
+ * <p>
+ * It also keeps the content of each resource and medium map, to resolve the references of the documents
+ * to what they refer to rather than to a name, and so compare them with the inputs whatever the renamings.
+ */
+final class CombinedOutput {
+
+    final Set<ResourceKey> resources = new HashSet<>();
+    final List<ResourceKey> duplicateResources = new ArrayList<>();
+    final Set<String> mediumMaps = new HashSet<>();
+    final List<String> duplicateMediumMaps = new ArrayList<>();
+    final Set<ResourceKey> referencedResources = new HashSet<>();
+    final Set<ResourceKey> unresolvedResources = new HashSet<>();
+    final Set<String> unresolvedMediumMaps = new HashSet<>();
+    int documents, pages;
+
+    /**
+     * digest of the records between Begin and End Resource, by resource
+     */
+    private final Map<ResourceKey, String> contents = new HashMap<>();
+    /**
+     * structured fields of each medium map
+     */
+    private final Map<String, List<Field>> mediumMapFields = new HashMap<>();
+    /**
+     * structured fields of the documents that refer to resources or medium maps, in order
+     */
+    private final List<Field> documentFields = new ArrayList<>();
+
+    /**
+     * A structured field: its references if it may have some, else its bytes.
+     */
+    private static final class Field {
+        final String bytes;
+        final Set<ResourceKey> resources = new HashSet<>();
+        final Set<String> mediumMaps = new HashSet<>();
+
+        Field(AfpRecordReader reader) throws IOException {
+            if (References.mayRefer(reader.getId())) {
+                bytes = null;
+                References.collect(reader.getBuffer(), reader.getLength(), resources, mediumMaps);
+            } else {
+                // re-encoded, as the combine writes the fields of merged medium maps
+                bytes = hex(AfpCombine.encode(reader.decode()));
+            }
+        }
+    }
+
+    static CombinedOutput read(Path file) throws IOException {
+        CombinedOutput output = new CombinedOutput();
+        try (AfpRecordReader reader = AfpFiles.newAfpRecordReader(file, 0)) {
+            boolean inResourceGroup = false;
+            ResourceKey resource = null;
+            MessageDigest digest = null;
+            List<Field> mediumMap = null;
+            while (reader.next()) {
+                int id = reader.getId();
+                if (id == SFName.BRG_VALUE) inResourceGroup = true;
+                if (id == SFName.ERG_VALUE) inResourceGroup = false;
+
+                if (inResourceGroup) {
+                    if (id == SFName.BRS_VALUE) {
+                        ResourceKey key = ResourceKey.toResourceKey((BRS) reader.decode());
+                        if (key.getType() != ResourceObjectTypeObjType.CONST_FORM_MAP_VALUE
+                                && !output.resources.add(key))
+                            output.duplicateResources.add(key);
+                        resource = key;
+                        digest = sha256();
+                        continue;
+                    }
+                    if (id == SFName.ERS_VALUE) {
+                        output.contents.put(resource, hex(digest.digest()));
+                        resource = null;
+                        continue;
+                    }
+                    if (resource != null) digest.update(reader.getBuffer(), 0, reader.getLength());
+
+                    if (id == SFName.BMM_VALUE) {
+                        String name = ((BMM) reader.decode()).getMMName();
+                        if (!output.mediumMaps.add(name)) output.duplicateMediumMaps.add(name);
+                        mediumMap = new ArrayList<>();
+                        output.mediumMapFields.put(name, mediumMap);
+                    } else if (id == SFName.EMM_VALUE) {
+                        mediumMap = null;
+                    } else if (mediumMap != null) {
+                        mediumMap.add(new Field(reader));
+                    }
+                } else {
+                    if (id == SFName.BDT_VALUE) output.documents++;
+                    if (id == SFName.BPG_VALUE) output.pages++;
+                    if (References.mayRefer(id)) {
+                        Field field = new Field(reader);
+                        output.documentFields.add(field);
+                        output.referencedResources.addAll(field.resources);
+                    }
+                }
+            }
+        }
+
+        for (Field field : output.documentFields) {
+            for (ResourceKey key : field.resources)
+                if (!output.resources.contains(key)) output.unresolvedResources.add(key);
+            for (String name : field.mediumMaps)
+                if (!output.mediumMaps.contains(name)) output.unresolvedMediumMaps.add(name);
+        }
+        return output;
+    }
+
+    void assertConsistent(int expectedDocuments, int expectedPages) {
+        assertThat(duplicateResources).as("resources defined more than once").isEmpty();
+        assertThat(duplicateMediumMaps).as("medium maps defined more than once").isEmpty();
+        assertThat(unresolvedResources).as("references to missing resources").isEmpty();
+        assertThat(unresolvedMediumMaps).as("invocations of missing medium maps").isEmpty();
+        assertThat(documents).as("documents").isEqualTo(expectedDocuments);
+        assertThat(pages).as("pages").isEqualTo(expectedPages);
+    }
+
+    /**
+     * Checks that the references of the documents resolve to the same resource content and medium map fields
+     * as those of the inputs, in the same order. The references of an input resolve to its own resources and
+     * medium maps, else to those of the first input that has them, as the combine keeps the first of several
+     * definitions under their name.
+     */
+    void assertResolvesLike(Path... inputs) throws IOException {
+        List<CombinedOutput> read = new ArrayList<>();
+        for (Path input : inputs)
+            read.add(read(input));
+
+        List<String> expected = new ArrayList<>();
+        for (CombinedOutput input : read) {
+            List<CombinedOutput> scope = new ArrayList<>();
+            scope.add(input);
+            scope.addAll(read);
+            expected.addAll(input.resolve(scope));
+        }
+        assertThat(resolve(Collections.singletonList(this)))
+                .as("references resolved to their content").isEqualTo(expected);
+    }
+
+    /**
+     * @return the references of the documents, each resolved to the content it refers to
+     */
+    private List<String> resolve(List<CombinedOutput> scope) {
+        List<String> result = new ArrayList<>();
+        for (Field field : documentFields)
+            result.add(resolve(field, scope));
+        return result;
+    }
+
+    private static String resolve(Field field, List<CombinedOutput> scope) {
+        if (field.bytes != null) return field.bytes;
+        List<String> resolved = new ArrayList<>();
+        for (ResourceKey key : field.resources)
+            resolved.add(resolveResource(key, scope));
+        for (String name : field.mediumMaps)
+            resolved.add(resolveMediumMap(name, scope));
+        Collections.sort(resolved);
+        return resolved.toString();
+    }
+
+    private static String resolveResource(ResourceKey key, List<CombinedOutput> scope) {
+        for (CombinedOutput file : scope) {
+            String content = file.contents.get(key);
+            if (content != null) return content;
+        }
+        return "missing " + key.getType() + " " + key.getName();
+    }
+
+    private static String resolveMediumMap(String name, List<CombinedOutput> scope) {
+        for (CombinedOutput file : scope) {
+            List<Field> fields = file.mediumMapFields.get(name);
+            if (fields == null) continue;
+            List<String> resolved = new ArrayList<>();
+            for (Field field : fields)
+                resolved.add(resolve(field, scope));
+            return resolved.toString();
+        }
+        return "missing medium map " + name;
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder result = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes)
+            result.append(String.format("%02x", b & 0xff));
+        return result.toString();
+    }
+}
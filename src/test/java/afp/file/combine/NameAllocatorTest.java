@@ -0,0 +1,29 @@
+package afp.file.combine;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class NameAllocatorTest {
+
+    @Test
+    void derive_upper_case_names_from_the_fingerprint() {
+        NameAllocator names = new NameAllocator("page segments");
+        names.reserve("S1ABCDEF");
+
+        assertThat(names.allocate("S1LOGO  ", "abcdef12")).isEqualTo("S1BCDEF1");
+        assertThat(names.allocate("S1LOGO  ", "abcdef12")).isEqualTo("S1CDEF12");
+        assertThat(names.isGenerated("S1CDEF12")).isTrue();
+        assertThat(names.isGenerated("S1ABCDEF")).isFalse();
+    }
+
+    @Test
+    void count_when_the_fingerprint_gives_no_free_name() {
+        NameAllocator names = new NameAllocator("medium maps");
+        names.reserve("M1000000");
+
+        assertThat(names.allocate("M1MAP", "abc")).isEqualTo("M1000001");
+        assertThat(names.allocate("M1MAP", "abc")).isEqualTo("M1000002");
+        assertThat(names.allocate("XY", "abc")).isEqualTo("XY000000");
+    }
+}
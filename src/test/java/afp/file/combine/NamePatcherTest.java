@@ -0,0 +1,282 @@
+package afp.file.combine;
+
+import afp.file.AfpRecordReader;
+import afp.file.combine.NamePatcher.Result;
+import org.afplib.ResourceKey;
+import org.afplib.afplib.FullyQualifiedNameFQNType;
+import org.afplib.afplib.ResourceObjectTypeObjType;
+import org.afplib.afplib.SFName;
+import org.afplib.base.SF;
+import org.afplib.io.Filter;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Patches raw structured fields and compares them with what decoding, renaming and encoding them gives.
+ * The fields are written as raw records after their layout in MO:DCA, like those of {@link AfpCorpusGenerator}.
+ */
+class NamePatcherTest {
+
+    private static final int FLAG_EXTENSION = 0x80, FLAG_SEGMENTED = 0x20, FLAG_PADDING = 0x08;
+    private static final int TRIPLET_FQN = 0x02, TRIPLET_RESOURCE_LOCAL_ID = 0x24, TRIPLET_CLASSIFICATION = 0x10;
+    private static final int OBJECT_CONTAINER = 0x92;
+    private static final byte[] OBJECT_ID = {0x06, 0x07, 0x2B, 0x12, 0x00, 0x04, 0x01, 0x01, 0x19,
+            0, 0, 0, 0, 0, 0, 0};
+
+    private final AfpCombine combine = new AfpCombine(Paths.get("output.afp"));
+    private final AfpCombine.InputFile inputFile = new AfpCombine.InputFile(Paths.get("input.afp"));
+
+    @BeforeEach
+    void renameOneOfEachType() {
+        inputFile.renamings.put(new ResourceKey(ResourceObjectTypeObjType.CONST_PAGE_SEGMENT, "PSEG0001"), "PSEGNEW1");
+        inputFile.renamings.put(new ResourceKey(ResourceObjectTypeObjType.CONST_OVERLAY, "OVLY0001"), "OVLYNEW1");
+        inputFile.renamings.put(new ResourceKey(ResourceObjectTypeObjType.CONST_CODED_FONT, "CFNT0001"), "CFNTNEW1");
+        inputFile.renamings.put(new ResourceKey(ResourceObjectTypeObjType.CONST_CODE_PAGE, "CPAG0001"), "CPAGNEW1");
+        inputFile.renamings.put(new ResourceKey(ResourceObjectTypeObjType.CONST_FONT_CHARACTER_SET, "FCSE0001"), "FCSENEW1");
+        inputFile.renamings.put(new ResourceKey(ResourceObjectTypeObjType.CONST_OBJECT_CONTAINER, "OBJC0001", OBJECT_ID), "OBJCNEW1");
+        inputFile.renameIMM.put("MMAP0001", "MMAPNEW1");
+    }
+
+    @Test
+    void patch_include_page_segment() throws IOException {
+        assertPatchedLikeDecoded(record(SFName.IPS_VALUE, 0, name("PSEG0001"), new byte[6]));
+        assertPatchedLikeDecoded(record(SFName.IPS_VALUE, 0, name("PSEG0001"), new byte[6], gid("PSEG0001")));
+        assertUntouched(record(SFName.IPS_VALUE, 0, name("PSEG0002"), new byte[6]));
+        // renamed as an overlay, not as a page segment
+        assertUntouched(record(SFName.IPS_VALUE, 0, name("OVLY0001"), new byte[6]));
+    }
+
+    @Test
+    void patch_include_page_overlay() throws IOException {
+        assertPatchedLikeDecoded(record(SFName.IPO_VALUE, 0, name("OVLY0001"), new byte[9]));
+        assertPatchedLikeDecoded(record(SFName.IPO_VALUE, 0, name("OVLY0001"), new byte[9], gid("OVLY0001")));
+        assertUntouched(record(SFName.IPO_VALUE, 0, name("OVLY0002"), new byte[9]));
+    }
+
+    @Test
+    void patch_invoke_medium_map() throws IOException {
+        assertPatchedLikeDecoded(record(SFName.IMM_VALUE, 0, name("MMAP0001")));
+        assertPatchedLikeDecoded(record(SFName.IMM_VALUE, 0, name("MMAP0001"), gid("MMAP0001")));
+        assertUntouched(record(SFName.IMM_VALUE, 0, name("MMAP0002")));
+    }
+
+    @Test
+    void patch_map_page_segment_and_map_medium_overlay() throws IOException {
+        assertPatchedLikeDecoded(record(SFName.MPS_VALUE, 0, new byte[]{0x0C, 0, 0, 0},
+                new byte[4], name("PSEG0002"), new byte[4], name("PSEG0001")));
+        assertUntouched(record(SFName.MPS_VALUE, 0, new byte[]{0x0C, 0, 0, 0}, new byte[4], name("PSEG0002")));
+
+        assertPatchedLikeDecoded(record(SFName.MMO_VALUE, 0, new byte[]{0x0C, 0, 0, 0},
+                new byte[]{1, 0, 0, 0}, name("OVLY0001"), new byte[]{2, 0, 0, 0}, name("OVLY0002")));
+        assertUntouched(record(SFName.MMO_VALUE, 0, new byte[]{0x0C, 0, 0, 0}, new byte[]{1, 0, 0, 0}, name("OVLY0002")));
+    }
+
+    @Test
+    void patch_map_coded_font_format_1() throws IOException {
+        assertPatchedLikeDecoded(record(SFName.MCF1_VALUE, 0, new byte[]{0x1E, 0, 0, 0},
+                mcf1Group(1, name("CFNT0001"), name("CPAG0001"), name("FCSE0001")),
+                mcf1Group(2, name("CFNT0002"), name("CPAG0002"), name("FCSE0002"))));
+        // X'FF' in the first or second byte marks a name that is not given, even if the rest matches
+        assertPatchedLikeDecoded(record(SFName.MCF1_VALUE, 0, new byte[]{0x1E, 0, 0, 0},
+                mcf1Group(1, name("CFNT0001"), notGiven(0), notGiven(1))));
+        assertUntouched(record(SFName.MCF1_VALUE, 0, new byte[]{0x1E, 0, 0, 0},
+                mcf1Group(1, notGiven(0), notGiven(0), notGiven(0))));
+    }
+
+    @Test
+    void patch_map_coded_font_format_2() throws IOException {
+        assertPatchedLikeDecoded(record(SFName.MCF_VALUE, 0, group(
+                fqn(FullyQualifiedNameFQNType.CONST_FONT_CHARACTER_SET_NAME_REFERENCE_VALUE, name("FCSE0001")),
+                fqn(FullyQualifiedNameFQNType.CONST_CODE_PAGE_NAME_REFERENCE_VALUE, name("CPAG0001")),
+                new byte[]{4, TRIPLET_RESOURCE_LOCAL_ID, 5, 1}), group(
+                fqn(FullyQualifiedNameFQNType.CONST_CODED_FONT_NAME_REFERENCE_VALUE, name("CFNT0001")),
+                new byte[]{4, TRIPLET_RESOURCE_LOCAL_ID, 5, 2})));
+        assertUntouched(record(SFName.MCF_VALUE, 0, group(
+                fqn(FullyQualifiedNameFQNType.CONST_CODED_FONT_NAME_REFERENCE_VALUE, name("CFNT0002")),
+                new byte[]{4, TRIPLET_RESOURCE_LOCAL_ID, 5, 1})));
+    }
+
+    @Test
+    void patch_map_page_overlay() throws IOException {
+        assertPatchedLikeDecoded(record(SFName.MPO_VALUE, 0, group(
+                fqn(FullyQualifiedNameFQNType.CONST_RESOURCE_OBJECT_REFERENCE_VALUE, name("OVLY0001")),
+                new byte[]{4, TRIPLET_RESOURCE_LOCAL_ID, 2, 1})));
+        assertUntouched(record(SFName.MPO_VALUE, 0, group(
+                fqn(FullyQualifiedNameFQNType.CONST_RESOURCE_OBJECT_REFERENCE_VALUE, name("OVLY0002")),
+                new byte[]{4, TRIPLET_RESOURCE_LOCAL_ID, 2, 1})));
+        // a name of another length never matches, decoded or not
+        assertUntouched(record(SFName.MPO_VALUE, 0, group(
+                fqn(FullyQualifiedNameFQNType.CONST_RESOURCE_OBJECT_REFERENCE_VALUE, name("OVLY0001XX")),
+                new byte[]{4, TRIPLET_RESOURCE_LOCAL_ID, 2, 1})));
+    }
+
+    @Test
+    void decode_include_object_and_map_data_resource_with_renamed_names() throws IOException {
+        assertDecodedAndRenamed(record(SFName.IOB_VALUE, 0, name("OBJC0001"),
+                new byte[]{0, (byte) OBJECT_CONTAINER}, new byte[16], new byte[]{1}, classification()));
+        assertUntouched(record(SFName.IOB_VALUE, 0, name("OBJC0002"),
+                new byte[]{0, (byte) OBJECT_CONTAINER}, new byte[16], new byte[]{1}, classification()));
+
+        assertDecodedAndRenamed(record(SFName.MDR_VALUE, 0, group(
+                fqn(FullyQualifiedNameFQNType.CONST_OTHER_OBJECT_DATA_REFERENCE_VALUE, name("OBJC0001")),
+                classification())));
+        assertUntouched(record(SFName.MDR_VALUE, 0, group(
+                fqn(FullyQualifiedNameFQNType.CONST_OTHER_OBJECT_DATA_REFERENCE_VALUE, name("OBJC0002")),
+                classification())));
+    }
+
+    @Test
+    void decode_fields_with_extension_segmentation_or_padding() throws IOException {
+        byte[] extension = record(SFName.IPS_VALUE, FLAG_EXTENSION, new byte[]{3, 0, 0}, name("PSEG0001"), new byte[6]);
+        assertDecodedAndRenamed(extension);
+        assertDecodedAndRenamed(record(SFName.IPS_VALUE, FLAG_SEGMENTED, name("PSEG0001"), new byte[6]));
+        assertDecodedAndRenamed(record(SFName.IPS_VALUE, FLAG_PADDING, name("PSEG0001"), new byte[6], new byte[]{0, 0, 3}));
+    }
+
+    @Test
+    void decode_fields_whose_gid_name_has_another_length() throws IOException {
+        assertDecodedAndRenamed(record(SFName.IPS_VALUE, 0, name("PSEG0001"), new byte[6],
+                concat(new byte[]{14, TRIPLET_FQN, (byte) FullyQualifiedNameFQNType.CONST_REPLACE_FIRST_GID_NAME_VALUE, 0},
+                        name("PSEG0001XX"))));
+    }
+
+    @Test
+    void decode_all_fields_when_a_name_has_another_length() throws IOException {
+        inputFile.renamings.put(new ResourceKey(ResourceObjectTypeObjType.CONST_PAGE_SEGMENT, "SHORT"), "PSEGNEW2");
+        byte[] record = record(SFName.IPS_VALUE, 0, name("PSEG0001"), new byte[6]);
+        byte[] copy = record.clone();
+        assertThat(patcher().patch(copy, copy.length)).isEqualTo(Result.DECODE);
+        assertThat(copy).isEqualTo(record);
+    }
+
+    @Test
+    void rename_begin_and_end_resource_like_decoded() throws IOException {
+        byte[] type = {0x0A, 0x21, (byte) ResourceObjectTypeObjType.CONST_PAGE_SEGMENT_VALUE, 0, 0, 0, 0, 0, 0, 0};
+        assertRenamedResourceLikeDecoded(record(SFName.BRS_VALUE, 0, name("PSEG0001"), new byte[2], type));
+        assertRenamedResourceLikeDecoded(record(SFName.BRS_VALUE, 0, name("PSEG0001"), new byte[2], type, gid("PSEG0001")));
+        assertRenamedResourceLikeDecoded(record(SFName.ERS_VALUE, 0, name("PSEG0001")));
+
+        byte[] padded = record(SFName.ERS_VALUE, FLAG_PADDING, name("PSEG0001"), new byte[]{0, 0, 3});
+        byte[] copy = padded.clone();
+        assertThat(NamePatcher.renameResource(copy, copy.length, name("PSEGNEW1"))).isEqualTo(Result.DECODE);
+        assertThat(copy).isEqualTo(padded);
+    }
+
+    private NamePatcher patcher() {
+        return new NamePatcher(inputFile.renamings, inputFile.renameIMM);
+    }
+
+    private static void assertRoundTrips(byte[] record) throws IOException {
+        assertThat(AfpCombine.encode(AfpRecordReader.decode(record, record.length)))
+                .as("record encoded as it was read").isEqualTo(record);
+    }
+
+    /**
+     * Checks that the record is patched to the same bytes as decoding, renaming and encoding it gives.
+     */
+    private void assertPatchedLikeDecoded(byte[] record) throws IOException {
+        assertRoundTrips(record);
+        byte[] patched = record.clone();
+        assertThat(patcher().patch(patched, patched.length)).isEqualTo(Result.PATCHED);
+
+        SF sf = AfpRecordReader.decode(record, record.length);
+        assertThat(combine.rename(inputFile, sf)).isEqualTo(Filter.STATE.MODIFIED);
+        assertThat(patched).isEqualTo(AfpCombine.encode(sf));
+    }
+
+    /**
+     * Checks that neither patching nor renaming the decoded record changes anything.
+     */
+    private void assertUntouched(byte[] record) throws IOException {
+        byte[] copy = record.clone();
+        assertThat(patcher().patch(copy, copy.length)).isEqualTo(Result.UNTOUCHED);
+        assertThat(copy).isEqualTo(record);
+        assertThat(combine.rename(inputFile, AfpRecordReader.decode(record, record.length)))
+                .isEqualTo(Filter.STATE.UNTOUCHED);
+    }
+
+    /**
+     * Checks that the record is left to be decoded unchanged, and that renaming it decoded does change it.
+     */
+    private void assertDecodedAndRenamed(byte[] record) throws IOException {
+        byte[] copy = record.clone();
+        assertThat(patcher().patch(copy, copy.length)).isEqualTo(Result.DECODE);
+        assertThat(copy).isEqualTo(record);
+        assertThat(combine.rename(inputFile, AfpRecordReader.decode(record, record.length)))
+                .isEqualTo(Filter.STATE.MODIFIED);
+    }
+
+    private void assertRenamedResourceLikeDecoded(byte[] record) throws IOException {
+        assertRoundTrips(record);
+        byte[] patched = record.clone();
+        assertThat(NamePatcher.renameResource(patched, patched.length, name("PSEGNEW1"))).isEqualTo(Result.PATCHED);
+
+        SF sf = AfpRecordReader.decode(record, record.length);
+        combine.renameBRSERS(sf, "PSEGNEW1");
+        assertThat(patched).isEqualTo(AfpCombine.encode(sf));
+    }
+
+    /**
+     * @return a structured field with the flags and the data, of the length of the data
+     */
+    private static byte[] record(int id, int flags, byte[]... data) {
+        byte[] body = concat(data);
+        int length = NamePatcher.INTRODUCER_LENGTH - 1 + body.length;
+        return concat(new byte[]{(byte) AfpRecordReader.CARRIAGE_CONTROL, (byte) (length >> 8), (byte) length,
+                (byte) (id >> 16), (byte) (id >> 8), (byte) id, (byte) flags, 0, 0}, body);
+    }
+
+    /**
+     * @return a repeating group with a two byte length
+     */
+    private static byte[] group(byte[]... triplets) {
+        byte[] body = concat(triplets);
+        int length = 2 + body.length;
+        return concat(new byte[]{(byte) (length >> 8), (byte) length}, body);
+    }
+
+    private static byte[] mcf1Group(int id, byte[] codedFont, byte[] codePage, byte[] characterSet) {
+        return concat(new byte[]{(byte) id, 0, 0, 0}, codedFont, codePage, characterSet, new byte[2]);
+    }
+
+    /**
+     * @return a name that is not given, with X'FF' in the byte at {@code marker} and a renamed name otherwise
+     */
+    private static byte[] notGiven(int marker) {
+        byte[] name = name(marker == 0 ? "CPAG0001" : "FCSE0001");
+        name[marker] = (byte) 0xFF;
+        return name;
+    }
+
+    private static byte[] fqn(int type, byte[] name) {
+        return concat(new byte[]{(byte) (4 + name.length), TRIPLET_FQN, (byte) type, 0}, name);
+    }
+
+    private static byte[] gid(String name) {
+        return fqn(FullyQualifiedNameFQNType.CONST_REPLACE_FIRST_GID_NAME_VALUE, name(name));
+    }
+
+    private static byte[] classification() {
+        return concat(new byte[]{0x18, TRIPLET_CLASSIFICATION, 0x00, 0x01, 0x00, 0x00, 0x00, 0x00}, OBJECT_ID);
+    }
+
+    private static byte[] name(String name) {
+        return name.getBytes(NamePatcher.EBCDIC);
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        byte[] result = new byte[0];
+        for (byte[] part : parts) {
+            int position = result.length;
+            result = Arrays.copyOf(result, position + part.length);
+            System.arraycopy(part, 0, result, position, part.length);
+        }
+        return result;
+    }
+}